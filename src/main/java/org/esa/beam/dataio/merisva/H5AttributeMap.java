@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The attributes of a hdf5 object, read in a single pass by {@link H5Utils#readAttributes}.
+ * <p/>
+ * <p>Values are kept typed: string attributes as <code>String</code>, integer attributes as
+ * <code>int[]</code> and floating point attributes as <code>float[]</code> or <code>double[]</code>.
+ * Attribute names keep the order in which they are stored in the file.
+ */
+class H5AttributeMap {
+
+    private final Map<String, Object> values;
+
+    /**
+     * Constructs an empty attribute map.
+     */
+    H5AttributeMap() {
+        values = new LinkedHashMap<String, Object>();
+    }
+
+    /*
+     * Adds an attribute value.
+     */
+
+    void put(String name, Object value) {
+        values.put(name, value);
+    }
+
+    /**
+     * Retrieves an attribute value as stored in the map.
+     *
+     * @param name the attribute name
+     *
+     * @return a <code>String</code>, <code>int[]</code>, <code>float[]</code> or <code>double[]</code>,
+     *         or <code>null</code> if the attribute is missing
+     */
+    Object get(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * Checks whether an attribute is present.
+     *
+     * @param name the attribute name
+     *
+     * @return <code>true</code> if the attribute is present
+     */
+    boolean contains(String name) {
+        return values.containsKey(name);
+    }
+
+    /**
+     * Retrieves the attribute names in file order.
+     *
+     * @return the attribute names
+     */
+    String[] getNames() {
+        return values.keySet().toArray(new String[values.size()]);
+    }
+
+    /**
+     * Retrieves a string attribute.
+     *
+     * @param name the attribute name
+     *
+     * @return the attribute value, or <code>null</code> if missing or not a string
+     */
+    String getString(String name) {
+        final Object value = values.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Retrieves the first element of a numeric attribute as integer.
+     *
+     * @param name         the attribute name
+     * @param defaultValue the value returned if the attribute is missing or not numeric
+     *
+     * @return the attribute value
+     */
+    int getInt(String name, int defaultValue) {
+        final Object value = values.get(name);
+        if (value instanceof int[]) {
+            return ((int[]) value)[0];
+        }
+        return (int) getDouble(name, defaultValue);
+    }
+
+    /**
+     * Retrieves the first element of a numeric attribute as float.
+     *
+     * @param name         the attribute name
+     * @param defaultValue the value returned if the attribute is missing or not numeric
+     *
+     * @return the attribute value
+     */
+    float getFloat(String name, float defaultValue) {
+        return (float) getDouble(name, defaultValue);
+    }
+
+    /**
+     * Retrieves the first element of a numeric attribute as double.
+     *
+     * @param name         the attribute name
+     * @param defaultValue the value returned if the attribute is missing or not numeric
+     *
+     * @return the attribute value
+     */
+    double getDouble(String name, double defaultValue) {
+        final Object value = values.get(name);
+        if (value instanceof int[]) {
+            return ((int[]) value)[0];
+        } else if (value instanceof float[]) {
+            return ((float[]) value)[0];
+        } else if (value instanceof double[]) {
+            return ((double[]) value)[0];
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Formats an attribute value as string. Trailing NUL characters of string attributes
+     * are removed, array elements are separated by blanks.
+     *
+     * @param name the attribute name
+     *
+     * @return the formatted value, or <code>null</code> if the attribute is missing
+     */
+    String getAsString(String name) {
+        final Object value = values.get(name);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof String) {
+            final String s = (String) value;
+            int length = s.length();
+            while (length > 0 && s.charAt(length - 1) == '\0') {
+                length--;
+            }
+            return s.substring(0, length).trim();
+        }
+        final StringBuilder sb = new StringBuilder();
+        if (value instanceof int[]) {
+            for (int element : (int[]) value) {
+                sb.append(element).append(' ');
+            }
+        } else if (value instanceof float[]) {
+            for (float element : (float[]) value) {
+                sb.append(element).append(' ');
+            }
+        } else if (value instanceof double[]) {
+            for (double element : (double[]) value) {
+                sb.append(element).append(' ');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Creates the product data for an attribute value.
+     *
+     * @param name the attribute name
+     *
+     * @return the product data, or <code>null</code> if the attribute is missing
+     */
+    ProductData createProductData(String name) {
+        final Object value = values.get(name);
+        if (value instanceof String) {
+            return ProductData.createInstance((String) value);
+        } else if (value instanceof int[]) {
+            return ProductData.createInstance((int[]) value);
+        } else if (value instanceof float[]) {
+            return ProductData.createInstance((float[]) value);
+        } else if (value instanceof double[]) {
+            return ProductData.createInstance((double[]) value);
+        }
+        return null;
+    }
+}
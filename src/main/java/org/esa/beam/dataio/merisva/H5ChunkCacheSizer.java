@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+
+import java.awt.Rectangle;
+
+/**
+ * Sizes the hdf5 raw data chunk cache of a MERIS-VA file from the chunk layout of its scene
+ * datasets, so that a complete row of chunks (or the chunks of a tile) stays in the cache while
+ * it is read line by line.
+ * <p/>
+ * <p>The raw data chunk cache is configured on the file access property list when the file is
+ * opened, but the hdf5 library allocates a cache of the configured size for every open chunked
+ * dataset of the file. The cache is therefore sized for the largest requirement of a single
+ * dataset; datasets served by the {@link MerisVaChunkCache} do not add a requirement, but get a
+ * cache of their own like every other chunked dataset, overviews included. The cache size times
+ * the number of chunked datasets is reserved on the product's account of the
+ * {@link MerisVaMemoryBudget}, capped at the part of the budget still available; the hdf5 default
+ * is kept if less than that is available.
+ * <p/>
+ * <p>Since the cache can only be configured when a file is opened, the access pattern is taken
+ * from the reads of the products closed before, either <code>row</code> (default, also used
+ * before any product has been read) or <code>tile</code>. The system property
+ * <code>beam.merisva.accessPattern</code> overrides the observed pattern.
+ */
+class H5ChunkCacheSizer {
+
+    static final String ACCESS_ROW = "row";
+    static final String ACCESS_TILE = "tile";
+
+    private static final String ACCESS_PATTERN_PROPERTY = "beam.merisva.accessPattern";
+    private static final long MIB = 1024L * 1024L;
+    private static final long DEFAULT_CACHE_BYTES = MIB;
+    private static final int MIN_SLOT_COUNT = 521;
+    private static final int SLOTS_PER_CHUNK = 10;
+    private static final int TILE_SIZE = 512;
+
+    private static volatile String observedAccessPattern = ACCESS_ROW;
+
+    private final String accessPattern;
+    private MerisVaMemoryBudget.Account account;
+    private long requiredBytes;
+    private long minChunkBytes;
+    private int chunkedDatasetCount;
+    private long cacheBytes;
+    private long reservedBytes;
+    private int slotCount;
+    private double preemption;
+
+    /**
+     * Constructs a sizer for the given access pattern.
+     *
+     * @param accessPattern {@link #ACCESS_ROW} or {@link #ACCESS_TILE}
+     */
+    H5ChunkCacheSizer(String accessPattern) {
+        this.accessPattern = ACCESS_TILE.equalsIgnoreCase(accessPattern) ? ACCESS_TILE : ACCESS_ROW;
+        minChunkBytes = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return a sizer for the access pattern given by the system property, or else for the
+     *         pattern observed on the products read before
+     */
+    static H5ChunkCacheSizer create() {
+        return new H5ChunkCacheSizer(System.getProperty(ACCESS_PATTERN_PROPERTY, observedAccessPattern));
+    }
+
+    /**
+     * Records the access pattern observed while a product was read, to be used for the products
+     * opened next.
+     *
+     * @param accessPattern {@link #ACCESS_ROW} or {@link #ACCESS_TILE}
+     */
+    static void setObservedAccessPattern(String accessPattern) {
+        observedAccessPattern = ACCESS_TILE.equals(accessPattern) ? ACCESS_TILE : ACCESS_ROW;
+    }
+
+    /**
+     * Adds the cache requirement of a chunked dataset read through the hdf5 chunk cache.
+     *
+     * @param chunkDims   the chunk height and width
+     * @param elemSize    the size of a data element in bytes
+     * @param sceneRegion the region of the dataset which will be read
+     */
+    void addDataset(long[] chunkDims, int elemSize, Rectangle sceneRegion) {
+        final int chunkHeight = (int) chunkDims[0];
+        final int chunkWidth = (int) chunkDims[1];
+        final long chunkBytes = (long) chunkHeight * chunkWidth * elemSize;
+        final long chunkCount;
+        if (ACCESS_ROW.equals(accessPattern)) {
+            chunkCount = (sceneRegion.x + sceneRegion.width - 1) / chunkWidth - sceneRegion.x / chunkWidth + 1;
+        } else {
+            chunkCount = (long) getMaxChunksSpanned(Math.min(TILE_SIZE, sceneRegion.width), chunkWidth)
+                         * getMaxChunksSpanned(Math.min(TILE_SIZE, sceneRegion.height), chunkHeight);
+        }
+        requiredBytes = Math.max(requiredBytes, chunkCount * chunkBytes);
+        minChunkBytes = Math.min(minChunkBytes, chunkBytes);
+        chunkedDatasetCount++;
+    }
+
+    /**
+     * Counts chunked datasets which get a chunk cache of the configured size without adding a
+     * requirement, such as datasets served by the decoded chunk cache and overview datasets.
+     *
+     * @param datasetCount the number of datasets
+     */
+    void addDatasetsWithoutRequirement(int datasetCount) {
+        chunkedDatasetCount += datasetCount;
+    }
+
+    /**
+     * @return <code>true</code> if the default cache of the hdf5 library is too small
+     */
+    boolean isTuningRequired() {
+        return requiredBytes > DEFAULT_CACHE_BYTES;
+    }
+
+    /**
+     * Reserves the cache size of all chunked datasets on a memory account and computes the cache
+     * settings. The size per dataset is capped so that the total fits into the part of the memory
+     * budget still available. Nothing is reserved if the size per dataset does not exceed the hdf5
+     * default, which is kept then.
+     *
+     * @param account the account of the product
+     *
+     * @return <code>true</code> if the cache size has been reserved
+     */
+    boolean allocate(MerisVaMemoryBudget.Account account) {
+        final MerisVaMemoryBudget memoryBudget = MerisVaMemoryBudget.getInstance();
+        final int datasetCount = Math.max(1, chunkedDatasetCount);
+        final long availableBytes = memoryBudget.getBudgetBytes() - memoryBudget.getUsedBytes();
+        final long bytes = Math.min(Math.min(requiredBytes, availableBytes / datasetCount), Integer.MAX_VALUE);
+        if (bytes <= DEFAULT_CACHE_BYTES || !account.tryReserve(bytes * datasetCount)) {
+            return false;
+        }
+        this.account = account;
+        cacheBytes = bytes;
+        reservedBytes = bytes * datasetCount;
+        final long chunkCount = cacheBytes / Math.max(1, minChunkBytes) + 1;
+        slotCount = nextPrime((int) Math.max(MIN_SLOT_COUNT, Math.min(SLOTS_PER_CHUNK * chunkCount, 1 << 20)));
+        // a row scan never returns to a fully read chunk, a tile scan may
+        preemption = ACCESS_ROW.equals(accessPattern) ? 1.0 : 0.75;
+        return true;
+    }
+
+    /**
+     * Returns the reserved cache size to the memory budget.
+     */
+    void release() {
+        if (account != null) {
+            account.release(reservedBytes);
+            account = null;
+        }
+        cacheBytes = 0;
+        reservedBytes = 0;
+    }
+
+    /**
+     * Applies the cache settings to a file access property list, keeping the metadata cache setting.
+     *
+     * @param faplId the file access property list identifier
+     *
+     * @throws HDF5Exception
+     */
+    void applyTo(int faplId) throws HDF5Exception {
+        final int[] mdcElementCount = new int[1];
+        final int[] rdccElementCount = new int[1];
+        final int[] rdccByteCount = new int[1];
+        final double[] rdccPreemption = new double[1];
+        H5.H5Pget_cache(faplId, mdcElementCount, rdccElementCount, rdccByteCount, rdccPreemption);
+        H5.H5Pset_cache(faplId, mdcElementCount[0], slotCount, (int) cacheBytes, preemption);
+    }
+
+    /**
+     * Reports the cache settings.
+     *
+     * @param diagnostics the diagnostics receiving the settings
+     */
+    void report(MerisVaDiagnostics diagnostics) {
+        diagnostics.put("h5.chunkCache.accessPattern", accessPattern);
+        diagnostics.put("h5.chunkCache.chunkedDatasets", chunkedDatasetCount);
+        diagnostics.put("h5.chunkCache.requiredBytes", requiredBytes);
+        diagnostics.put("h5.chunkCache.bytes", cacheBytes > 0 ? cacheBytes : DEFAULT_CACHE_BYTES);
+        if (cacheBytes > 0) {
+            diagnostics.put("h5.chunkCache.reservedBytes", reservedBytes);
+            diagnostics.put("h5.chunkCache.slots", slotCount);
+            diagnostics.put("h5.chunkCache.preemption", Double.toString(preemption));
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Returns the maximum number of chunks a span of the given length touches when it is not
+     * aligned with the chunk boundaries.
+     */
+
+    private static int getMaxChunksSpanned(int length, int chunkSize) {
+        return (length + chunkSize - 2) / chunkSize + 1;
+    }
+
+    private static int nextPrime(int n) {
+        int candidate = n | 1;
+        while (!isPrime(candidate)) {
+            candidate += 2;
+        }
+        return candidate;
+    }
+
+    private static boolean isPrime(int n) {
+        for (int i = 3; (long) i * i <= n; i += 2) {
+            if (n % i == 0) {
+                return false;
+            }
+        }
+        return n > 2;
+    }
+}
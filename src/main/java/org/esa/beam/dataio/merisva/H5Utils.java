@@ -34,6 +34,25 @@ import org.esa.beam.framework.datamodel.ProductData;
  */
 class H5Utils {
 
+    private static boolean h5Initialized = false;
+
+    /**
+     * Checks for the initialization state of the hdf5 library. If it is not initialized
+     * initializes the library
+     *
+     * @throws ProductIOException on initialization failure
+     */
+    public static synchronized void assureLibInitialized() throws ProductIOException {
+        if (!h5Initialized) {
+            try {
+                H5.H5open();
+                h5Initialized = true;
+            } catch (HDF5LibraryException e) {
+                throw new ProductIOException("HDF library error: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Closes a hdf5 attribute.
      * @param id the attribute ID
@@ -48,6 +67,20 @@ class H5Utils {
         }
     }
 
+    /**
+     * Closes a hdf5 file.
+     * @param id the file ID
+     */
+    public static void closeH5F(int id) {
+        if (id >= 0) {
+            try {
+                H5.H5Fclose(id);
+            } catch (HDF5LibraryException e) {
+                Debug.trace(e);
+            }
+        }
+    }
+
     /**
      * Opens a hdf5 group with given name at the givel location identifier
      * @param locID the location identifier
@@ -81,110 +114,238 @@ class H5Utils {
     }
 
     /**
-     * Reads a string attribute with given location ID and name
+     * Reads all attributes of the object with given location ID in a single pass. Attributes
+     * which cannot be read or have an unsupported type are skipped.
      * @param locId the location identifier
-     * @param name the attribute name
-     * @return the attribute value
+     * @return the attribute map
+     * @throws IOException if the attributes could not be enumerated
      */
-    public static String readStringAttribute(int locId, String name) {
-        String strRet = null;
-        int attributeId = -1;
-        int typeId = -1;
-        int max_length = -1;
-        Object data = null;
+    public static H5AttributeMap readAttributes(int locId) throws IOException {
+        final H5AttributeMap attributes = new H5AttributeMap();
+        final String[] name = {""};
+        int numAttrs;
 
         try {
-            attributeId = H5.H5Aopen_name(locId, name);
-            typeId = H5.H5Aget_type(attributeId);
-            max_length = H5.H5Tget_size(typeId);
-            data = new byte[max_length];
-            H5.H5Aread(attributeId, typeId, data);
-            strRet = new String((byte[]) data);
-        } catch (HDF5Exception e) {
-            Debug.trace("Unable to read attribute '" + name + "'");
+            numAttrs = H5.H5Aget_num_attrs(locId);
+        } catch (HDF5LibraryException e) {
+            throw new ProductIOException(e.getMessage());
         }
-        finally {
-            closeH5A(attributeId);
+
+        for (int n = 0; n < numAttrs; n++) {
+            int attributeId = -1;
+            int typeId = -1;
+            int spaceId = -1;
+            try {
+                attributeId = H5.H5Aopen_idx(locId, n);
+                H5.H5Aget_name(attributeId, 80, name);
+                typeId = H5.H5Aget_type(attributeId);
+                spaceId = H5.H5Aget_space(attributeId);
+                final Object value = readAttributeValue(attributeId, typeId, spaceId);
+                if (value != null) {
+                    attributes.put(name[0], value);
+                }
+            } catch (HDF5Exception e) {
+                Debug.trace("Unable to read attribute at index '" + n + "'");
+            } finally {
+                closeH5S(spaceId);
+                closeH5T(typeId);
+                closeH5A(attributeId);
+            }
         }
 
-        return strRet;
+        return attributes;
     }
 
     /**
-     * Reads an integer attribute with given location ID and name
+     * Writes all attributes of an attribute map to the object with given location ID. String
+     * values are written as fixed-length strings, numeric arrays with their native type.
      * @param locId the location identifier
-     * @param name the name
-     * @return the attribute value
-     */
-    public static int readIntAttribute(int locId, String name) {
-        int nRet = 0;
-        int attributeId = -1;
-        int typeId = -1;
-        int[] data = new int[1];
+     * @param attributes the attribute map
+     * @throws IOException if an attribute could not be written
+     */
+    public static void writeAttributes(int locId, H5AttributeMap attributes) throws IOException {
+        for (String name : attributes.getNames()) {
+            final Object value = attributes.get(name);
+            int attributeId = -1;
+            int typeId = -1;
+            int spaceId = -1;
+            try {
+                final Object data;
+                final int memTypeId;
+                if (value instanceof String) {
+                    data = ((String) value).getBytes();
+                    typeId = H5.H5Tcopy(HDF5Constants.H5T_C_S1);
+                    H5.H5Tset_size(typeId, Math.max(1, ((byte[]) data).length));
+                    memTypeId = typeId;
+                    spaceId = H5.H5Screate(HDF5Constants.H5S_SCALAR);
+                } else {
+                    final int length;
+                    if (value instanceof int[]) {
+                        length = ((int[]) value).length;
+                        memTypeId = HDF5Constants.H5T_NATIVE_INT;
+                    } else if (value instanceof float[]) {
+                        length = ((float[]) value).length;
+                        memTypeId = HDF5Constants.H5T_NATIVE_FLOAT;
+                    } else {
+                        length = ((double[]) value).length;
+                        memTypeId = HDF5Constants.H5T_NATIVE_DOUBLE;
+                    }
+                    data = value;
+                    spaceId = H5.H5Screate_simple(1, new long[]{length}, null);
+                }
+                attributeId = H5.H5Acreate(locId, name, memTypeId, spaceId, HDF5Constants.H5P_DEFAULT);
+                H5.H5Awrite(attributeId, memTypeId, data);
+            } catch (HDF5Exception e) {
+                throw new ProductIOException("Unable to write attribute '" + name + "': " + e.getMessage());
+            } finally {
+                closeH5A(attributeId);
+                closeH5S(spaceId);
+                closeH5T(typeId);
+            }
+        }
+    }
+
+    /**
+     * Closes a hdf5 dataspace.
+     * @param id the dataspace ID
+     */
+    public static void closeH5S(int id) {
+        if (id >= 0) {
+            try {
+                H5.H5Sclose(id);
+            } catch (HDF5LibraryException e) {
+                Debug.trace(e);
+            }
+        }
+    }
+
+    /**
+     * Closes a hdf5 datatype.
+     * @param id the datatype ID
+     */
+    public static void closeH5T(int id) {
+        if (id >= 0) {
+            try {
+                H5.H5Tclose(id);
+            } catch (HDF5LibraryException e) {
+                Debug.trace(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the chunk dimensions of a two-dimensional dataset.
+     * @param datasetId the dataset identifier
+     * @return the chunk height and width, or <code>null</code> if the dataset is not chunked
+     * @throws HDF5Exception
+     */
+    public static long[] getChunkDimensions(int datasetId) throws HDF5Exception {
+        final int plistId = H5.H5Dget_create_plist(datasetId);
         try {
-            attributeId = H5.H5Aopen_name(locId, name);
-            typeId = H5.H5Aget_type(attributeId);
-            H5.H5Aread(attributeId, typeId, data);
-            nRet = data[0];
-        } catch (HDF5Exception e) {
-            Debug.trace("Unable to read attribute '" + name + "'");
+            if (H5.H5Pget_layout(plistId) != HDF5Constants.H5D_CHUNKED) {
+                return null;
+            }
+            final long[] chunkDims = new long[2];
+            H5.H5Pget_chunk(plistId, 2, chunkDims);
+            return chunkDims;
         } finally {
-            closeH5A(attributeId);
+            H5.H5Pclose(plistId);
         }
-
-        return nRet;
     }
 
     /**
-     * Reads a float attribute with given location ID and name
-     * @param locId the location identifier
-     * @param name the name
-     * @return the attribute value
+     * Checks whether a dataset is stored with filters, e.g. compression.
+     * @param datasetId the dataset identifier
+     * @return <code>true</code> if at least one filter is applied
+     * @throws HDF5Exception
      */
-    public static float readFloatAttribute(int locId, String name) {
-        float fRet = 0.f;
-        int attributeId = -1;
-        int typeId = -1;
-        float[] data = new float[1];
+    public static boolean isFiltered(int datasetId) throws HDF5Exception {
+        final int plistId = H5.H5Dget_create_plist(datasetId);
+        try {
+            return H5.H5Pget_nfilters(plistId) > 0;
+        } finally {
+            H5.H5Pclose(plistId);
+        }
+    }
 
+    /**
+     * Retrieves the user-defined fill value of a dataset.
+     * @param datasetId the dataset identifier
+     * @param typeId the identifier of the memory data type of the fill value
+     * @return the fill value in native byte order, or <code>null</code> if no fill value has been defined
+     * @throws HDF5Exception
+     */
+    public static byte[] getFillValue(int datasetId, int typeId) throws HDF5Exception {
+        final int plistId = H5.H5Dget_create_plist(datasetId);
         try {
-            attributeId = H5.H5Aopen_name(locId, name);
-            typeId = H5.H5Aget_type(attributeId);
-            H5.H5Aread(attributeId, typeId, data);
-            fRet = data[0];
-        } catch (HDF5Exception e) {
-            Debug.trace("Unable to read attribute '" + name + "'");
+            final int[] status = new int[1];
+            H5.H5Pfill_value_defined(plistId, status);
+            if (status[0] != HDF5Constants.H5D_FILL_VALUE_USER_DEFINED) {
+                return null;
+            }
+            final byte[] fillValue = new byte[H5.H5Tget_size(typeId)];
+            H5.H5Pget_fill_value(plistId, typeId, fillValue);
+            return fillValue;
         } finally {
-            closeH5A(attributeId);
+            H5.H5Pclose(plistId);
         }
+    }
 
-        return fRet;
+    /**
+     * Retrieves the names of the members of a group.
+     * @param fileId the file identifier
+     * @param groupName the absolute name of the group
+     * @return the member names in storage order
+     * @throws HDF5Exception
+     */
+    public static String[] getMemberNames(int fileId, String groupName) throws HDF5Exception {
+        final int memberCount = H5.H5Gn_members(fileId, groupName);
+        final String[] memberNames = new String[memberCount];
+        final String[] names = new String[1];
+        final int[] types = new int[1];
+        for (int n = 0; n < memberCount; n++) {
+            H5.H5Gget_obj_info_idx(fileId, groupName, n, names, types);
+            memberNames[n] = names[0];
+        }
+        return memberNames;
     }
 
     /**
-     * Reads a double attribute with given location ID and name
+     * Reads the complete data of a dataset as float values.
      * @param locId the location identifier
-     * @param name the name
-     * @return the attribute value
+     * @param name the dataset name
+     * @return the data values
+     * @throws IOException
      */
-    public static double readDoubleAttribute(int locId, String name) {
-        double dRet = 0.;
-        int attributeId = -1;
-        int typeId = -1;
-        double[] data = new double[1];
+    public static float[] readFloatDataset(int locId, String name) throws IOException {
+        int datasetId = -1;
+        int dataspaceId = -1;
 
         try {
-            attributeId = H5.H5Aopen_name(locId, name);
-            typeId = H5.H5Aget_type(attributeId);
-            H5.H5Aread(attributeId, typeId, data);
-            dRet = data[0];
+            datasetId = H5.H5Dopen(locId, name);
+            dataspaceId = H5.H5Dget_space(datasetId);
+            float[] data = new float[(int) H5.H5Sget_simple_extent_npoints(dataspaceId)];
+            H5.H5Dread(datasetId, HDF5Constants.H5T_NATIVE_FLOAT, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL,
+                       HDF5Constants.H5P_DEFAULT, data);
+            return data;
         } catch (HDF5Exception e) {
-            Debug.trace("Unable to read attribute '" + name + "'");
+            throw new ProductIOException("Unable to read dataset '" + name + "': " + e.getMessage());
         } finally {
-            closeH5A(attributeId);
+            if (dataspaceId >= 0) {
+                try {
+                    H5.H5Sclose(dataspaceId);
+                } catch (HDF5LibraryException e) {
+                    Debug.trace(e);
+                }
+            }
+            if (datasetId >= 0) {
+                try {
+                    H5.H5Dclose(datasetId);
+                } catch (HDF5LibraryException e) {
+                    Debug.trace(e);
+                }
+            }
         }
-
-        return dRet;
     }
 
     /**
@@ -234,4 +395,66 @@ class H5Utils {
 
         return nRet;
     }
+
+    /**
+     * Converts a beam product data type to the corresponding native hdf5 datatype.
+     * @param productDataType the product data type identifier
+     * @return the hdf5 datatype ID, or -1 if the type is not supported
+     */
+    public static int convertProductToHdfDataType(int productDataType) {
+        switch (productDataType) {
+            case ProductData.TYPE_INT8:
+                return HDF5Constants.H5T_NATIVE_INT8;
+            case ProductData.TYPE_UINT8:
+                return HDF5Constants.H5T_NATIVE_UINT8;
+            case ProductData.TYPE_INT16:
+                return HDF5Constants.H5T_NATIVE_INT16;
+            case ProductData.TYPE_UINT16:
+                return HDF5Constants.H5T_NATIVE_UINT16;
+            case ProductData.TYPE_INT32:
+                return HDF5Constants.H5T_NATIVE_INT32;
+            case ProductData.TYPE_UINT32:
+                return HDF5Constants.H5T_NATIVE_UINT32;
+            case ProductData.TYPE_FLOAT32:
+                return HDF5Constants.H5T_NATIVE_FLOAT;
+            case ProductData.TYPE_FLOAT64:
+                return HDF5Constants.H5T_NATIVE_DOUBLE;
+            default:
+                return -1;
+        }
+    }
+
+    /*
+     * Reads the value of an open attribute, converting numbers to native int, float or double
+     * arrays. Returns null for empty attributes and unsupported type classes.
+     */
+
+    private static Object readAttributeValue(int attributeId, int typeId, int spaceId) throws HDF5Exception {
+        final int numElems = (int) H5.H5Sget_simple_extent_npoints(spaceId);
+        if (numElems <= 0) {
+            return null;
+        }
+        final int typeClass = H5.H5Tget_class(typeId);
+        final int typeSize = H5.H5Tget_size(typeId);
+
+        if (typeClass == HDF5Constants.H5T_STRING) {
+            final byte[] data = new byte[typeSize * numElems];
+            H5.H5Aread(attributeId, typeId, data);
+            return new String(data);
+        } else if (typeClass == HDF5Constants.H5T_INTEGER) {
+            final int[] data = new int[numElems];
+            H5.H5Aread(attributeId, HDF5Constants.H5T_NATIVE_INT, data);
+            return data;
+        } else if (typeClass == HDF5Constants.H5T_FLOAT) {
+            if (typeSize > 4) {
+                final double[] data = new double[numElems];
+                H5.H5Aread(attributeId, HDF5Constants.H5T_NATIVE_DOUBLE, data);
+                return data;
+            }
+            final float[] data = new float[numElems];
+            H5.H5Aread(attributeId, HDF5Constants.H5T_NATIVE_FLOAT, data);
+            return data;
+        }
+        return null;
+    }
 }
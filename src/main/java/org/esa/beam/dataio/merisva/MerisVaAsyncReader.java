@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.awt.Rectangle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking access to the band rasters of a MERIS-VA product.
+ * <p/>
+ * <p>Region reads are executed on a dedicated pool with a fixed, small number of I/O threads,
+ * so HDF5 calls are confined to these threads and the calling threads are never blocked by
+ * them. The number of requests in flight (queued or running) is limited; submitting beyond
+ * that limit blocks or times out, which provides backpressure to the caller. Cancelling a
+ * returned future stops a queued request from being executed and a running one at the next
+ * line boundary; a running request counts as in flight until its read has ended.
+ * <p/>
+ * <p>The raster data of a region is taken from the {@link MerisVaBufferPool}; callers which are
+ * done with it may hand it back with {@link MerisVaBufferPool#release}. While a region is read,
+ * its buffer is reserved on the product's account of the {@link MerisVaMemoryBudget}, so reads
+ * wait if the budget is exhausted.
+ */
+public class MerisVaAsyncReader {
+
+    private final Product product;
+    private final ExecutorService executor;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+
+    /**
+     * Constructs an asynchronous reader for the given product.
+     *
+     * @param product       the product, must have been opened with the MERIS-VA reader
+     * @param ioThreadCount the number of I/O threads
+     * @param maxInFlight   the maximum number of requests which are queued or running
+     */
+    public MerisVaAsyncReader(Product product, int ioThreadCount, int maxInFlight) {
+        if (!(product.getProductReader() instanceof MerisVaReader)) {
+            throw new IllegalArgumentException("Product has not been read by the MERIS-VA reader");
+        }
+        if (ioThreadCount <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Thread count and in-flight limit must be positive");
+        }
+        this.product = product;
+        this.maxInFlight = maxInFlight;
+        executor = Executors.newFixedThreadPool(ioThreadCount, new MerisVaThreadFactory("merisva-io"));
+        inFlightPermits = new Semaphore(maxInFlight, true);
+    }
+
+    /**
+     * Submits a region read, blocking while the in-flight limit is reached.
+     *
+     * @param bandName the name of the band
+     * @param region   the region in product raster co-ordinates
+     *
+     * @return the future raster data of the region
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Future<ProductData> readRegion(String bandName, Rectangle region) throws InterruptedException {
+        final Band band = getBand(bandName);
+        inFlightPermits.acquire();
+        return submit(band, region);
+    }
+
+    /**
+     * Submits a region read, waiting at most the given time for the in-flight limit.
+     *
+     * @param bandName the name of the band
+     * @param region   the region in product raster co-ordinates
+     * @param timeout  the maximum time to wait
+     * @param unit     the unit of the timeout
+     *
+     * @return the future raster data of the region, or <code>null</code> if the request was not admitted in time
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Future<ProductData> tryReadRegion(String bandName, Rectangle region,
+                                             long timeout, TimeUnit unit) throws InterruptedException {
+        final Band band = getBand(bandName);
+        if (!inFlightPermits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return submit(band, region);
+    }
+
+    /**
+     * @return the number of requests currently queued or running
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    /**
+     * Shuts down the I/O threads. Queued requests are cancelled, the product is not closed.
+     */
+    public void shutdown() {
+        for (Runnable queuedTask : executor.shutdownNow()) {
+            ((Future) queuedTask).cancel(false);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private Band getBand(String bandName) {
+        final Band band = product.getBand(bandName);
+        if (band == null) {
+            throw new IllegalArgumentException("Band not found: " + bandName);
+        }
+        return band;
+    }
+
+    private Future<ProductData> submit(Band band, Rectangle region) {
+        final RegionReader regionReader = new RegionReader(band, region);
+        final ReadTask task = new ReadTask(regionReader);
+        regionReader.task = task;
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            throw e;
+        }
+        return task;
+    }
+
+    /*
+     * A region read which holds its in-flight permit until the read has actually ended, or until
+     * it is cancelled before it has been started. A buffer read for a task cancelled meanwhile is
+     * returned to the pool, since nobody can retrieve it.
+     */
+
+    private class ReadTask extends FutureTask<ProductData> {
+
+        private final AtomicBoolean started;
+
+        private ReadTask(Callable<ProductData> regionReader) {
+            super(regionReader);
+            started = new AtomicBoolean();
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                inFlightPermits.release();
+            }
+        }
+
+        @Override
+        protected void set(ProductData data) {
+            super.set(data);
+            if (isCancelled()) {
+                MerisVaBufferPool.getInstance().release(data);
+            }
+        }
+
+        @Override
+        protected void done() {
+            // a task cancelled while queued is never run
+            if (started.compareAndSet(false, true)) {
+                inFlightPermits.release();
+            }
+        }
+    }
+
+    /*
+     * Reads a region through the product reader; the read stops at the next line boundary
+     * once the owning task has been cancelled.
+     */
+
+    private static class RegionReader implements Callable<ProductData> {
+
+        private final Band band;
+        private final Rectangle region;
+        private Future<ProductData> task;
+
+        private RegionReader(Band band, Rectangle region) {
+            this.band = band;
+            this.region = region;
+        }
+
+        @Override
+        public ProductData call() throws Exception {
+            // the region buffer is accounted while it is read, which bounds the memory of reads in flight
+            final MerisVaReader reader = (MerisVaReader) band.getProduct().getProductReader();
+            final MerisVaMemoryBudget.Account memoryAccount = reader.getMemoryAccount();
+            final long bytes = (long) region.width * region.height * ProductData.getElemSize(band.getDataType());
+            memoryAccount.reserve(bytes);
+            try {
+                return readRegion();
+            } finally {
+                memoryAccount.release(bytes);
+            }
+        }
+
+        private ProductData readRegion() throws Exception {
+            final MerisVaBufferPool bufferPool = MerisVaBufferPool.getInstance();
+            final ProductData data = bufferPool.acquire(band.getDataType(), region.width * region.height);
+            try {
+                band.getProduct().getProductReader().readBandRasterData(band, region.x, region.y,
+                                                                        region.width, region.height, data,
+                                                                        new NullProgressMonitor() {
+                                                                            @Override
+                                                                            public boolean isCanceled() {
+                                                                                return task.isCancelled();
+                                                                            }
+                                                                        });
+            } catch (Exception e) {
+                bufferPool.release(data);
+                throw e;
+            }
+            // released by the task if it has been cancelled meanwhile
+            return data;
+        }
+    }
+}
@@ -23,18 +23,69 @@ import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
 import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
 import org.esa.beam.framework.dataio.ProductIOException;
 import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 class MerisVaBand {
 
+    private static final int MAX_POINTS_PER_SELECTION = 65536;
+    private static final int DEFAULT_EXTENT_BLOCK_HEIGHT = 64;
+    // the valid extent is either "off", learnt from full-width reads ("observe") or scanned
+    // when a row block is read the first time ("scan")
+    private static final String VALID_EXTENT_PROPERTY = "beam.merisva.validExtent";
+    private static final String VALID_EXTENT_MODE = System.getProperty(VALID_EXTENT_PROPERTY, "observe");
+    private static final boolean SCAN_VALID_EXTENT = "scan".equals(VALID_EXTENT_MODE);
+
     private int datasetID;
     private int dataspaceID;
     private int dataTypeID;
     private int memDataspaceID;
-    private int lineWidth;
+    private int memDataspaceLength;
+    private int regionDataspaceID;
+    private int regionDataspaceLineCount;
+    private int regionDataspaceLineLength;
+    private int rasterWidth;
+    private int rasterHeight;
     private int pDataType;
-    private Object line;
+    private H5AttributeMap attributes;
+    private int chunkWidth;
+    private int chunkHeight;
+    private boolean compressed;
+    private MerisVaChunkCache chunkCache;
+    private BitSet pendingReadAheadRows;
+    // guards the dataset against being closed while read-ahead tasks read and inflate chunks
+    // outside of the band's lock
+    private final Object readAheadLock = new Object();
+    private long readCount;
+    private long readWidthSum;
+    private MerisVaMemoryBudget.Account memoryAccount;
+    private Object fillValue;
+    private MerisVaValidExtent validExtent;
+    private long skippedSampleCount;
+    // chunks which were read directly since the memory budget could not provide their cache
+    // size, counted by foreground reads and read-ahead tasks alike
+    private final AtomicLong chunkCacheRefusalCount = new AtomicLong();
+    // selection descriptors and the valid extent of the current read, reused under the band's
+    // lock so that steady-state reads do not allocate
+    private final long[] fileStart;
+    private final long[] fileStride;
+    private final long[] fileCount;
+    private final long[] memStart;
+    private final long[] memDims;
+    private final long[] lineMemStart;
+    private final long[] lineMemCount;
+    private final long[] lineMemStride;
+    private final long[] lineMemBlock;
+    private final int[] extent;
+    // point reads: storage keys packed with point indexes, and selection co-ordinates, grown on demand
+    private long[] pointKeys;
+    private long[][] pointFileCoords;
+    private long[][] pointMemCoords;
 
     /**
      * Constructs the object with default values.
@@ -44,14 +95,27 @@ class MerisVaBand {
         dataspaceID = -1;
         dataTypeID = -1;
         memDataspaceID = -1;
+        regionDataspaceID = -1;
+        memoryAccount = MerisVaMemoryBudget.getInstance().getSharedAccount();
+        fileStart = new long[2];
+        fileStride = new long[2];
+        fileCount = new long[2];
+        memStart = new long[2];
+        memDims = new long[2];
+        lineMemStart = new long[1];
+        lineMemCount = new long[1];
+        lineMemStride = new long[1];
+        lineMemBlock = new long[1];
+        extent = new int[2];
     }
 
     /*
-     * Initializes the object with given daset and dataspace id.
+     * Initializes the object with given daset and dataspace id and the attributes of the dataset.
      */
 
-    void init(int datasetId, int dataspaceID, int dataTypeID) throws ProductIOException {
+    void init(int datasetId, int dataspaceID, int dataTypeID, H5AttributeMap attributes) throws ProductIOException {
         datasetID = datasetId;
+        this.attributes = attributes;
         this.dataspaceID = dataspaceID;
         this.dataTypeID = dataTypeID;
 
@@ -60,11 +124,12 @@ class MerisVaBand {
             long[] maxSize = new long[2];
 
             H5.H5Sget_simple_extent_dims(dataspaceID, size, maxSize);
-            lineWidth = (int) maxSize[1];
+            rasterWidth = (int) size[1];
+            rasterHeight = (int) size[0];
             pDataType = H5Utils.convertHdfToProductDataType(this.dataTypeID);
-            createLineBuffer();
-
-            memDataspaceID = H5.H5Screate_simple(2, new long[]{1, lineWidth}, new long[]{1, lineWidth});
+            readStorageLayout();
+            readFillValue();
+            initValidExtent();
         } catch (HDF5Exception e) {
             throw new ProductIOException(e.getMessage());
         }
@@ -72,7 +137,9 @@ class MerisVaBand {
 
 
     /**
-     * Reads one line of geophysical data from the band stored on the diskfile.
+     * Reads one line of geophysical data from the band stored on the diskfile directly into
+     * the destination raster. Columns outside the valid extent of the line are filled with the
+     * fill value without being read.
      *
      * @param sourceMinX   the minimum X offset in source raster co-ordinates
      * @param sourceMaxX   the maximum X offset in source raster co-ordinates
@@ -85,15 +152,155 @@ class MerisVaBand {
      */
     synchronized void readRasterLine(int sourceMinX, int sourceMaxX, int sourceStepX,
                                      int sourceY, ProductData destBuffer, int destArrayPos) throws IOException {
-        long[] start = new long[]{sourceY, sourceMinX};
-        long[] stride = new long[]{1, sourceStepX};
-        long[] count = new long[]{1, sourceMaxX - sourceMinX + 1};
+        countRead(sourceMinX, sourceMaxX);
+        final Object dest = destBuffer.getElems();
+        final int lineLength = (sourceMaxX - sourceMinX) / sourceStepX + 1;
         try {
-            long[] memStart = new long[]{0, 0};
-            H5.H5Sselect_hyperslab(memDataspaceID, HDF5Constants.H5S_SELECT_SET, memStart, stride, count, null);
-            H5.H5Sselect_hyperslab(dataspaceID, HDF5Constants.H5S_SELECT_SET, start, stride, count, null);
-            H5.H5Dread(datasetID, dataTypeID, memDataspaceID, dataspaceID, HDF5Constants.H5P_DEFAULT, line);
-            copyData(destBuffer, destArrayPos, (int) count[1]);
+            final boolean clipped = clipToValidExtent(sourceMinX, sourceMaxX, sourceStepX, sourceY, sourceY);
+            int minX = sourceMinX;
+            int maxX = sourceMaxX;
+            if (clipped) {
+                validExtent.fill(dest, destArrayPos, lineLength);
+                if (extent[0] > extent[1]) {
+                    skippedSampleCount += lineLength;
+                    return;
+                }
+                minX = extent[0];
+                maxX = extent[1];
+                skippedSampleCount += lineLength - ((maxX - minX) / sourceStepX + 1);
+            }
+            final int destPos = destArrayPos + (minX - sourceMinX) / sourceStepX;
+            if (chunkCache != null) {
+                readFromChunks(minX, maxX, sourceStepX, sourceY, sourceY, 1, dest, destPos, 0);
+            } else {
+                // the destination raster is described as a one-dimensional memory dataspace,
+                // which is kept as long as rasters of the same size are read
+                if (memDataspaceID < 0 || memDataspaceLength != destBuffer.getNumElems()) {
+                    closeMemDataspace();
+                    memDataspaceID = H5.H5Screate_simple(1, new long[]{destBuffer.getNumElems()}, null);
+                    memDataspaceLength = destBuffer.getNumElems();
+                }
+                lineMemStart[0] = destPos;
+                lineMemCount[0] = (maxX - minX) / sourceStepX + 1;
+                H5.H5Sselect_hyperslab(memDataspaceID, HDF5Constants.H5S_SELECT_SET, lineMemStart, null, lineMemCount,
+                                       null);
+                setFileSelection(minX, maxX, sourceStepX, sourceY, sourceY, 1);
+                H5.H5Dread(datasetID, dataTypeID, memDataspaceID, dataspaceID, HDF5Constants.H5P_DEFAULT, dest);
+            }
+            if (!clipped) {
+                observeRows(sourceMinX, sourceMaxX, sourceStepX, sourceY, sourceY, 1, dest, destArrayPos);
+            }
+        } catch (HDF5Exception e) {
+            throw new ProductIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a rectangular region of data from the band stored on the diskfile with a single
+     * hyperslab read directly into the destination buffer. The destination buffer may hold
+     * more lines than the region, in which case only its leading elements are written.
+     * Columns outside the valid extent of the region are filled with the fill value without
+     * being read.
+     *
+     * @param sourceMinX  the minimum X offset in source raster co-ordinates
+     * @param sourceMaxX  the maximum X offset in source raster co-ordinates
+     * @param sourceStepX the sub-sampling in X direction within the region providing samples to be read
+     * @param sourceMinY  the minimum Y offset in source raster co-ordinates
+     * @param sourceMaxY  the maximum Y offset in source raster co-ordinates
+     * @param sourceStepY the sub-sampling in Y direction within the region providing samples to be read
+     * @param destBuffer  the destination raster which receives the sample values to be read
+     *
+     * @throws java.io.IOException if the data could not be read
+     */
+    synchronized void readRasterRegion(int sourceMinX, int sourceMaxX, int sourceStepX,
+                                       int sourceMinY, int sourceMaxY, int sourceStepY,
+                                       ProductData destBuffer) throws IOException {
+        final int lineCount = (sourceMaxY - sourceMinY) / sourceStepY + 1;
+        final int lineLength = (sourceMaxX - sourceMinX) / sourceStepX + 1;
+        final int destLineCount = destBuffer.getNumElems() / lineLength;
+        if (destLineCount < lineCount) {
+            throw new IllegalArgumentException("destination buffer too small");
+        }
+        countRead(sourceMinX, sourceMaxX);
+        final Object dest = destBuffer.getElems();
+        try {
+            final boolean clipped = clipToValidExtent(sourceMinX, sourceMaxX, sourceStepX, sourceMinY, sourceMaxY);
+            int minX = sourceMinX;
+            int maxX = sourceMaxX;
+            if (clipped) {
+                validExtent.fill(dest, 0, lineCount * lineLength);
+                if (extent[0] > extent[1]) {
+                    skippedSampleCount += (long) lineCount * lineLength;
+                    return;
+                }
+                minX = extent[0];
+                maxX = extent[1];
+                skippedSampleCount += (long) lineCount * (lineLength - ((maxX - minX) / sourceStepX + 1));
+            }
+            readSamples(minX, maxX, sourceStepX, sourceMinY, sourceMaxY, sourceStepY,
+                        dest, destLineCount, lineLength, (minX - sourceMinX) / sourceStepX);
+            if (!clipped) {
+                observeRows(sourceMinX, sourceMaxX, sourceStepX, sourceMinY, sourceMaxY, sourceStepY, dest, 0);
+            }
+        } catch (HDF5Exception e) {
+            throw new ProductIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the samples of scattered pixels. The points are visited in storage order, either with
+     * hdf5 point selections of limited size or, for cached compressed datasets, chunk by chunk.
+     *
+     * @param sourceX    the X co-ordinates in source raster co-ordinates
+     * @param sourceY    the Y co-ordinates in source raster co-ordinates
+     * @param destBuffer the destination buffer receiving the samples in the order of the co-ordinates
+     *
+     * @throws java.io.IOException if the data could not be read
+     */
+    synchronized void readPoints(final int[] sourceX, final int[] sourceY, ProductData destBuffer) throws IOException {
+        if (sourceX.length == 0) {
+            return;
+        }
+        final int pointCount = sourceX.length;
+        if (pointKeys == null || pointKeys.length < pointCount) {
+            pointKeys = new long[pointCount];
+        }
+        // the storage key occupies the upper bits, so that sorting the packed keys orders the
+        // point indexes without boxing them; storage keys of MERIS-VA rasters stay far below 2^32
+        for (int i = 0; i < pointCount; i++) {
+            pointKeys[i] = (getStorageKey(sourceX[i], sourceY[i]) << 31) | i;
+        }
+        Arrays.sort(pointKeys, 0, pointCount);
+        readCount++;
+
+        try {
+            if (chunkCache != null && readPointsFromChunks(sourceX, sourceY, pointCount, destBuffer.getElems())) {
+                return;
+            }
+            if (memDataspaceID < 0 || memDataspaceLength != destBuffer.getNumElems()) {
+                closeMemDataspace();
+                lineMemCount[0] = destBuffer.getNumElems();
+                memDataspaceID = H5.H5Screate_simple(1, lineMemCount, null);
+                memDataspaceLength = destBuffer.getNumElems();
+            }
+            final int selectionSize = Math.min(MAX_POINTS_PER_SELECTION, pointCount);
+            if (pointFileCoords == null || pointFileCoords.length < selectionSize) {
+                pointFileCoords = new long[selectionSize][2];
+                pointMemCoords = new long[selectionSize][1];
+            }
+            for (int first = 0; first < pointCount; first += MAX_POINTS_PER_SELECTION) {
+                final int count = Math.min(MAX_POINTS_PER_SELECTION, pointCount - first);
+                for (int i = 0; i < count; i++) {
+                    final int index = (int) (pointKeys[first + i] & Integer.MAX_VALUE);
+                    pointFileCoords[i][0] = sourceY[index];
+                    pointFileCoords[i][1] = sourceX[index];
+                    pointMemCoords[i][0] = index;
+                }
+                H5.H5Sselect_elements(dataspaceID, HDF5Constants.H5S_SELECT_SET, count, pointFileCoords);
+                H5.H5Sselect_elements(memDataspaceID, HDF5Constants.H5S_SELECT_SET, count, pointMemCoords);
+                H5.H5Dread(datasetID, dataTypeID, memDataspaceID, dataspaceID, HDF5Constants.H5P_DEFAULT,
+                           destBuffer.getElems());
+            }
         } catch (HDF5Exception e) {
             throw new ProductIOException(e.getMessage());
         }
@@ -103,100 +310,626 @@ class MerisVaBand {
      * Closes the band.
      */
 
-    void close() throws IOException {
-        if (dataTypeID >= 0) {
+    synchronized void close() throws IOException {
+        synchronized (readAheadLock) {
+            if (chunkCache != null) {
+                final MerisVaBufferPool bufferPool = MerisVaBufferPool.getInstance();
+                for (Object chunk : chunkCache.removeAll(this)) {
+                    bufferPool.releaseArray(pDataType, chunk);
+                }
+                chunkCache = null;
+            }
+            if (dataTypeID >= 0) {
+                try {
+                    H5.H5Tclose(dataTypeID);
+                    dataTypeID = -1;
+                } catch (HDF5LibraryException e) {
+                    throw new ProductIOException(e.getMessage());
+                }
+            }
+
+            if (dataspaceID >= 0) {
+                try {
+                    H5.H5Sclose(dataspaceID);
+                    dataspaceID = -1;
+                } catch (HDF5LibraryException e) {
+                    throw new ProductIOException(e.getMessage());
+                }
+            }
+
+            if (datasetID >= 0) {
+                try {
+                    H5.H5Dclose(datasetID);
+                    datasetID = -1;
+                } catch (HDF5LibraryException e) {
+                    throw new ProductIOException(e.getMessage());
+                }
+            }
+        }
+        closeMemDataspace();
+        closeRegionDataspace();
+    }
+
+    /**
+     * Retrieves the dataset identifier for the band.
+     *
+     * @return the dataset ID
+     */
+    int getDatasetID() {
+        return datasetID;
+    }
+
+    /**
+     * Retrieves the attributes of the band's dataset, read when the band was opened.
+     *
+     * @return the attribute map
+     */
+    H5AttributeMap getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the product data type of the band's dataset
+     */
+    int getDataType() {
+        return pDataType;
+    }
+
+    /**
+     * @return the user-defined fill value of the band's dataset as a single element sample array,
+     *         or <code>null</code> if the dataset has no user-defined fill value
+     */
+    Object getFillValue() {
+        return fillValue;
+    }
+
+    /**
+     * Retrieves the chunk dimensions of the band's dataset.
+     *
+     * @return the chunk height and width, or <code>null</code> if the dataset is not chunked
+     */
+    int[] getChunkSize() {
+        return chunkWidth > 0 ? new int[]{chunkHeight, chunkWidth} : null;
+    }
+
+    /**
+     * Sets the memory account on which cached chunks of the band are reserved.
+     *
+     * @param memoryAccount the account
+     */
+    void setMemoryAccount(MerisVaMemoryBudget.Account memoryAccount) {
+        this.memoryAccount = memoryAccount;
+    }
+
+    /**
+     * @return the memory account on which cached chunks of the band are reserved
+     */
+    MerisVaMemoryBudget.Account getMemoryAccount() {
+        return memoryAccount;
+    }
+
+    /**
+     * @return <code>true</code> if the band's dataset is stored compressed
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Retrieves the number of read requests served so far.
+     *
+     * @return the read count
+     */
+    synchronized long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Retrieves the mean width of the read requests served so far in source raster co-ordinates.
+     *
+     * @return the mean read width, zero if nothing has been read
+     */
+    synchronized double getMeanReadWidth() {
+        return readCount > 0 ? (double) readWidthSum / readCount : 0.0;
+    }
+
+    /**
+     * Retrieves the number of samples which have been filled with the fill value instead of
+     * being read, since they are outside the valid extent of the band.
+     *
+     * @return the skipped sample count
+     */
+    synchronized long getSkippedSampleCount() {
+        return skippedSampleCount;
+    }
+
+    /**
+     * Retrieves the number of decoded chunks which the chunk cache could not take, since the
+     * memory budget could not provide their size. The samples of such chunks are read directly.
+     *
+     * @return the chunk cache refusal count
+     */
+    long getChunkCacheRefusalCount() {
+        return chunkCacheRefusalCount.get();
+    }
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void countRead(int sourceMinX, int sourceMaxX) {
+        readCount++;
+        readWidthSum += sourceMaxX - sourceMinX + 1;
+    }
+
+    /*
+     * Computes a key ordering pixels by their storage position: by chunk first for chunked
+     * datasets, then row-major.
+     */
+
+    private long getStorageKey(int x, int y) {
+        if (chunkWidth <= 0) {
+            return (long) y * rasterWidth + x;
+        }
+        final int chunkColCount = (rasterWidth + chunkWidth - 1) / chunkWidth;
+        final long chunkIndex = (long) (y / chunkHeight) * chunkColCount + x / chunkWidth;
+        return chunkIndex * chunkWidth * chunkHeight + (y % chunkHeight) * chunkWidth + x % chunkWidth;
+    }
+
+    private boolean readPointsFromChunks(int[] sourceX, int[] sourceY, int pointCount,
+                                         Object dest) throws HDF5Exception {
+        int chunkRow = -1;
+        int chunkCol = -1;
+        Object chunk = null;
+        for (int i = 0; i < pointCount; i++) {
+            final int index = (int) (pointKeys[i] & Integer.MAX_VALUE);
+            final int x = sourceX[index];
+            final int y = sourceY[index];
+            if (y / chunkHeight != chunkRow || x / chunkWidth != chunkCol) {
+                chunkRow = y / chunkHeight;
+                chunkCol = x / chunkWidth;
+                chunk = getChunk(chunkRow, chunkCol);
+                if (chunk == null) {
+                    return false;
+                }
+            }
+            copyElements(chunk, (y % chunkHeight) * chunkWidth + x % chunkWidth, 1, dest, index, 1);
+        }
+        return true;
+    }
+
+    private void closeMemDataspace() {
+        if (memDataspaceID >= 0) {
             try {
-                H5.H5Tclose(dataTypeID);
-                dataTypeID = -1;
+                H5.H5Sclose(memDataspaceID);
             } catch (HDF5LibraryException e) {
-                throw new ProductIOException(e.getMessage());
+                Debug.trace(e);
             }
+            memDataspaceID = -1;
         }
+    }
 
-        if (dataspaceID >= 0) {
+    private void closeRegionDataspace() {
+        if (regionDataspaceID >= 0) {
             try {
-                H5.H5Sclose(dataspaceID);
-                dataspaceID = -1;
+                H5.H5Sclose(regionDataspaceID);
             } catch (HDF5LibraryException e) {
-                throw new ProductIOException(e.getMessage());
+                Debug.trace(e);
             }
+            regionDataspaceID = -1;
+        }
+    }
+
+    /*
+     * Reads the chunking and filters of the dataset. Chunks of compressed datasets are served
+     * from the chunk cache, so that each chunk is inflated only once.
+     */
+
+    private void readStorageLayout() throws HDF5Exception {
+        final long[] chunkDims = H5Utils.getChunkDimensions(datasetID);
+        if (chunkDims != null) {
+            chunkHeight = (int) chunkDims[0];
+            chunkWidth = (int) chunkDims[1];
+            compressed = H5Utils.isFiltered(datasetID);
+        }
+
+        final MerisVaChunkCache cache = MerisVaChunkCache.getInstance();
+        if (compressed && cache.accepts(getChunkBytes())) {
+            chunkCache = cache;
+            pendingReadAheadRows = new BitSet();
+        }
+    }
+
+    /*
+     * Reads the user-defined fill value of the dataset, if any.
+     */
+
+    private void readFillValue() throws HDF5Exception {
+        final byte[] rawFillValue = H5Utils.getFillValue(datasetID, dataTypeID);
+        if (rawFillValue != null) {
+            final Object sampleArray = ProductData.createInstance(pDataType, 1).getElems();
+            fillValue = MerisVaValidExtent.createFillValue(rawFillValue, sampleArray);
+        }
+    }
+
+    /*
+     * Sets up the valid extent of a dataset having a user-defined fill value. The extent is
+     * tracked per chunk row, or per block of rows for contiguous datasets.
+     */
+
+    private void initValidExtent() {
+        if ("off".equals(VALID_EXTENT_MODE)) {
+            return;
+        }
+        if (fillValue != null) {
+            final int blockHeight = chunkHeight > 0 ? chunkHeight : DEFAULT_EXTENT_BLOCK_HEIGHT;
+            validExtent = new MerisVaValidExtent(rasterWidth, rasterHeight, blockHeight, fillValue);
+        }
+    }
+
+    /*
+     * Clips the columns of a read to the valid extent of the rows it covers. Returns false if the
+     * extent is unknown or does not clip the read. Otherwise the first and last column to be read
+     * are left in the extent field, the first being greater than the last if the read covers fill
+     * values only.
+     */
+
+    private boolean clipToValidExtent(int minX, int maxX, int stepX, int minY, int maxY) throws HDF5Exception {
+        if (validExtent == null) {
+            return false;
+        }
+        if (SCAN_VALID_EXTENT) {
+            scanUnknownBlocks(minY, maxY);
+        }
+        if (!validExtent.getExtent(minY, maxY, extent) || extent[0] <= minX && extent[1] >= maxX) {
+            return false;
+        }
+        if (extent[1] < minX || extent[0] > maxX) {
+            extent[0] = 1;
+            extent[1] = 0;
+            return true;
         }
+        final int x0 = firstSampleAtOrAfter(minX, stepX, extent[0]);
+        final int x1 = minX + ((Math.min(maxX, extent[1]) - minX) / stepX) * stepX;
+        extent[0] = x0;
+        extent[1] = x1;
+        return true;
+    }
+
+    /*
+     * Reads the row blocks covering a range of rows whose valid extent is not known yet at
+     * full width and records their valid extent.
+     */
 
-        if (datasetID >= 0) {
+    private void scanUnknownBlocks(int minY, int maxY) throws HDF5Exception {
+        final int blockHeight = validExtent.getBlockHeight();
+        for (int blockMinY = (minY / blockHeight) * blockHeight; blockMinY <= maxY; blockMinY += blockHeight) {
+            if (validExtent.isKnown(blockMinY)) {
+                continue;
+            }
+            final int blockMaxY = Math.min(blockMinY + blockHeight, rasterHeight) - 1;
+            final int lineCount = blockMaxY - blockMinY + 1;
+            final MerisVaBufferPool bufferPool = MerisVaBufferPool.getInstance();
+            final Object samples = bufferPool.acquireArray(pDataType, lineCount * rasterWidth);
             try {
-                H5.H5Dclose(datasetID);
-                datasetID = -1;
-            } catch (HDF5LibraryException e) {
-                throw new ProductIOException(e.getMessage());
+                readSamples(0, rasterWidth - 1, 1, blockMinY, blockMaxY, 1, samples, lineCount, rasterWidth, 0);
+                observeRows(0, rasterWidth - 1, 1, blockMinY, blockMaxY, 1, samples, 0);
+            } finally {
+                bufferPool.releaseArray(pDataType, samples);
             }
         }
-        if (memDataspaceID >= 0) {
+    }
+
+    /*
+     * Records the valid columns of the rows of a read, provided that the read covers the full
+     * width of the dataset.
+     */
+
+    private void observeRows(int minX, int maxX, int stepX, int minY, int maxY, int stepY,
+                             Object samples, int offset) {
+        if (validExtent == null || minX != 0 || maxX != rasterWidth - 1 || stepX != 1) {
+            return;
+        }
+        for (int y = minY, pos = offset; y <= maxY; y += stepY, pos += rasterWidth) {
+            validExtent.observeRow(y, samples, pos);
+        }
+    }
+
+    /*
+     * Reads a region into an array of lines of the given length, starting at the given column
+     * of its first line, either from the decoded chunks or with a single hyperslab read.
+     */
+
+    private void readSamples(int minX, int maxX, int stepX, int minY, int maxY, int stepY,
+                             Object dest, int destLineCount, int destLineLength, int destCol) throws HDF5Exception {
+        if (chunkCache != null) {
+            readFromChunks(minX, maxX, stepX, minY, maxY, stepY, dest, destCol, destLineLength);
+            return;
+        }
+        // the destination is described as a two-dimensional memory dataspace, which is kept as
+        // long as destinations of the same shape are read
+        if (regionDataspaceID < 0 || regionDataspaceLineCount != destLineCount
+            || regionDataspaceLineLength != destLineLength) {
+            closeRegionDataspace();
+            memDims[0] = destLineCount;
+            memDims[1] = destLineLength;
+            regionDataspaceID = H5.H5Screate_simple(2, memDims, memDims);
+            regionDataspaceLineCount = destLineCount;
+            regionDataspaceLineLength = destLineLength;
+        }
+        setFileSelection(minX, maxX, stepX, minY, maxY, stepY);
+        memStart[0] = 0;
+        memStart[1] = destCol;
+        H5.H5Sselect_hyperslab(regionDataspaceID, HDF5Constants.H5S_SELECT_SET, memStart, null, fileCount, null);
+        H5.H5Dread(datasetID, dataTypeID, regionDataspaceID, dataspaceID, HDF5Constants.H5P_DEFAULT, dest);
+    }
+
+    /*
+     * Selects a region of the dataset's file dataspace.
+     */
+
+    private void setFileSelection(int minX, int maxX, int stepX, int minY, int maxY, int stepY) throws HDF5Exception {
+        fileStart[0] = minY;
+        fileStart[1] = minX;
+        fileStride[0] = stepY;
+        fileStride[1] = stepX;
+        fileCount[0] = (maxY - minY) / stepY + 1;
+        fileCount[1] = (maxX - minX) / stepX + 1;
+        H5.H5Sselect_hyperslab(dataspaceID, HDF5Constants.H5S_SELECT_SET, fileStart, fileStride, fileCount, null);
+    }
+
+    private int getChunkBytes() {
+        return chunkWidth * chunkHeight * ProductData.getElemSize(pDataType);
+    }
+
+    /*
+     * Reads a region from the decoded chunks covering it. The samples of chunks which cannot
+     * be cached are read directly. After the read, the chunks of the next chunk row are read
+     * ahead on the chunk cache's pool.
+     *
+     * @param dest           the destination array
+     * @param destPos        the destination position of the first sample
+     * @param destLineLength the number of destination samples per region line
+     */
+
+    private void readFromChunks(int sourceMinX, int sourceMaxX, int sourceStepX,
+                                int sourceMinY, int sourceMaxY, int sourceStepY,
+                                Object dest, int destPos, int destLineLength) throws HDF5Exception {
+        final int firstChunkRow = sourceMinY / chunkHeight;
+        final int lastChunkRow = sourceMaxY / chunkHeight;
+        final int firstChunkCol = sourceMinX / chunkWidth;
+        final int lastChunkCol = sourceMaxX / chunkWidth;
+
+        for (int chunkRow = firstChunkRow; chunkRow <= lastChunkRow; chunkRow++) {
+            final int chunkMinY = chunkRow * chunkHeight;
+            final int y0 = firstSampleAtOrAfter(sourceMinY, sourceStepY, chunkMinY);
+            final int y1 = Math.min(sourceMaxY, chunkMinY + chunkHeight - 1);
+            if (y0 > y1) {
+                continue;
+            }
+            for (int chunkCol = firstChunkCol; chunkCol <= lastChunkCol; chunkCol++) {
+                final int chunkMinX = chunkCol * chunkWidth;
+                final int x0 = firstSampleAtOrAfter(sourceMinX, sourceStepX, chunkMinX);
+                final int x1 = Math.min(sourceMaxX, chunkMinX + chunkWidth - 1);
+                if (x0 > x1) {
+                    continue;
+                }
+                final int count = (x1 - x0) / sourceStepX + 1;
+                final Object chunk = getChunk(chunkRow, chunkCol);
+                if (chunk == null) {
+                    readDirect(x0, x1, sourceStepX, y0, y1, sourceStepY, dest,
+                               destPos + ((y0 - sourceMinY) / sourceStepY) * destLineLength
+                               + (x0 - sourceMinX) / sourceStepX, destLineLength);
+                    continue;
+                }
+                for (int y = y0; y <= y1; y += sourceStepY) {
+                    final int srcPos = (y - chunkMinY) * chunkWidth + (x0 - chunkMinX);
+                    final int dstPos = destPos + ((y - sourceMinY) / sourceStepY) * destLineLength
+                                       + (x0 - sourceMinX) / sourceStepX;
+                    copyElements(chunk, srcPos, sourceStepX, dest, dstPos, count);
+                }
+            }
+        }
+
+        readAheadChunkRow(lastChunkRow + 1, firstChunkCol, lastChunkCol);
+    }
+
+    private static int firstSampleAtOrAfter(int sourceMin, int sourceStep, int bound) {
+        if (bound <= sourceMin) {
+            return sourceMin;
+        }
+        return sourceMin + ((bound - sourceMin + sourceStep - 1) / sourceStep) * sourceStep;
+    }
+
+    /*
+     * Retrieves a decoded chunk from the cache, or reads and caches it. The chunk's size is
+     * reserved before it is inflated, so that a chunk the cache cannot take is not inflated
+     * at all, but counted as refused.
+     *
+     * @return the decoded chunk, or null if the memory budget cannot provide its size
+     */
+
+    private Object getChunk(int chunkRow, int chunkCol) throws HDF5Exception {
+        Object chunk = chunkCache.get(this, chunkRow, chunkCol);
+        if (chunk == null) {
+            if (!memoryAccount.tryReserve(getChunkBytes())) {
+                chunkCacheRefusalCount.incrementAndGet();
+                return null;
+            }
+            boolean cached = false;
             try {
-                H5.H5Sclose(memDataspaceID);
-                memDataspaceID = -1;
-            } catch (HDF5LibraryException e) {
-                throw new ProductIOException(e.getMessage());
+                chunk = readChunk(chunkRow, chunkCol, dataspaceID);
+                chunkCache.put(this, chunkRow, chunkCol, chunk, getChunkBytes());
+                cached = true;
+            } finally {
+                if (!cached) {
+                    memoryAccount.release(getChunkBytes());
+                }
             }
         }
+        return chunk;
     }
 
-    /**
-     * Retrieves the dataset identifier for the band.
+    /*
+     * Reads the samples of a region, which lies within a single chunk, with a hyperslab read
+     * directly into the destination array, bypassing the chunk cache.
      *
-     * @return the dataset ID
+     * @param destPos        the destination position of the first sample
+     * @param destLineLength the number of destination samples per region line
      */
-    int getDatasetID() {
-        return datasetID;
+
+    private void readDirect(int minX, int maxX, int stepX, int minY, int maxY, int stepY,
+                            Object dest, int destPos, int destLineLength) throws HDF5Exception {
+        final int destLength = Array.getLength(dest);
+        if (memDataspaceID < 0 || memDataspaceLength != destLength) {
+            closeMemDataspace();
+            lineMemCount[0] = destLength;
+            memDataspaceID = H5.H5Screate_simple(1, lineMemCount, null);
+            memDataspaceLength = destLength;
+        }
+        setFileSelection(minX, maxX, stepX, minY, maxY, stepY);
+        // the region lines are blocks of the one-dimensional destination, a line length apart
+        lineMemStart[0] = destPos;
+        lineMemStride[0] = fileCount[0] > 1 ? destLineLength : fileCount[1];
+        lineMemCount[0] = fileCount[0];
+        lineMemBlock[0] = fileCount[1];
+        H5.H5Sselect_hyperslab(memDataspaceID, HDF5Constants.H5S_SELECT_SET, lineMemStart, lineMemStride,
+                               lineMemCount, lineMemBlock);
+        H5.H5Dread(datasetID, dataTypeID, memDataspaceID, dataspaceID, HDF5Constants.H5P_DEFAULT, dest);
     }
-    ///////////////////////////////////////////////////////////////////////////
-    // END OF PACKAGE-ACCESS
-    ///////////////////////////////////////////////////////////////////////////
 
-    /**
-     * Creates a line buffer according to the datatype of the dataspace stored.
-     */
-    private void createLineBuffer() {
-        if (pDataType == ProductData.TYPE_FLOAT32) {
-            line = new float[lineWidth];
-        } else if (pDataType == ProductData.TYPE_FLOAT64) {
-            line = new double[lineWidth];
-        } else if ((pDataType == ProductData.TYPE_INT8) || (pDataType == ProductData.TYPE_UINT8)) {
-            line = new byte[lineWidth];
-        } else if ((pDataType == ProductData.TYPE_INT16) || (pDataType == ProductData.TYPE_UINT16)) {
-            line = new short[lineWidth];
-        } else if ((pDataType == ProductData.TYPE_INT32) || (pDataType == ProductData.TYPE_UINT32)) {
-            line = new int[lineWidth];
-        }
-    }
-
-    /*
-     * Copies the data from the line read from file to the ProductData buffer.
-     *
-     * @param destBuffer   the data buffer
-     * @param destArrayPos the offset in samples to the data buffer start
-     */
-
-    private void copyData(ProductData destBuffer, int destArrayPos, int elemCount) {
-        if (pDataType == ProductData.TYPE_FLOAT32) {
-            float[] dest = (float[]) destBuffer.getElems();
-            float[] source = (float[]) line;
-            System.arraycopy(source, 0, dest, destArrayPos, elemCount);
-        } else if (pDataType == ProductData.TYPE_FLOAT64) {
-            double[] dest = (double[]) destBuffer.getElems();
-            double[] source = (double[]) line;
-            System.arraycopy(source, 0, dest, destArrayPos, elemCount);
-        } else if ((pDataType == ProductData.TYPE_INT8) || (pDataType == ProductData.TYPE_UINT8)) {
-            byte[] dest = (byte[]) destBuffer.getElems();
-            byte[] source = (byte[]) line;
-            System.arraycopy(source, 0, dest, destArrayPos, elemCount);
-        } else if ((pDataType == ProductData.TYPE_INT16) || (pDataType == ProductData.TYPE_UINT16)) {
-            short[] dest = (short[]) destBuffer.getElems();
-            short[] source = (short[]) line;
-            System.arraycopy(source, 0, dest, destArrayPos, elemCount);
-        } else if ((pDataType == ProductData.TYPE_INT32) || (pDataType == ProductData.TYPE_UINT32)) {
-            int[] dest = (int[]) destBuffer.getElems();
-            int[] source = (int[]) line;
-            System.arraycopy(source, 0, dest, destArrayPos, elemCount);
+    /*
+     * Reads and inflates a single chunk. Edge chunks are clipped to the dataset extent, but
+     * always stored with a line length of the chunk width. The selection is made on the given
+     * file dataspace, which is the band's own one for foreground reads.
+     */
+
+    private Object readChunk(int chunkRow, int chunkCol, int fileDataspaceID) throws HDF5Exception {
+        final Object chunk = MerisVaBufferPool.getInstance().acquireArray(pDataType, chunkWidth * chunkHeight);
+        final long[] chunkDims = new long[]{chunkHeight, chunkWidth};
+        final long[] start = new long[]{(long) chunkRow * chunkHeight, (long) chunkCol * chunkWidth};
+        final long[] count = new long[]{Math.min(chunkHeight, rasterHeight - start[0]),
+                Math.min(chunkWidth, rasterWidth - start[1])};
+        int chunkDataspaceID = -1;
+        try {
+            chunkDataspaceID = H5.H5Screate_simple(2, chunkDims, chunkDims);
+            H5.H5Sselect_hyperslab(chunkDataspaceID, HDF5Constants.H5S_SELECT_SET, new long[]{0, 0}, null, count,
+                                   null);
+            H5.H5Sselect_hyperslab(fileDataspaceID, HDF5Constants.H5S_SELECT_SET, start, null, count, null);
+            H5.H5Dread(datasetID, dataTypeID, chunkDataspaceID, fileDataspaceID, HDF5Constants.H5P_DEFAULT, chunk);
+        } finally {
+            if (chunkDataspaceID >= 0) {
+                try {
+                    H5.H5Sclose(chunkDataspaceID);
+                } catch (HDF5LibraryException e) {
+                    Debug.trace(e);
+                }
+            }
+        }
+        return chunk;
+    }
+
+    /*
+     * Schedules the chunks of a chunk row for read-ahead, unless they are already cached
+     * or scheduled. The task takes the band's lock only to update the scheduled rows. It reads
+     * and inflates the chunks under the read-ahead lock, with a file dataspace of its own, so
+     * that foreground reads of the band are not blocked meanwhile.
+     */
+
+    private void readAheadChunkRow(final int chunkRow, final int firstChunkCol, final int lastChunkCol) {
+        if (chunkRow * chunkHeight >= rasterHeight
+            || pendingReadAheadRows.get(chunkRow)
+            || chunkCache.contains(this, chunkRow, lastChunkCol)) {
+            return;
+        }
+        pendingReadAheadRows.set(chunkRow);
+        chunkCache.readAhead(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MerisVaBand.this) {
+                    pendingReadAheadRows.clear(chunkRow);
+                }
+                synchronized (readAheadLock) {
+                    if (chunkCache == null) {
+                        return;
+                    }
+                    int fileDataspaceID = -1;
+                    try {
+                        fileDataspaceID = H5.H5Dget_space(datasetID);
+                        for (int chunkCol = firstChunkCol; chunkCol <= lastChunkCol; chunkCol++) {
+                            if (chunkCache.contains(MerisVaBand.this, chunkRow, chunkCol)) {
+                                continue;
+                            }
+                            // the remaining chunks are left to the foreground reads, which read
+                            // their samples directly if the budget is still exhausted then
+                            if (!memoryAccount.tryReserve(getChunkBytes())) {
+                                chunkCacheRefusalCount.incrementAndGet();
+                                break;
+                            }
+                            boolean cached = false;
+                            try {
+                                final Object chunk = readChunk(chunkRow, chunkCol, fileDataspaceID);
+                                chunkCache.put(MerisVaBand.this, chunkRow, chunkCol, chunk, getChunkBytes());
+                                cached = true;
+                            } finally {
+                                if (!cached) {
+                                    memoryAccount.release(getChunkBytes());
+                                }
+                            }
+                        }
+                    } catch (HDF5Exception e) {
+                        Debug.trace(e);
+                    } finally {
+                        if (fileDataspaceID >= 0) {
+                            try {
+                                H5.H5Sclose(fileDataspaceID);
+                            } catch (HDF5LibraryException e) {
+                                Debug.trace(e);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * Copies samples from a source array with the given sub-sampling into a destination array.
+     */
+
+    private static void copyElements(Object source, int sourcePos, int sourceStep,
+                                     Object dest, int destPos, int count) {
+        if (sourceStep == 1) {
+            System.arraycopy(source, sourcePos, dest, destPos, count);
+        } else if (source instanceof float[]) {
+            final float[] s = (float[]) source;
+            final float[] d = (float[]) dest;
+            for (int i = 0; i < count; i++) {
+                d[destPos + i] = s[sourcePos + i * sourceStep];
+            }
+        } else if (source instanceof double[]) {
+            final double[] s = (double[]) source;
+            final double[] d = (double[]) dest;
+            for (int i = 0; i < count; i++) {
+                d[destPos + i] = s[sourcePos + i * sourceStep];
+            }
+        } else if (source instanceof byte[]) {
+            final byte[] s = (byte[]) source;
+            final byte[] d = (byte[]) dest;
+            for (int i = 0; i < count; i++) {
+                d[destPos + i] = s[sourcePos + i * sourceStep];
+            }
+        } else if (source instanceof short[]) {
+            final short[] s = (short[]) source;
+            final short[] d = (short[]) dest;
+            for (int i = 0; i < count; i++) {
+                d[destPos + i] = s[sourcePos + i * sourceStep];
+            }
+        } else if (source instanceof int[]) {
+            final int[] s = (int[]) source;
+            final int[] d = (int[]) dest;
+            for (int i = 0; i < count; i++) {
+                d[destPos + i] = s[sourcePos + i * sourceStep];
+            }
         }
     }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+
+/**
+ * A process-wide pool of primitive sample arrays, bucketed by data type and length, which
+ * are used as hdf5 read targets and handed out as {@link ProductData} views.
+ * <p/>
+ * <p>hdf-java reads directly into the pinned array, so a pooled array can be passed to
+ * consumers without further copies. Arrays are returned with {@link #release} once they are
+ * no longer used; returned arrays are kept up to the size given in MiB by the system property
+ * <code>beam.merisva.bufferPoolSize</code> (default 32) and dropped beyond it. Pooled arrays
+ * are accounted on the shared account of the {@link MerisVaMemoryBudget} and dropped when the
+ * budget asks for memory. The contents of an acquired array are undefined.
+ */
+public class MerisVaBufferPool {
+
+    private static final String POOL_SIZE_PROPERTY = "beam.merisva.bufferPoolSize";
+    private static final long MIB = 1024L * 1024L;
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private static final MerisVaBufferPool INSTANCE = new MerisVaBufferPool(
+            Long.getLong(POOL_SIZE_PROPERTY, 32L) * MIB);
+
+    private final long maxBytes;
+    // the buckets in an open addressing hash table keyed by data type and length, so that
+    // acquiring and releasing arrays does not box the key; at most half of the slots are used
+    private Bucket[] buckets;
+    private int bucketCount;
+    private final MerisVaMemoryBudget.Account memoryAccount;
+    private long pooledBytes;
+    private long hitCount;
+    private long missCount;
+
+    private MerisVaBufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        buckets = new Bucket[MIN_TABLE_SIZE];
+        final MerisVaMemoryBudget memoryBudget = MerisVaMemoryBudget.getInstance();
+        memoryAccount = memoryBudget.getSharedAccount();
+        memoryBudget.addEvictable(new MerisVaMemoryBudget.Evictable() {
+            @Override
+            public long evict(long bytes) {
+                return dropArrays(bytes);
+            }
+        });
+    }
+
+    /**
+     * @return the process-wide buffer pool
+     */
+    public static MerisVaBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Acquires a buffer of exactly the given type and size.
+     *
+     * @param dataType the product data type
+     * @param numElems the number of elements
+     *
+     * @return a view of a pooled array
+     */
+    public ProductData acquire(int dataType, int numElems) {
+        return ProductData.createInstance(dataType, acquireArray(dataType, numElems));
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire} to the pool. The buffer must not be
+     * used any longer.
+     *
+     * @param data the buffer
+     */
+    public void release(ProductData data) {
+        releaseArray(data.getType(), data.getElems());
+    }
+
+    /**
+     * @return the number of bytes currently held by the pool
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return the number of requests served from the pool
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of requests which required a new array
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Acquires a primitive array matching the given product data type.
+     *
+     * @param dataType the product data type
+     * @param numElems the array length
+     *
+     * @return the array
+     */
+    synchronized Object acquireArray(int dataType, int numElems) {
+        final Bucket bucket = findBucket(getKey(dataType, numElems));
+        if (bucket != null && !bucket.arrays.isEmpty()) {
+            hitCount++;
+            pooledBytes -= bucket.arrayBytes;
+            memoryAccount.release(bucket.arrayBytes);
+            return bucket.arrays.remove(bucket.arrays.size() - 1);
+        }
+        missCount++;
+        return createArray(dataType, numElems);
+    }
+
+    /**
+     * Returns a primitive array to the pool.
+     *
+     * @param dataType the product data type the array has been acquired for
+     * @param array    the array
+     */
+    void releaseArray(int dataType, Object array) {
+        final int numElems = Array.getLength(array);
+        final long byteCount = getByteCount(dataType, numElems);
+        // the pool's capacity is claimed in the same step as it is checked, so that concurrent
+        // releases cannot exceed it, and given back if the budget refuses the array
+        synchronized (this) {
+            if (pooledBytes + byteCount > maxBytes) {
+                return;
+            }
+            pooledBytes += byteCount;
+        }
+        // reserved outside of the pool's monitor, since the budget may ask the pool to drop arrays
+        if (!memoryAccount.tryReserve(byteCount)) {
+            synchronized (this) {
+                pooledBytes -= byteCount;
+            }
+            return;
+        }
+        synchronized (this) {
+            final long key = getKey(dataType, numElems);
+            Bucket bucket = findBucket(key);
+            if (bucket == null) {
+                bucket = addBucket(key, byteCount);
+            }
+            bucket.arrays.add(array);
+        }
+    }
+
+    /*
+     * Drops pooled arrays until the given number of bytes has been freed.
+     */
+
+    private synchronized long dropArrays(long bytes) {
+        long droppedBytes = 0;
+        for (int i = 0; i < buckets.length && droppedBytes < bytes; i++) {
+            final Bucket bucket = buckets[i];
+            if (bucket != null) {
+                droppedBytes += bucket.arrayBytes * bucket.arrays.size();
+                bucket.arrays.clear();
+            }
+        }
+        // the emptied buckets are removed from the table
+        rehash();
+        pooledBytes -= droppedBytes;
+        memoryAccount.release(droppedBytes);
+        return droppedBytes;
+    }
+
+    private Bucket findBucket(long key) {
+        final int mask = buckets.length - 1;
+        for (int i = getSlot(key, mask); buckets[i] != null; i = (i + 1) & mask) {
+            if (buckets[i].key == key) {
+                return buckets[i];
+            }
+        }
+        return null;
+    }
+
+    private Bucket addBucket(long key, long arrayBytes) {
+        if (2 * (bucketCount + 1) > buckets.length) {
+            rehash();
+        }
+        final Bucket bucket = new Bucket(key, arrayBytes);
+        insertBucket(bucket);
+        return bucket;
+    }
+
+    /*
+     * Rebuilds the bucket table from the buckets holding arrays, sized to be at most a quarter
+     * full, so that buckets of lengths which are no longer pooled do not accumulate.
+     */
+
+    private void rehash() {
+        final Bucket[] oldBuckets = buckets;
+        int count = 0;
+        for (Bucket bucket : oldBuckets) {
+            if (bucket != null && !bucket.arrays.isEmpty()) {
+                count++;
+            }
+        }
+        int tableSize = MIN_TABLE_SIZE;
+        while (tableSize < 4 * (count + 1)) {
+            tableSize <<= 1;
+        }
+        buckets = new Bucket[tableSize];
+        bucketCount = 0;
+        for (Bucket bucket : oldBuckets) {
+            if (bucket != null && !bucket.arrays.isEmpty()) {
+                insertBucket(bucket);
+            }
+        }
+    }
+
+    private void insertBucket(Bucket bucket) {
+        final int mask = buckets.length - 1;
+        int i = getSlot(bucket.key, mask);
+        while (buckets[i] != null) {
+            i = (i + 1) & mask;
+        }
+        buckets[i] = bucket;
+        bucketCount++;
+    }
+
+    private static int getSlot(long key, int mask) {
+        final int hash = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static long getKey(int dataType, int numElems) {
+        return ((long) dataType << 32) | numElems;
+    }
+
+    private static long getByteCount(int dataType, int numElems) {
+        return (long) numElems * ProductData.getElemSize(dataType);
+    }
+
+    private static Object createArray(int dataType, int numElems) {
+        if (dataType == ProductData.TYPE_FLOAT32) {
+            return new float[numElems];
+        } else if (dataType == ProductData.TYPE_FLOAT64) {
+            return new double[numElems];
+        } else if ((dataType == ProductData.TYPE_INT8) || (dataType == ProductData.TYPE_UINT8)) {
+            return new byte[numElems];
+        } else if ((dataType == ProductData.TYPE_INT16) || (dataType == ProductData.TYPE_UINT16)) {
+            return new short[numElems];
+        } else if ((dataType == ProductData.TYPE_INT32) || (dataType == ProductData.TYPE_UINT32)) {
+            return new int[numElems];
+        }
+        throw new IllegalArgumentException("Unsupported data type: " + dataType);
+    }
+
+    private static class Bucket {
+
+        private final long key;
+        private final long arrayBytes;
+        private final ArrayList<Object> arrays;
+
+        private Bucket(long key, long arrayBytes) {
+            this.key = key;
+            this.arrayBytes = arrayBytes;
+            arrays = new ArrayList<Object>();
+        }
+    }
+}
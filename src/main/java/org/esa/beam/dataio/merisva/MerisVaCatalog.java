@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persisted index of MERIS-VA products, holding the root attributes, the scene dimensions
+ * and the geographic footprint of every product. The index is queried without touching the
+ * HDF5 files again.
+ * <p/>
+ * <p>The index is stored as an UTF-8 text file with one tab-separated line per product.
+ * Use {@link MerisVaCatalogScanner} to create or update it.
+ */
+public class MerisVaCatalog {
+
+    private static final String FILE_HEADER = "# MERIS-VA catalog 1";
+    private static final String CHARSET = "UTF-8";
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructs an empty catalog.
+     */
+    public MerisVaCatalog() {
+        entries = new TreeMap<String, Entry>();
+    }
+
+    /**
+     * Loads a catalog from an index file.
+     *
+     * @param indexFile the index file
+     *
+     * @return the catalog, empty if the file does not exist
+     *
+     * @throws IOException if the file could not be read or has an invalid format
+     */
+    public static MerisVaCatalog load(File indexFile) throws IOException {
+        final MerisVaCatalog catalog = new MerisVaCatalog();
+        if (!indexFile.exists()) {
+            return catalog;
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                                                                               CHARSET));
+        try {
+            final String header = reader.readLine();
+            if (!FILE_HEADER.equals(header)) {
+                throw new IOException("Not a MERIS-VA catalog: " + indexFile);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    catalog.put(Entry.parse(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return catalog;
+    }
+
+    /**
+     * Stores the catalog. The index file is replaced only after the new content has been
+     * written completely.
+     *
+     * @param indexFile the index file
+     *
+     * @throws IOException if the file could not be written
+     */
+    public synchronized void save(File indexFile) throws IOException {
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), CHARSET));
+        try {
+            writer.write(FILE_HEADER);
+            writer.write('\n');
+            for (Entry entry : entries.values()) {
+                entry.format(writer);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to replace catalog: " + indexFile);
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            throw new IOException("Unable to write catalog: " + indexFile);
+        }
+    }
+
+    /**
+     * Adds or replaces the entry of a product.
+     *
+     * @param entry the entry
+     */
+    public synchronized void put(Entry entry) {
+        entries.put(entry.getPath(), entry);
+    }
+
+    /**
+     * Removes the entry of a product.
+     *
+     * @param path the product path
+     */
+    public synchronized void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * Retrieves the entry of a product.
+     *
+     * @param path the product path
+     *
+     * @return the entry, or <code>null</code> if the product is not in the catalog
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * @return all entries, ordered by path
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Finds all products of the given product type.
+     *
+     * @param productType the product type
+     *
+     * @return the matching entries
+     */
+    public List<Entry> findByProductType(String productType) {
+        return findByAttribute(MerisVaConstants.PRODUCT_TYPE_ATT_NAME, productType);
+    }
+
+    /**
+     * Finds all products having a root attribute with the given value.
+     *
+     * @param attributeName the attribute name
+     * @param value         the attribute value
+     *
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByAttribute(String attributeName, String value) {
+        final List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (value.equals(entry.getAttribute(attributeName))) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds all products having a root attribute within the given range. Values are compared
+     * lexicographically, which orders ISO 8601 time stamps correctly.
+     *
+     * @param attributeName the attribute name
+     * @param minValue      the minimum value (inclusive), or <code>null</code>
+     * @param maxValue      the maximum value (inclusive), or <code>null</code>
+     *
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByAttributeRange(String attributeName, String minValue, String maxValue) {
+        final List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            final String value = entry.getAttribute(attributeName);
+            if (value != null
+                && (minValue == null || value.compareTo(minValue) >= 0)
+                && (maxValue == null || value.compareTo(maxValue) <= 0)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds all products whose footprint bounds intersect the given lat/lon bounds. Footprints
+     * crossing the anti-meridian are matched on both sides of it.
+     *
+     * @param geoBounds the bounds in lat/lon co-ordinates (x = longitude, y = latitude)
+     *
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findIntersecting(Rectangle2D geoBounds) {
+        final List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            final Rectangle2D footprintBounds = entry.getFootprintBounds();
+            if (footprintBounds == null) {
+                continue;
+            }
+            if (footprintBounds.intersects(geoBounds)
+                || footprintBounds.getMaxX() > 180.0
+                   && geoBounds.intersects(footprintBounds.getX() - 360.0, footprintBounds.getY(),
+                                           footprintBounds.getWidth(), footprintBounds.getHeight())) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The catalog entry of a single product.
+     */
+    public static class Entry {
+
+        private final String path;
+        private final long lastModified;
+        private final int sceneWidth;
+        private final int sceneHeight;
+        private final float[] footprint;
+        private final Map<String, String> attributes;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param path         the product path
+         * @param lastModified the modification time of the product file
+         * @param sceneWidth   the scene raster width
+         * @param sceneHeight  the scene raster height
+         * @param footprint    the footprint polygon as alternating lat/lon values, may be empty
+         * @param attributes   the root attributes formatted as strings
+         */
+        public Entry(String path, long lastModified, int sceneWidth, int sceneHeight, float[] footprint,
+                     Map<String, String> attributes) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.sceneWidth = sceneWidth;
+            this.sceneHeight = sceneHeight;
+            this.footprint = footprint;
+            this.attributes = new TreeMap<String, String>(attributes);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public int getSceneWidth() {
+            return sceneWidth;
+        }
+
+        public int getSceneHeight() {
+            return sceneHeight;
+        }
+
+        public String getProductType() {
+            return getAttribute(MerisVaConstants.PRODUCT_TYPE_ATT_NAME);
+        }
+
+        /**
+         * @return the footprint polygon as alternating lat/lon values, empty if unknown
+         */
+        public float[] getFootprint() {
+            return footprint.clone();
+        }
+
+        /**
+         * Retrieves the bounds of the footprint. The longitudes of a footprint crossing the
+         * anti-meridian are unwrapped to the range 0 to 360 degrees, so that its bounds do not
+         * span the whole globe; the bounds then extend beyond 180 degrees.
+         *
+         * @return the bounds of the footprint (x = longitude, y = latitude), or <code>null</code> if unknown
+         */
+        public Rectangle2D getFootprintBounds() {
+            if (footprint.length < 2) {
+                return null;
+            }
+            final boolean unwrap = crossesAntiMeridian();
+            final Rectangle2D.Double bounds = new Rectangle2D.Double(getLon(1, unwrap), footprint[0], 0.0, 0.0);
+            for (int i = 2; i < footprint.length; i += 2) {
+                bounds.add(getLon(i + 1, unwrap), footprint[i]);
+            }
+            return bounds;
+        }
+
+        public String getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        public Map<String, String> getAttributes() {
+            return Collections.unmodifiableMap(attributes);
+        }
+
+        /*
+         * Checks whether consecutive points of the closed footprint polygon are more than 180
+         * degrees of longitude apart.
+         */
+
+        private boolean crossesAntiMeridian() {
+            for (int i = 1; i < footprint.length; i += 2) {
+                final int next = (i + 2) % footprint.length;
+                if (Math.abs(footprint[next] - footprint[i]) > 180.0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private double getLon(int index, boolean unwrap) {
+            final double lon = footprint[index];
+            return unwrap && lon < 0.0 ? lon + 360.0 : lon;
+        }
+
+        /*
+         * Writes the entry as a single line: path, modification time, width, height,
+         * footprint and name=value attribute pairs, separated by tabs.
+         */
+
+        private void format(Writer writer) throws IOException {
+            writer.write(escape(path));
+            writer.write('\t');
+            writer.write(Long.toString(lastModified));
+            writer.write('\t');
+            writer.write(Integer.toString(sceneWidth));
+            writer.write('\t');
+            writer.write(Integer.toString(sceneHeight));
+            writer.write('\t');
+            for (int i = 0; i < footprint.length; i++) {
+                if (i > 0) {
+                    writer.write(' ');
+                }
+                writer.write(Float.toString(footprint[i]));
+            }
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                writer.write('\t');
+                writer.write(escape(attribute.getKey()));
+                writer.write('=');
+                writer.write(escape(attribute.getValue()));
+            }
+        }
+
+        private static Entry parse(String line) throws IOException {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length < 5) {
+                throw new IOException("Invalid catalog entry: " + line);
+            }
+            try {
+                final String path = unescape(fields[0]);
+                final long lastModified = Long.parseLong(fields[1]);
+                final int width = Integer.parseInt(fields[2]);
+                final int height = Integer.parseInt(fields[3]);
+                final String[] values = fields[4].length() > 0 ? fields[4].split(" ") : new String[0];
+                final float[] footprint = new float[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    footprint[i] = Float.parseFloat(values[i]);
+                }
+                final Map<String, String> attributes = new TreeMap<String, String>();
+                for (int i = 5; i < fields.length; i++) {
+                    final int sepPos = fields[i].indexOf('=');
+                    if (sepPos < 0) {
+                        throw new IOException("Invalid catalog attribute: " + fields[i]);
+                    }
+                    attributes.put(unescape(fields[i].substring(0, sepPos)), unescape(fields[i].substring(sepPos + 1)));
+                }
+                return new Entry(path, lastModified, width, height, footprint, attributes);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid catalog entry: " + line);
+            }
+        }
+
+        private static String escape(String s) {
+            final StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                if (c == '\\') {
+                    sb.append("\\\\");
+                } else if (c == '\t') {
+                    sb.append("\\t");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else if (c == '=') {
+                    sb.append("\\e");
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static String unescape(String s) {
+            final StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                if (c == '\\' && i + 1 < s.length()) {
+                    final char next = s.charAt(++i);
+                    if (next == 't') {
+                        sb.append('\t');
+                    } else if (next == 'n') {
+                        sb.append('\n');
+                    } else if (next == 'r') {
+                        sb.append('\r');
+                    } else if (next == 'e') {
+                        sb.append('=');
+                    } else {
+                        sb.append(next);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.util.Debug;
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Scans directory trees for MERIS-VA products and records them in a {@link MerisVaCatalog}.
+ * Directories are listed and products are read in parallel. Besides <code>.h5</code> files,
+ * packaged products ({@link MerisVaPackage}) are recorded under the path of the package; they
+ * are decompressed into the {@link MerisVaSpillArea} to be read.
+ * <p/>
+ * <p>Only the root attributes and the LAT/LON tie point grids are read from each file; no
+ * product is created. Products whose modification time equals the one recorded in the catalog
+ * are skipped, and entries of products which have disappeared from the scanned directories are
+ * removed, so repeated scans of an archive are incremental.
+ */
+public class MerisVaCatalogScanner {
+
+    private static final String H5_FILE_EXTENSION = ".h5";
+    private static final int FOOTPRINT_POINTS_PER_EDGE = 8;
+
+    private final MerisVaCatalog catalog;
+    private final int threadCount;
+    private final Logger logger;
+
+    /**
+     * Constructs a scanner updating the given catalog.
+     *
+     * @param catalog     the catalog
+     * @param threadCount the number of files scanned in parallel
+     */
+    public MerisVaCatalogScanner(MerisVaCatalog catalog, int threadCount) {
+        this.catalog = catalog;
+        this.threadCount = threadCount;
+        logger = BeamLogManager.getSystemLogger();
+    }
+
+    /**
+     * Scans the given directory trees and updates the catalog.
+     *
+     * @param roots the root directories
+     *
+     * @return the number of products which have been (re-)scanned
+     *
+     * @throws InterruptedException if the scan has been interrupted
+     */
+    public int scan(File[] roots) throws InterruptedException {
+        removeVanishedEntries(roots);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+                                                                      new MerisVaThreadFactory("merisva-scan"));
+        try {
+            // directories are listed on the pool, products are submitted for reading as soon as
+            // their directory has been listed
+            final LinkedList<Future<Listing>> listings = new LinkedList<Future<Listing>>();
+            for (File root : roots) {
+                listings.add(executor.submit(new Listing(root.getAbsoluteFile())));
+            }
+            final List<Future<MerisVaCatalog.Entry>> futures = new ArrayList<Future<MerisVaCatalog.Entry>>();
+            while (!listings.isEmpty()) {
+                final Listing listing;
+                try {
+                    listing = listings.removeFirst().get();
+                } catch (ExecutionException e) {
+                    logger.warning("Unable to list directory: " + e.getCause().getMessage());
+                    continue;
+                }
+                for (File dir : listing.dirs) {
+                    listings.add(executor.submit(new Listing(dir)));
+                }
+                for (final File file : listing.files) {
+                    final MerisVaCatalog.Entry entry = catalog.get(file.getPath());
+                    if (entry == null || entry.getLastModified() != file.lastModified()) {
+                        futures.add(executor.submit(new Callable<MerisVaCatalog.Entry>() {
+                            @Override
+                            public MerisVaCatalog.Entry call() throws IOException {
+                                return readEntry(file);
+                            }
+                        }));
+                    }
+                }
+            }
+            int scanCount = 0;
+            for (Future<MerisVaCatalog.Entry> future : futures) {
+                try {
+                    catalog.put(future.get());
+                    scanCount++;
+                } catch (ExecutionException e) {
+                    logger.warning("Unable to scan product: " + e.getCause().getMessage());
+                }
+            }
+            return scanCount;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the catalog entry of a single product using header reads only. Packaged products
+     * are decompressed into the spill area first.
+     *
+     * @param file the product file or package
+     *
+     * @return the catalog entry
+     *
+     * @throws IOException if the file is not a readable MERIS-VA product
+     */
+    public static MerisVaCatalog.Entry readEntry(File file) throws IOException {
+        H5Utils.assureLibInitialized();
+
+        final long lastModified = file.lastModified();
+        final MerisVaInputSource inputSource = MerisVaInputSource.create(file);
+        int fileId = -1;
+        int rootGrpID = -1;
+        try {
+            fileId = H5.H5Fopen(inputSource.getFile().getPath(), HDF5Constants.H5F_ACC_RDONLY,
+                                HDF5Constants.H5P_DEFAULT);
+            rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
+
+            final H5AttributeMap rootAttributes = H5Utils.readAttributes(rootGrpID);
+            final Map<String, String> attributes = new HashMap<String, String>();
+            for (String name : rootAttributes.getNames()) {
+                attributes.put(name, rootAttributes.getAsString(name));
+            }
+            final int width = rootAttributes.getInt(MerisVaConstants.SCENE_WIDTH_ATT_NAME, 0);
+            final int height = rootAttributes.getInt(MerisVaConstants.SCENE_HEIGHT_ATT_NAME, 0);
+            final int tiePtColCount = rootAttributes.getInt(MerisVaConstants.TIE_PT_COL_CNT_ATT_NAME, 0);
+            final int tiePtLineCount = rootAttributes.getInt(MerisVaConstants.TIE_PT_LINE_CNT_ATT_NAME, 0);
+            final float[] footprint = readFootprint(fileId, tiePtColCount, tiePtLineCount);
+
+            return new MerisVaCatalog.Entry(file.getPath(), lastModified, width, height, footprint, attributes);
+        } catch (HDF5LibraryException e) {
+            throw new ProductIOException("HDF library error: " + file.getPath() + ": " + e.getMessage());
+        } finally {
+            H5Utils.closeH5G(rootGrpID);
+            H5Utils.closeH5F(fileId);
+            inputSource.close();
+        }
+    }
+
+    /**
+     * Scans the directories given as arguments and updates the catalog index file.
+     *
+     * @param args the index file followed by the root directories
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MerisVaCatalogScanner <index-file> <directory> ...");
+            System.exit(1);
+        }
+        final File indexFile = new File(args[0]);
+        final File[] roots = new File[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            roots[i - 1] = new File(args[i]);
+        }
+
+        final MerisVaCatalog catalog = MerisVaCatalog.load(indexFile);
+        final int threadCount = Runtime.getRuntime().availableProcessors();
+        final int scanCount = new MerisVaCatalogScanner(catalog, threadCount).scan(roots);
+        catalog.save(indexFile);
+        System.out.println(scanCount + " product(s) scanned, " + catalog.getEntries().size() + " in catalog");
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void removeVanishedEntries(File[] roots) {
+        for (MerisVaCatalog.Entry entry : catalog.getEntries()) {
+            final File file = new File(entry.getPath());
+            if (!file.exists() && isInside(file, roots)) {
+                catalog.remove(entry.getPath());
+            }
+        }
+    }
+
+    private static boolean isInside(File file, File[] roots) {
+        for (File root : roots) {
+            final String rootPath = root.getAbsolutePath() + File.separator;
+            if (file.getPath().startsWith(rootPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Reads the boundary of the LAT/LON tie point grids as a closed polygon of alternating
+     * lat/lon values. Returns an empty footprint if the grids are not available.
+     */
+
+    private static float[] readFootprint(int fileId, int tiePtColCount, int tiePtLineCount) {
+        int tiePtGrpID = -1;
+        final float[] latData;
+        final float[] lonData;
+        try {
+            tiePtGrpID = H5Utils.openH5G(fileId, MerisVaConstants.TIE_POINT_GROUP_NAME);
+            latData = H5Utils.readFloatDataset(tiePtGrpID, MerisVaConstants.LAT_TIE_POINT_NAME);
+            lonData = H5Utils.readFloatDataset(tiePtGrpID, MerisVaConstants.LON_TIE_POINT_NAME);
+        } catch (IOException e) {
+            Debug.trace(e);
+            return new float[0];
+        } finally {
+            H5Utils.closeH5G(tiePtGrpID);
+        }
+        if (tiePtColCount < 2 || tiePtLineCount < 2 || latData.length != tiePtColCount * tiePtLineCount
+            || lonData.length != latData.length) {
+            return new float[0];
+        }
+
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final int stepX = Math.max(1, (tiePtColCount - 1) / FOOTPRINT_POINTS_PER_EDGE);
+        final int stepY = Math.max(1, (tiePtLineCount - 1) / FOOTPRINT_POINTS_PER_EDGE);
+        final int lastX = tiePtColCount - 1;
+        final int lastY = tiePtLineCount - 1;
+        for (int x = 0; x < lastX; x += stepX) {
+            indexes.add(x);
+        }
+        for (int y = 0; y < lastY; y += stepY) {
+            indexes.add(y * tiePtColCount + lastX);
+        }
+        for (int x = lastX; x > 0; x -= stepX) {
+            indexes.add(lastY * tiePtColCount + x);
+        }
+        for (int y = lastY; y > 0; y -= stepY) {
+            indexes.add(y * tiePtColCount);
+        }
+
+        final float[] footprint = new float[2 * indexes.size()];
+        for (int i = 0; i < indexes.size(); i++) {
+            footprint[2 * i] = latData[indexes.get(i)];
+            footprint[2 * i + 1] = lonData[indexes.get(i)];
+        }
+        return footprint;
+    }
+
+    /*
+     * Lists a directory, separating the sub-directories from the product files and packages.
+     */
+
+    private static class Listing implements Callable<Listing> {
+
+        private final File dir;
+        private final List<File> dirs;
+        private final List<File> files;
+
+        private Listing(File dir) {
+            this.dir = dir;
+            dirs = new ArrayList<File>();
+            files = new ArrayList<File>();
+        }
+
+        @Override
+        public Listing call() {
+            final File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        dirs.add(child);
+                    } else if (child.getName().toLowerCase().endsWith(H5_FILE_EXTENSION)
+                               || MerisVaPackage.isPackageName(child)) {
+                        files.add(child);
+                    }
+                }
+            }
+            return this;
+        }
+    }
+}
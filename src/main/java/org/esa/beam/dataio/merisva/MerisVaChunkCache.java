@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A process-wide, size-bounded cache of decoded chunks of compressed MERIS-VA datasets.
+ * <p/>
+ * <p>Chunks are evicted in least-recently-used order once the configured size is exceeded, or
+ * when the {@link MerisVaMemoryBudget} asks for memory. Cached chunks are accounted on the
+ * memory account of their band.
+ * The size is given in MiB by the system property <code>beam.merisva.chunkCacheSize</code>
+ * (default 64, 0 disables the cache). Chunk read-ahead runs on a small pool of daemon
+ * threads whose size is given by <code>beam.merisva.chunkThreads</code> (default 2).
+ */
+class MerisVaChunkCache implements MerisVaMemoryBudget.Evictable {
+
+    private static final String CACHE_SIZE_PROPERTY = "beam.merisva.chunkCacheSize";
+    private static final String THREAD_COUNT_PROPERTY = "beam.merisva.chunkThreads";
+    private static final long MIB = 1024L * 1024L;
+
+    private static final MerisVaChunkCache INSTANCE = new MerisVaChunkCache(
+            Long.getLong(CACHE_SIZE_PROPERTY, 64L) * MIB,
+            Integer.getInteger(THREAD_COUNT_PROPERTY, 2));
+
+    private final long maxBytes;
+    private final Map<ChunkKey, Object> chunks;
+    private final Map<ChunkKey, Integer> chunkSizes;
+    private final ExecutorService readAheadExecutor;
+    // the key of lookups, reused under the cache's monitor so that cache hits do not allocate
+    private final ChunkKey probeKey;
+    private long currentBytes;
+
+    private MerisVaChunkCache(long maxBytes, int threadCount) {
+        this.maxBytes = maxBytes;
+        chunks = new LinkedHashMap<ChunkKey, Object>(64, 0.75f, true);
+        chunkSizes = new HashMap<ChunkKey, Integer>();
+        readAheadExecutor = Executors.newFixedThreadPool(Math.max(1, threadCount),
+                                                         new MerisVaThreadFactory("merisva-chunk"));
+        probeKey = new ChunkKey();
+        currentBytes = 0;
+        MerisVaMemoryBudget.getInstance().addEvictable(this);
+    }
+
+    /**
+     * @return the process-wide chunk cache
+     */
+    static MerisVaChunkCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks whether chunks of the given size can be cached at all.
+     *
+     * @param chunkBytes the size of a decoded chunk in bytes
+     *
+     * @return <code>true</code> if the cache accepts chunks of this size
+     */
+    boolean accepts(long chunkBytes) {
+        return chunkBytes > 0 && chunkBytes <= maxBytes / 4;
+    }
+
+    /**
+     * Retrieves a decoded chunk.
+     *
+     * @param band     the band owning the chunk
+     * @param chunkRow the chunk row index
+     * @param chunkCol the chunk column index
+     *
+     * @return the decoded chunk, or <code>null</code> if not cached
+     */
+    synchronized Object get(MerisVaBand band, int chunkRow, int chunkCol) {
+        final Object chunk = chunks.get(probeKey.set(band, chunkRow, chunkCol));
+        probeKey.band = null;
+        return chunk;
+    }
+
+    /**
+     * Checks whether a chunk is cached without affecting the eviction order.
+     */
+    synchronized boolean contains(MerisVaBand band, int chunkRow, int chunkCol) {
+        final boolean contained = chunkSizes.containsKey(probeKey.set(band, chunkRow, chunkCol));
+        probeKey.band = null;
+        return contained;
+    }
+
+    /**
+     * Adds a decoded chunk, evicting the least recently used chunks if necessary. The size of
+     * the chunk must have been reserved on the memory account of its band before, which is
+     * done outside of the cache's monitor, since the budget may ask this cache to evict.
+     * If the chunk is already cached, the reservation is released again.
+     *
+     * @param band       the band owning the chunk
+     * @param chunkRow   the chunk row index
+     * @param chunkCol   the chunk column index
+     * @param chunk      the decoded chunk
+     * @param chunkBytes the size of the decoded chunk in bytes
+     */
+    synchronized void put(MerisVaBand band, int chunkRow, int chunkCol, Object chunk, int chunkBytes) {
+        final ChunkKey key = new ChunkKey().set(band, chunkRow, chunkCol);
+        if (chunks.put(key, chunk) == null) {
+            chunkSizes.put(key, chunkBytes);
+            currentBytes += chunkBytes;
+        } else {
+            band.getMemoryAccount().release(chunkBytes);
+        }
+        evictEldest(maxBytes);
+    }
+
+    /**
+     * Evicts the least recently used chunks.
+     *
+     * @param bytes the number of bytes to be freed
+     *
+     * @return the number of bytes freed
+     */
+    @Override
+    public synchronized long evict(long bytes) {
+        final long bytesBefore = currentBytes;
+        evictEldest(Math.max(0, currentBytes - bytes));
+        return bytesBefore - currentBytes;
+    }
+
+    /**
+     * Removes all chunks of a band.
+     *
+     * @param band the band
+     *
+     * @return the removed chunks
+     */
+    synchronized List<Object> removeAll(MerisVaBand band) {
+        final List<Object> removed = new ArrayList<Object>();
+        final Iterator<Map.Entry<ChunkKey, Object>> iterator = chunks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<ChunkKey, Object> entry = iterator.next();
+            if (entry.getKey().band == band) {
+                removed.add(entry.getValue());
+                iterator.remove();
+                final int chunkBytes = chunkSizes.remove(entry.getKey());
+                currentBytes -= chunkBytes;
+                band.getMemoryAccount().release(chunkBytes);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Schedules a chunk read-ahead task on the read-ahead pool.
+     *
+     * @param task the task
+     */
+    void readAhead(Runnable task) {
+        readAheadExecutor.execute(task);
+    }
+
+    private void evictEldest(long maxCurrentBytes) {
+        final Iterator<ChunkKey> iterator = chunks.keySet().iterator();
+        while (currentBytes > maxCurrentBytes && iterator.hasNext()) {
+            final ChunkKey eldest = iterator.next();
+            iterator.remove();
+            final int chunkBytes = chunkSizes.remove(eldest);
+            currentBytes -= chunkBytes;
+            eldest.band.getMemoryAccount().release(chunkBytes);
+        }
+    }
+
+    private static class ChunkKey {
+
+        private MerisVaBand band;
+        private int chunkRow;
+        private int chunkCol;
+
+        private ChunkKey set(MerisVaBand band, int chunkRow, int chunkCol) {
+            this.band = band;
+            this.chunkRow = chunkRow;
+            this.chunkCol = chunkCol;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChunkKey)) {
+                return false;
+            }
+            final ChunkKey other = (ChunkKey) obj;
+            return band == other.band && chunkRow == other.chunkRow && chunkCol == other.chunkCol;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(band) * 31 + chunkRow) * 31 + chunkCol;
+        }
+    }
+}
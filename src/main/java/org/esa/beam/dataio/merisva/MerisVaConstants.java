@@ -33,6 +33,9 @@ public class MerisVaConstants {
     public static final String ROOT_GROUP_NAME = "/";
     public static final String SCENE_GROUP_NAME = "/SceneData";
     public static final String TIE_POINT_GROUP_NAME = "/TiePointData";
+    public static final String OVERVIEW_GROUP_NAME = "/OverviewData";
+    public static final String OVERVIEW_LEVEL_GROUP_PREFIX = "Level";
+    public static final String OVERVIEW_LEVEL_ATT_NAME = "OverviewLevel";
 
     public static final String LAT_TIE_POINT_NAME = "LAT";
     public static final String LON_TIE_POINT_NAME = "LON";
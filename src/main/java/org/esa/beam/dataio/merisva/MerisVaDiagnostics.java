@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.datamodel.Product;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Diagnostic information about a product opened with the MERIS-VA reader, e.g. the storage
+ * layout of its datasets, the chosen hdf5 cache settings and the observed access pattern.
+ * <p/>
+ * <p>Entries are plain key/value pairs with keys of the form <code>h5.&lt;setting&gt;</code>
+ * for file settings and <code>band.&lt;name&gt;.&lt;property&gt;</code> for band properties.
+ */
+public class MerisVaDiagnostics {
+
+    private final Map<String, String> entries;
+
+    /**
+     * Constructs empty diagnostics.
+     */
+    MerisVaDiagnostics() {
+        entries = new TreeMap<String, String>();
+    }
+
+    /**
+     * Retrieves the diagnostics of a product.
+     *
+     * @param product the product
+     *
+     * @return the diagnostics
+     *
+     * @throws IllegalArgumentException if the product was not opened with the MERIS-VA reader
+     */
+    public static MerisVaDiagnostics getDiagnostics(Product product) {
+        if (!(product.getProductReader() instanceof MerisVaReader)) {
+            throw new IllegalArgumentException("Product has not been read by the MERIS-VA reader");
+        }
+        return ((MerisVaReader) product.getProductReader()).getDiagnostics();
+    }
+
+    /**
+     * Retrieves a single entry.
+     *
+     * @param key the entry key
+     *
+     * @return the value, or <code>null</code> if not present
+     */
+    public synchronized String get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return a snapshot of all entries, ordered by key
+     */
+    public synchronized Map<String, String> getEntries() {
+        return new TreeMap<String, String>(entries);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    synchronized void put(String key, String value) {
+        entries.put(key, value);
+    }
+
+    void put(String key, long value) {
+        put(key, Long.toString(value));
+    }
+}
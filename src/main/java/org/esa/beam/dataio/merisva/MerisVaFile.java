@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lightweight, shared handle to a MERIS-VA file which gives access to the root attributes
+ * and the scene datasets without creating a product.
+ * <p/>
+ * <p>Handles are shared per file and reference counted. The hdf5 file and its datasets are
+ * opened lazily on first access. The number of files kept open is limited by the system
+ * property <code>beam.merisva.maxOpenFiles</code> (default 32); the least recently used files
+ * beyond that limit are closed and reopened transparently when accessed again.
+ */
+class MerisVaFile {
+
+    private static final String MAX_OPEN_FILES_PROPERTY = "beam.merisva.maxOpenFiles";
+    private static final int MAX_OPEN_FILES = Integer.getInteger(MAX_OPEN_FILES_PROPERTY, 32);
+
+    private static final Map<String, MerisVaFile> sharedFiles = new HashMap<String, MerisVaFile>();
+    private static final Map<MerisVaFile, Object> openFiles = new LinkedHashMap<MerisVaFile, Object>(16, 0.75f,
+                                                                                                      true);
+
+    private final String path;
+    private final Map<String, MerisVaBand> bands;
+    private int refCount;
+    private int fileId;
+    private int sceneGrpID;
+    private H5AttributeMap rootAttributes;
+    private int width;
+    private int height;
+
+    private MerisVaFile(String path) {
+        this.path = path;
+        bands = new HashMap<String, MerisVaBand>();
+        fileId = -1;
+        sceneGrpID = -1;
+    }
+
+    /**
+     * Acquires the shared handle of a file. Each call must be balanced by a call to {@link #release}.
+     *
+     * @param file the MERIS-VA file
+     *
+     * @return the handle
+     */
+    static MerisVaFile acquire(File file) {
+        final String path = file.getAbsolutePath();
+        synchronized (sharedFiles) {
+            MerisVaFile handle = sharedFiles.get(path);
+            if (handle == null) {
+                handle = new MerisVaFile(path);
+                sharedFiles.put(path, handle);
+            }
+            handle.refCount++;
+            return handle;
+        }
+    }
+
+    /**
+     * Releases the handle. The file is closed when the last reference has been released.
+     */
+    void release() {
+        synchronized (sharedFiles) {
+            if (--refCount > 0) {
+                return;
+            }
+            sharedFiles.remove(path);
+        }
+        close();
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the root attributes of the file
+     *
+     * @throws IOException if the file could not be opened
+     */
+    H5AttributeMap getRootAttributes() throws IOException {
+        try {
+            synchronized (this) {
+                ensureOpen();
+                return rootAttributes;
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    int getSceneWidth() throws IOException {
+        try {
+            synchronized (this) {
+                ensureOpen();
+                return width;
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    int getSceneHeight() throws IOException {
+        try {
+            synchronized (this) {
+                ensureOpen();
+                return height;
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    /**
+     * Retrieves the attributes of a scene dataset.
+     *
+     * @param bandName the dataset name
+     *
+     * @return the attributes
+     *
+     * @throws IOException if the dataset could not be opened
+     */
+    H5AttributeMap getBandAttributes(String bandName) throws IOException {
+        try {
+            synchronized (this) {
+                return getBand(bandName).getAttributes();
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    /**
+     * Retrieves the product data type of a scene dataset.
+     *
+     * @param bandName the dataset name
+     *
+     * @return the product data type
+     *
+     * @throws IOException if the dataset could not be opened
+     */
+    int getBandDataType(String bandName) throws IOException {
+        try {
+            synchronized (this) {
+                return getBand(bandName).getDataType();
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    /**
+     * Retrieves the user-defined fill value of a scene dataset, see {@link MerisVaBand#getFillValue}.
+     *
+     * @param bandName the dataset name
+     *
+     * @return the fill value, or <code>null</code> if the dataset has no user-defined fill value
+     *
+     * @throws IOException if the dataset could not be opened
+     */
+    Object getBandFillValue(String bandName) throws IOException {
+        try {
+            synchronized (this) {
+                return getBand(bandName).getFillValue();
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    /**
+     * Reads a region of a scene dataset, see {@link MerisVaBand#readRasterRegion}.
+     */
+    void readRegion(String bandName, int sourceMinX, int sourceMaxX, int sourceStepX,
+                    int sourceMinY, int sourceMaxY, int sourceStepY, ProductData destBuffer) throws IOException {
+        try {
+            synchronized (this) {
+                getBand(bandName).readRasterRegion(sourceMinX, sourceMaxX, sourceStepX,
+                                                   sourceMinY, sourceMaxY, sourceStepY, destBuffer);
+            }
+        } finally {
+            trimOpenFiles();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void ensureOpen() throws IOException {
+        if (fileId >= 0) {
+            touch();
+            return;
+        }
+        H5Utils.assureLibInitialized();
+        try {
+            fileId = H5.H5Fopen(path, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+        } catch (HDF5LibraryException e) {
+            throw new ProductIOException("HDF library error: " + path + ": " + e.getMessage());
+        }
+        try {
+            final int rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
+            try {
+                rootAttributes = H5Utils.readAttributes(rootGrpID);
+            } finally {
+                H5Utils.closeH5G(rootGrpID);
+            }
+            width = rootAttributes.getInt(MerisVaConstants.SCENE_WIDTH_ATT_NAME, 0);
+            height = rootAttributes.getInt(MerisVaConstants.SCENE_HEIGHT_ATT_NAME, 0);
+            sceneGrpID = H5Utils.openH5G(fileId, MerisVaConstants.SCENE_GROUP_NAME);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        touch();
+    }
+
+    private MerisVaBand getBand(String bandName) throws IOException {
+        ensureOpen();
+        MerisVaBand band = bands.get(bandName);
+        if (band == null) {
+            band = openBand(bandName);
+            bands.put(bandName, band);
+        }
+        return band;
+    }
+
+    private MerisVaBand openBand(String bandName) throws IOException {
+        int datasetID = -1;
+        int dataspaceID = -1;
+        int dataTypeID = -1;
+        try {
+            datasetID = H5.H5Dopen(sceneGrpID, bandName);
+            dataspaceID = H5.H5Dget_space(datasetID);
+            final long[] dims = new long[2];
+            if (H5.H5Sget_simple_extent_ndims(dataspaceID) != 2) {
+                throw new ProductIOException("Invalid dataset rank: " + bandName);
+            }
+            H5.H5Sget_simple_extent_dims(dataspaceID, dims, new long[2]);
+            if (dims[0] != height || dims[1] != width) {
+                throw new ProductIOException("Invalid dataset size: " + bandName);
+            }
+            dataTypeID = H5.H5Dget_type(datasetID);
+            if (H5Utils.convertHdfToProductDataType(dataTypeID) == ProductData.TYPE_UNDEFINED) {
+                throw new ProductIOException("Invalid dataset data type: " + bandName);
+            }
+            final MerisVaBand band = new MerisVaBand();
+            band.init(datasetID, dataspaceID, dataTypeID, H5Utils.readAttributes(datasetID));
+            return band;
+        } catch (HDF5Exception e) {
+            H5Utils.closeH5T(dataTypeID);
+            H5Utils.closeH5S(dataspaceID);
+            closeDataset(datasetID);
+            throw new ProductIOException("Unable to open dataset '" + bandName + "': " + path + ": " + e.getMessage());
+        } catch (IOException e) {
+            H5Utils.closeH5T(dataTypeID);
+            H5Utils.closeH5S(dataspaceID);
+            closeDataset(datasetID);
+            throw e;
+        }
+    }
+
+    private static void closeDataset(int datasetID) {
+        if (datasetID >= 0) {
+            try {
+                H5.H5Dclose(datasetID);
+            } catch (HDF5LibraryException e) {
+                Debug.trace(e);
+            }
+        }
+    }
+
+    private void touch() {
+        synchronized (openFiles) {
+            openFiles.put(this, Boolean.TRUE);
+        }
+    }
+
+    /*
+     * Closes the hdf5 file and all datasets. The handle stays valid and is reopened on demand.
+     */
+
+    private synchronized void close() {
+        synchronized (openFiles) {
+            openFiles.remove(this);
+        }
+        for (MerisVaBand band : bands.values()) {
+            try {
+                band.close();
+            } catch (IOException e) {
+                Debug.trace(e);
+            }
+        }
+        bands.clear();
+        H5Utils.closeH5G(sceneGrpID);
+        sceneGrpID = -1;
+        H5Utils.closeH5F(fileId);
+        fileId = -1;
+    }
+
+    /*
+     * Closes the least recently used files beyond the open file limit. Must be called after every
+     * access which may have opened a file, and must not be called while holding the lock of a file.
+     */
+
+    private static void trimOpenFiles() {
+        final List<MerisVaFile> victims = new ArrayList<MerisVaFile>();
+        synchronized (openFiles) {
+            int excess = openFiles.size() - MAX_OPEN_FILES;
+            for (MerisVaFile file : openFiles.keySet()) {
+                if (excess-- <= 0) {
+                    break;
+                }
+                victims.add(file);
+            }
+        }
+        for (MerisVaFile file : victims) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable, run-length encoded bitmap over the pixels of a product raster.
+ * <p/>
+ * <p>The set pixels are stored as sorted, disjoint runs of pixel indexes in line-major order,
+ * so that flags which cover large connected areas, like land or cloud, take little memory and
+ * combinations of bitmaps are computed run by run rather than pixel by pixel.
+ */
+public class MerisVaFlagBitmap {
+
+    private final int width;
+    private final int height;
+    private final int[] runStarts;
+    private final int[] runEnds;
+    private final int runCount;
+
+    private MerisVaFlagBitmap(int width, int height, int[] runStarts, int[] runEnds, int runCount) {
+        this.width = width;
+        this.height = height;
+        this.runStarts = runStarts;
+        this.runEnds = runEnds;
+        this.runCount = runCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of runs of set pixels
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @return the number of set pixels
+     */
+    public long getCardinality() {
+        long count = 0;
+        for (int i = 0; i < runCount; i++) {
+            count += runEnds[i] - runStarts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether a pixel is set.
+     *
+     * @param x the X co-ordinate
+     * @param y the Y co-ordinate
+     *
+     * @return <code>true</code> if the pixel is set
+     */
+    public boolean isSet(int x, int y) {
+        final int index = y * width + x;
+        final int run = findRun(index);
+        return run < runCount && runStarts[run] <= index;
+    }
+
+    /**
+     * Checks whether any pixel of a region is set.
+     *
+     * @param region the region in product raster co-ordinates
+     *
+     * @return <code>true</code> if at least one pixel of the region is set
+     */
+    public boolean intersects(Rectangle region) {
+        final Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            final int lineStart = y * width + clipped.x;
+            final int lineEnd = lineStart + clipped.width;
+            final int run = findRun(lineStart);
+            if (run < runCount && runStarts[run] < lineEnd) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the set pixels of a region.
+     *
+     * @param region the region in product raster co-ordinates
+     *
+     * @return the number of set pixels within the region
+     */
+    public long getCardinality(Rectangle region) {
+        final Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+        long count = 0;
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            final int lineStart = y * width + clipped.x;
+            final int lineEnd = lineStart + clipped.width;
+            for (int run = findRun(lineStart); run < runCount && runStarts[run] < lineEnd; run++) {
+                count += Math.min(runEnds[run], lineEnd) - Math.max(runStarts[run], lineStart);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Computes the pixels set in this and the given bitmap.
+     *
+     * @param other a bitmap of the same size
+     *
+     * @return the intersection
+     */
+    public MerisVaFlagBitmap and(MerisVaFlagBitmap other) {
+        checkSize(other);
+        final Builder builder = new Builder(width, height);
+        int i = 0;
+        int j = 0;
+        while (i < runCount && j < other.runCount) {
+            final int start = Math.max(runStarts[i], other.runStarts[j]);
+            final int end = Math.min(runEnds[i], other.runEnds[j]);
+            if (start < end) {
+                builder.addRun(start, end);
+            }
+            if (runEnds[i] < other.runEnds[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return builder.toBitmap();
+    }
+
+    /**
+     * Computes the pixels set in this or the given bitmap.
+     *
+     * @param other a bitmap of the same size
+     *
+     * @return the union
+     */
+    public MerisVaFlagBitmap or(MerisVaFlagBitmap other) {
+        checkSize(other);
+        final Builder builder = new Builder(width, height);
+        int i = 0;
+        int j = 0;
+        while (i < runCount || j < other.runCount) {
+            if (j >= other.runCount || (i < runCount && runStarts[i] <= other.runStarts[j])) {
+                builder.addRun(runStarts[i], runEnds[i]);
+                i++;
+            } else {
+                builder.addRun(other.runStarts[j], other.runEnds[j]);
+                j++;
+            }
+        }
+        return builder.toBitmap();
+    }
+
+    /**
+     * Computes the pixels not set in this bitmap.
+     *
+     * @return the complement
+     */
+    public MerisVaFlagBitmap not() {
+        final Builder builder = new Builder(width, height);
+        int start = 0;
+        for (int i = 0; i < runCount; i++) {
+            if (start < runStarts[i]) {
+                builder.addRun(start, runStarts[i]);
+            }
+            start = runEnds[i];
+        }
+        if (start < width * height) {
+            builder.addRun(start, width * height);
+        }
+        return builder.toBitmap();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return the approximate number of bytes occupied by the bitmap
+     */
+    long getByteCount() {
+        return 8L * runStarts.length;
+    }
+
+    /**
+     * Writes the bitmap.
+     *
+     * @param output the output
+     *
+     * @throws IOException if the bitmap could not be written
+     */
+    void write(DataOutput output) throws IOException {
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(runCount);
+        for (int i = 0; i < runCount; i++) {
+            output.writeInt(runStarts[i]);
+            output.writeInt(runEnds[i] - runStarts[i]);
+        }
+    }
+
+    /**
+     * Reads a bitmap written by {@link #write}.
+     *
+     * @param input the input
+     *
+     * @return the bitmap
+     *
+     * @throws IOException if the bitmap could not be read or is invalid
+     */
+    static MerisVaFlagBitmap read(DataInput input) throws IOException {
+        final int width = input.readInt();
+        final int height = input.readInt();
+        final int runCount = input.readInt();
+        if (width < 0 || height < 0 || runCount < 0) {
+            throw new IOException("Invalid flag bitmap");
+        }
+        final Builder builder = new Builder(width, height);
+        for (int i = 0; i < runCount; i++) {
+            final int start = input.readInt();
+            final int length = input.readInt();
+            if (start < 0 || length <= 0 || start + length > width * height) {
+                throw new IOException("Invalid flag bitmap run");
+            }
+            builder.addRun(start, start + length);
+        }
+        return builder.toBitmap();
+    }
+
+    /*
+     * Finds the first run ending after the given pixel index.
+     */
+
+    private int findRun(int index) {
+        int low = 0;
+        int high = runCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (runEnds[mid] <= index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void checkSize(MerisVaFlagBitmap other) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Bitmaps differ in size");
+        }
+    }
+
+    /**
+     * Creates a bitmap from runs added in ascending order. Overlapping and adjacent runs are
+     * merged.
+     */
+    static class Builder {
+
+        private final int width;
+        private final int height;
+        private int[] runStarts;
+        private int[] runEnds;
+        private int runCount;
+
+        /**
+         * Constructs a builder for a bitmap of the given size.
+         *
+         * @param width  the raster width
+         * @param height the raster height
+         */
+        Builder(int width, int height) {
+            this.width = width;
+            this.height = height;
+            runStarts = new int[16];
+            runEnds = new int[16];
+        }
+
+        /**
+         * Adds a run of set pixels. Runs must be added in ascending order of their start.
+         *
+         * @param start the first pixel index of the run
+         * @param end   the pixel index following the run
+         */
+        void addRun(int start, int end) {
+            if (runCount > 0 && start <= runEnds[runCount - 1]) {
+                runEnds[runCount - 1] = Math.max(runEnds[runCount - 1], end);
+                return;
+            }
+            if (runCount == runStarts.length) {
+                runStarts = Arrays.copyOf(runStarts, 2 * runCount);
+                runEnds = Arrays.copyOf(runEnds, 2 * runCount);
+            }
+            runStarts[runCount] = start;
+            runEnds[runCount] = end;
+            runCount++;
+        }
+
+        /**
+         * @return the bitmap of the runs added so far
+         */
+        MerisVaFlagBitmap toBitmap() {
+            return new MerisVaFlagBitmap(width, height, Arrays.copyOf(runStarts, runCount),
+                                         Arrays.copyOf(runEnds, runCount), runCount);
+        }
+    }
+}
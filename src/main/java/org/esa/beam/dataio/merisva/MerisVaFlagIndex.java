@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Run-length encoded bitmaps of the flags of a MERIS-VA flag band, built in a single pass over
+ * the band.
+ * <p/>
+ * <p>Flag counts, combinations of flags and the question whether a region contains any flagged
+ * or unflagged pixel are answered from the bitmaps without reading the band again. The index of
+ * a flag band is built on first use and kept until the product is closed; its memory is reserved
+ * on the product's account of the {@link MerisVaMemoryBudget}. Indexes of different flag bands
+ * are built concurrently; callers asking for an index being built wait for it. If the system property
+ * <code>beam.merisva.flagIndexDir</code> names a directory, indexes are also stored there and
+ * reused as long as the product file has not been modified.
+ */
+public class MerisVaFlagIndex {
+
+    private static final String INDEX_DIR_PROPERTY = "beam.merisva.flagIndexDir";
+    private static final String FILE_HEADER = "MERIS-VA flag index 1";
+    private static final String FILE_EXTENSION = ".flagidx";
+    private static final int BLOCK_HEIGHT = 64;
+
+    private final String flagBandName;
+    private final Map<String, MerisVaFlagBitmap> bitmaps;
+
+    private MerisVaFlagIndex(String flagBandName, Map<String, MerisVaFlagBitmap> bitmaps) {
+        this.flagBandName = flagBandName;
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * Retrieves the index of a flag band, building it if necessary.
+     *
+     * @param product      the product, must have been opened with the MERIS-VA reader
+     * @param flagBandName the name of a band with a flag coding
+     * @param pm           the progress monitor used while the index is built
+     *
+     * @return the index
+     *
+     * @throws IOException              if the flag band could not be read
+     * @throws IllegalArgumentException if the product was not opened with the MERIS-VA reader
+     *                                  or the band is not a flag band of the product
+     */
+    public static MerisVaFlagIndex getIndex(final Product product, String flagBandName, final ProgressMonitor pm)
+            throws IOException {
+        if (!(product.getProductReader() instanceof MerisVaReader)) {
+            throw new IllegalArgumentException("Product has not been read by the MERIS-VA reader");
+        }
+        final Band band = product.getBand(flagBandName);
+        if (band == null || band.getFlagCoding() == null) {
+            throw new IllegalArgumentException("Not a flag band: " + flagBandName);
+        }
+        final MerisVaReader reader = (MerisVaReader) product.getProductReader();
+        final Map<String, FutureTask<MerisVaFlagIndex>> indexes = reader.getFlagIndexes();
+        // the index is built outside of the map's lock, a placeholder task makes concurrent
+        // callers wait for the same index
+        final FutureTask<MerisVaFlagIndex> task;
+        final boolean builder;
+        synchronized (indexes) {
+            final FutureTask<MerisVaFlagIndex> existing = indexes.get(flagBandName);
+            builder = existing == null;
+            if (builder) {
+                task = new FutureTask<MerisVaFlagIndex>(new Callable<MerisVaFlagIndex>() {
+                    @Override
+                    public MerisVaFlagIndex call() throws IOException {
+                        return loadOrBuild(reader, product, band, pm);
+                    }
+                });
+                indexes.put(flagBandName, task);
+            } else {
+                task = existing;
+            }
+        }
+        if (builder) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flag index: " + flagBandName);
+        } catch (ExecutionException e) {
+            if (builder) {
+                synchronized (indexes) {
+                    if (indexes.get(flagBandName) == task) {
+                        indexes.remove(flagBandName);
+                    }
+                }
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public String getFlagBandName() {
+        return flagBandName;
+    }
+
+    /**
+     * @return the names of the indexed flags
+     */
+    public String[] getFlagNames() {
+        return bitmaps.keySet().toArray(new String[bitmaps.size()]);
+    }
+
+    /**
+     * Retrieves the bitmap of a flag.
+     *
+     * @param flagName the flag name
+     *
+     * @return the bitmap of the pixels having the flag set
+     *
+     * @throws IllegalArgumentException if the flag is unknown
+     */
+    public MerisVaFlagBitmap getBitmap(String flagName) {
+        final MerisVaFlagBitmap bitmap = bitmaps.get(flagName);
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Unknown flag: " + flagName);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Counts the pixels having a flag set.
+     *
+     * @param flagName the flag name
+     *
+     * @return the number of pixels
+     */
+    public long getCount(String flagName) {
+        return getBitmap(flagName).getCardinality();
+    }
+
+    /**
+     * Computes the pixels having all of the given flags set.
+     *
+     * @param flagNames the flag names
+     *
+     * @return the bitmap
+     */
+    public MerisVaFlagBitmap and(String... flagNames) {
+        MerisVaFlagBitmap result = getBitmap(flagNames[0]);
+        for (int i = 1; i < flagNames.length; i++) {
+            result = result.and(getBitmap(flagNames[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Computes the pixels having at least one of the given flags set.
+     *
+     * @param flagNames the flag names
+     *
+     * @return the bitmap
+     */
+    public MerisVaFlagBitmap or(String... flagNames) {
+        MerisVaFlagBitmap result = getBitmap(flagNames[0]);
+        for (int i = 1; i < flagNames.length; i++) {
+            result = result.or(getBitmap(flagNames[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether any pixel of a region has a flag set.
+     *
+     * @param flagName the flag name
+     * @param region   the region in product raster co-ordinates
+     *
+     * @return <code>true</code> if at least one pixel has the flag set
+     */
+    public boolean containsSet(String flagName, Rectangle region) {
+        return getBitmap(flagName).intersects(region);
+    }
+
+    /**
+     * Checks whether any pixel of a region does not have a flag set, e.g. whether a region
+     * contains any valid pixel with respect to an invalid flag.
+     *
+     * @param flagName the flag name
+     * @param region   the region in product raster co-ordinates
+     *
+     * @return <code>true</code> if at least one pixel does not have the flag set
+     */
+    public boolean containsUnset(String flagName, Rectangle region) {
+        final MerisVaFlagBitmap bitmap = getBitmap(flagName);
+        final Rectangle clipped = region.intersection(new Rectangle(0, 0, bitmap.getWidth(), bitmap.getHeight()));
+        return !clipped.isEmpty() && bitmap.getCardinality(clipped) < (long) clipped.width * clipped.height;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Retrieves the index of a flag band if it has already been built, without building it or
+     * waiting for it.
+     *
+     * @param reader       the reader of the product
+     * @param flagBandName the name of the flag band
+     *
+     * @return the index, or <code>null</code> if it has not been built
+     */
+    static MerisVaFlagIndex getBuiltIndex(MerisVaReader reader, String flagBandName) {
+        final Map<String, FutureTask<MerisVaFlagIndex>> indexes = reader.getFlagIndexes();
+        final FutureTask<MerisVaFlagIndex> task;
+        synchronized (indexes) {
+            task = indexes.get(flagBandName);
+        }
+        if (task == null || !task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private long getByteCount() {
+        long byteCount = 0;
+        for (MerisVaFlagBitmap bitmap : bitmaps.values()) {
+            byteCount += bitmap.getByteCount();
+        }
+        return byteCount;
+    }
+
+    /*
+     * Loads the stored index of a flag band or builds it, and reserves its memory.
+     */
+
+    private static MerisVaFlagIndex loadOrBuild(MerisVaReader reader, Product product, Band band,
+                                                ProgressMonitor pm) throws IOException {
+        final String flagBandName = band.getName();
+        MerisVaFlagIndex index = null;
+        final File indexFile = getIndexFile(reader, product, flagBandName);
+        if (indexFile != null && indexFile.exists()) {
+            index = load(indexFile, flagBandName, reader.getInputSource().getFile());
+        }
+        if (index == null) {
+            index = build(product, band.getFlagCoding(), pm);
+            if (indexFile != null) {
+                save(index, indexFile, reader.getInputSource().getFile());
+            }
+        }
+        reader.getMemoryAccount().reserve(index.getByteCount());
+        return index;
+    }
+
+    /*
+     * Builds the bitmaps of all flags of the coding in one pass over the flag band. A run of a
+     * flag is opened at the first pixel having the flag set and closed at the next pixel not
+     * having it; runs continue across line ends.
+     */
+
+    private static MerisVaFlagIndex build(Product product, FlagCoding coding, ProgressMonitor pm)
+            throws IOException {
+        final String[] flagNames = coding.getFlagNames();
+        final int[] flagMasks = new int[flagNames.length];
+        final MerisVaFlagBitmap.Builder[] builders = new MerisVaFlagBitmap.Builder[flagNames.length];
+        final int[] runStarts = new int[flagNames.length];
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        for (int i = 0; i < flagNames.length; i++) {
+            flagMasks[i] = coding.getFlagMask(flagNames[i]);
+            builders[i] = new MerisVaFlagBitmap.Builder(width, height);
+            runStarts[i] = -1;
+        }
+
+        final MerisVaRowIterator iterator = MerisVaRowIterator.create(product, new String[]{coding.getName()},
+                                                                      BLOCK_HEIGHT);
+        pm.beginTask("Indexing flags of band '" + coding.getName() + "'...", height); /*I18N*/
+        try {
+            while (iterator.hasNext()) {
+                if (pm.isCanceled()) {
+                    throw new IOException("Indexing canceled");
+                }
+                final MerisVaRowIterator.RowBlock block = iterator.next();
+                final ProductData data = block.getData(0);
+                final int blockStart = block.getY() * width;
+                final int sampleCount = block.getHeight() * width;
+                for (int k = 0; k < sampleCount; k++) {
+                    final int sample = data.getElemIntAt(k);
+                    for (int i = 0; i < flagMasks.length; i++) {
+                        final boolean set = (sample & flagMasks[i]) == flagMasks[i];
+                        if (set && runStarts[i] < 0) {
+                            runStarts[i] = blockStart + k;
+                        } else if (!set && runStarts[i] >= 0) {
+                            builders[i].addRun(runStarts[i], blockStart + k);
+                            runStarts[i] = -1;
+                        }
+                    }
+                }
+                pm.worked(block.getHeight());
+            }
+        } finally {
+            iterator.close();
+            pm.done();
+        }
+
+        final Map<String, MerisVaFlagBitmap> bitmaps = new LinkedHashMap<String, MerisVaFlagBitmap>();
+        for (int i = 0; i < flagNames.length; i++) {
+            if (runStarts[i] >= 0) {
+                builders[i].addRun(runStarts[i], width * height);
+            }
+            bitmaps.put(flagNames[i], builders[i].toBitmap());
+        }
+        return new MerisVaFlagIndex(coding.getName(), bitmaps);
+    }
+
+    /*
+     * Determines the file of a persisted index, or null if indexes are not persisted. The name
+     * includes the product region and sub-sampling, since the bitmaps refer to the product raster.
+     * Indexes of in-memory products are not persisted.
+     */
+
+    private static File getIndexFile(MerisVaReader reader, Product product, String flagBandName) {
+        final String indexDir = System.getProperty(INDEX_DIR_PROPERTY);
+        final MerisVaInputSource inputSource = reader.getInputSource();
+        if (indexDir == null || inputSource == null || inputSource.isSpilled()) {
+            return null;
+        }
+        final int[] mapping = reader.getSourceMapping();
+        final String inputName = inputSource.getFile().getName();
+        return new File(indexDir, inputName + "_" + flagBandName + "_" + mapping[0] + "_" + mapping[1] + "_"
+                                  + mapping[2] + "_" + mapping[3] + "_" + product.getSceneRasterWidth() + "_"
+                                  + product.getSceneRasterHeight() + FILE_EXTENSION);
+    }
+
+    /*
+     * Loads a persisted index. Returns null if the file is outdated or cannot be read.
+     */
+
+    private static MerisVaFlagIndex load(File indexFile, String flagBandName, File productFile) {
+        try {
+            final DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (!FILE_HEADER.equals(input.readUTF()) || input.readLong() != productFile.lastModified()
+                    || input.readLong() != productFile.length()) {
+                    return null;
+                }
+                final int flagCount = input.readInt();
+                final Map<String, MerisVaFlagBitmap> bitmaps = new LinkedHashMap<String, MerisVaFlagBitmap>();
+                for (int i = 0; i < flagCount; i++) {
+                    final String flagName = input.readUTF();
+                    bitmaps.put(flagName, MerisVaFlagBitmap.read(input));
+                }
+                return new MerisVaFlagIndex(flagBandName, bitmaps);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Debug.trace(e);
+            return null;
+        }
+    }
+
+    /*
+     * Stores an index. The file is written under a temporary name and renamed when complete;
+     * failures are only traced, since the index can always be rebuilt.
+     */
+
+    private static void save(MerisVaFlagIndex index, File indexFile, File productFile) {
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                output.writeUTF(FILE_HEADER);
+                output.writeLong(productFile.lastModified());
+                output.writeLong(productFile.length());
+                output.writeInt(index.bitmaps.size());
+                for (Map.Entry<String, MerisVaFlagBitmap> entry : index.bitmaps.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    entry.getValue().write(output);
+                }
+            } finally {
+                output.close();
+            }
+            if (indexFile.exists() && !indexFile.delete()) {
+                throw new IOException("Unable to replace flag index: " + indexFile);
+            }
+            if (!tmpFile.renameTo(indexFile)) {
+                throw new IOException("Unable to write flag index: " + indexFile);
+            }
+        } catch (IOException e) {
+            Debug.trace(e);
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.Line2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Locates a geographic region in the scene raster using the LAT/LON tie point grids.
+ */
+class MerisVaGeoLocator {
+
+    private MerisVaGeoLocator() {
+    }
+
+    /**
+     * Computes the pixel rectangle covering all tie point cells which intersect the
+     * given geographic region. Regions without area, i.e. points and lines, select the cells
+     * they touch.
+     *
+     * @param latData     the LAT tie point data
+     * @param lonData     the LON tie point data
+     * @param tiePtWidth  the number of tie point columns
+     * @param tiePtHeight the number of tie point lines
+     * @param tiePtSubs   the tie point sub-sampling
+     * @param sceneWidth  the scene raster width
+     * @param sceneHeight the scene raster height
+     * @param geoRegion   the region in lat/lon co-ordinates (x = longitude, y = latitude)
+     *
+     * @return the covering pixel rectangle, empty if the region does not intersect the scene
+     */
+    static Rectangle computePixelRegion(float[] latData, float[] lonData, int tiePtWidth, int tiePtHeight,
+                                        int tiePtSubs, int sceneWidth, int sceneHeight, Shape geoRegion) {
+        final Rectangle2D.Double cellBounds = new Rectangle2D.Double();
+        final List<Line2D> segments = new Area(geoRegion).isEmpty() ? getSegments(geoRegion) : null;
+        Rectangle pixelRegion = null;
+
+        for (int j = 0; j < tiePtHeight - 1; j++) {
+            for (int i = 0; i < tiePtWidth - 1; i++) {
+                final int i0 = j * tiePtWidth + i;
+                final int i1 = i0 + 1;
+                final int i2 = i0 + tiePtWidth;
+                final int i3 = i2 + 1;
+                setCellBounds(cellBounds,
+                              lonData[i0], lonData[i1], lonData[i2], lonData[i3],
+                              latData[i0], latData[i1], latData[i2], latData[i3]);
+                if (intersects(geoRegion, segments, cellBounds)) {
+                    final int x0 = i * tiePtSubs;
+                    final int y0 = j * tiePtSubs;
+                    // the last cell also covers the pixels beyond the last tie point
+                    final int x1 = (i == tiePtWidth - 2) ? sceneWidth - 1 : (i + 1) * tiePtSubs;
+                    final int y1 = (j == tiePtHeight - 2) ? sceneHeight - 1 : (j + 1) * tiePtSubs;
+                    final Rectangle cellRegion = new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+                    if (pixelRegion == null) {
+                        pixelRegion = cellRegion;
+                    } else {
+                        pixelRegion.add(cellRegion);
+                    }
+                }
+            }
+        }
+
+        if (pixelRegion == null) {
+            return new Rectangle();
+        }
+        return pixelRegion.intersection(new Rectangle(0, 0, sceneWidth, sceneHeight));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Sets the lat/lon bounds of a tie point cell. Cells crossing the anti-meridian
+     * are unwrapped to longitudes beyond 180 degrees.
+     */
+
+    private static void setCellBounds(Rectangle2D.Double bounds,
+                                      float lon0, float lon1, float lon2, float lon3,
+                                      float lat0, float lat1, float lat2, float lat3) {
+        double minLon = Math.min(Math.min(lon0, lon1), Math.min(lon2, lon3));
+        double maxLon = Math.max(Math.max(lon0, lon1), Math.max(lon2, lon3));
+        if (maxLon - minLon > 180.0) {
+            minLon = Math.min(Math.min(unwrap(lon0), unwrap(lon1)), Math.min(unwrap(lon2), unwrap(lon3)));
+            maxLon = Math.max(Math.max(unwrap(lon0), unwrap(lon1)), Math.max(unwrap(lon2), unwrap(lon3)));
+        }
+        final double minLat = Math.min(Math.min(lat0, lat1), Math.min(lat2, lat3));
+        final double maxLat = Math.max(Math.max(lat0, lat1), Math.max(lat2, lat3));
+        bounds.setRect(minLon, minLat, maxLon - minLon, maxLat - minLat);
+    }
+
+    private static double unwrap(double lon) {
+        return lon < 0.0 ? lon + 360.0 : lon;
+    }
+
+    /*
+     * Tests a region against the bounds of a cell. Regions without area are tested by their
+     * segments, since Shape.intersects never reports an intersection for them.
+     */
+
+    private static boolean intersects(Shape geoRegion, List<Line2D> segments, Rectangle2D.Double cellBounds) {
+        if (intersects(geoRegion, segments, (Rectangle2D) cellBounds)) {
+            return true;
+        }
+        if (cellBounds.getMaxX() > 180.0) {
+            final Rectangle2D.Double shifted = new Rectangle2D.Double(cellBounds.x - 360.0, cellBounds.y,
+                                                                      cellBounds.width, cellBounds.height);
+            return intersects(geoRegion, segments, shifted);
+        }
+        return false;
+    }
+
+    private static boolean intersects(Shape geoRegion, List<Line2D> segments, Rectangle2D bounds) {
+        if (segments == null) {
+            return geoRegion.intersects(bounds);
+        }
+        for (Line2D segment : segments) {
+            // also true for segments of zero length, i.e. points, on or within the bounds
+            if (bounds.intersectsLine(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Retrieves the outline of a region without area as line segments. A point is returned as
+     * a segment of zero length.
+     */
+
+    private static List<Line2D> getSegments(Shape geoRegion) {
+        final List<Line2D> segments = new ArrayList<Line2D>();
+        final double[] coords = new double[6];
+        double startX = 0.0;
+        double startY = 0.0;
+        double lastX = 0.0;
+        double lastY = 0.0;
+        for (PathIterator iterator = geoRegion.getPathIterator(null, 0.01); !iterator.isDone(); iterator.next()) {
+            switch (iterator.currentSegment(coords)) {
+                case PathIterator.SEG_MOVETO:
+                    startX = coords[0];
+                    startY = coords[1];
+                    segments.add(new Line2D.Double(startX, startY, startX, startY));
+                    break;
+                case PathIterator.SEG_LINETO:
+                    segments.add(new Line2D.Double(lastX, lastY, coords[0], coords[1]));
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    segments.add(new Line2D.Double(lastX, lastY, startX, startY));
+                    coords[0] = startX;
+                    coords[1] = startY;
+                    break;
+                default:
+                    // flattened paths contain no curves
+                    continue;
+            }
+            lastX = coords[0];
+            lastY = coords[1];
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.dataio.ProductSubsetDef;
+import org.esa.beam.framework.datamodel.GeoPos;
+
+import java.awt.Shape;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A product subset definition which selects the product region by a geographic region
+ * instead of a pixel rectangle.
+ * <p/>
+ * <p>The geographic region is given in lat/lon co-ordinates, where the X-axis denotes the
+ * longitude and the Y-axis the latitude. When a MERIS-VA product is opened with this subset
+ * definition, the reader locates the region using the LAT/LON tie point grids and stores the
+ * covering pixel rectangle as the subset region. Products which do not intersect the
+ * geographic region are rejected before any band dataset is opened.
+ */
+public class MerisVaGeoSubsetDef extends ProductSubsetDef {
+
+    private Shape geoRegion;
+
+    /**
+     * Constructs a subset definition for the given geographic region.
+     *
+     * @param geoRegion the region in lat/lon co-ordinates (x = longitude, y = latitude)
+     */
+    public MerisVaGeoSubsetDef(Shape geoRegion) {
+        this.geoRegion = geoRegion;
+    }
+
+    /**
+     * Creates a subset definition for a lat/lon bounding box.
+     *
+     * @param minLat the minimum latitude
+     * @param maxLat the maximum latitude
+     * @param minLon the minimum longitude
+     * @param maxLon the maximum longitude
+     *
+     * @return the subset definition
+     */
+    public static MerisVaGeoSubsetDef createBoundingBox(double minLat, double maxLat, double minLon, double maxLon) {
+        return new MerisVaGeoSubsetDef(new Rectangle2D.Double(minLon, minLat, maxLon - minLon, maxLat - minLat));
+    }
+
+    /**
+     * Creates a subset definition for a closed lat/lon polygon.
+     *
+     * @param vertices the polygon vertices, at least three
+     *
+     * @return the subset definition
+     */
+    public static MerisVaGeoSubsetDef createPolygon(GeoPos[] vertices) {
+        if (vertices.length < 3) {
+            throw new IllegalArgumentException("At least three vertices are required");
+        }
+        final GeneralPath path = new GeneralPath();
+        path.moveTo(vertices[0].lon, vertices[0].lat);
+        for (int i = 1; i < vertices.length; i++) {
+            path.lineTo(vertices[i].lon, vertices[i].lat);
+        }
+        path.closePath();
+        return new MerisVaGeoSubsetDef(path);
+    }
+
+    /**
+     * Retrieves the geographic region.
+     *
+     * @return the region in lat/lon co-ordinates (x = longitude, y = latitude)
+     */
+    public Shape getGeoRegion() {
+        return geoRegion;
+    }
+
+    /**
+     * Sets the geographic region.
+     *
+     * @param geoRegion the region in lat/lon co-ordinates (x = longitude, y = latitude)
+     */
+    public void setGeoRegion(Shape geoRegion) {
+        this.geoRegion = geoRegion;
+    }
+}
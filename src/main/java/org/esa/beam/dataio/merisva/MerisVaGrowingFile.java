@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives access to the completed lines of a MERIS-VA file while it is still being written.
+ * <p/>
+ * <p>The file is polled: whenever its size or modification time has changed, and at every poll
+ * within a few seconds after such a change, it is reopened and the number of available lines
+ * is taken as the minimum of the root attribute <code>SceneLineCount</code> and the line
+ * extents of the datasets in <code>/SceneData</code>.
+ * Newly available lines are reported to the registered {@link Listener}s and can be awaited
+ * with {@link #awaitLines}; they are read with {@link #readLines}. The writer is expected to
+ * extend the scene datasets, write and flush the new lines and only then update
+ * <code>SceneLineCount</code> and flush again. The file is complete once every scene dataset
+ * has reached its maximum extent and <code>SceneLineCount</code> equals it; files written with
+ * unlimited extents never complete and are watched until {@link #close} is called.
+ * <p/>
+ * <p>The hdf5 library used by the reader does not support concurrent single-writer/multi-reader
+ * access, so the file is always reopened instead of refreshed, and a poll which finds the file
+ * in an inconsistent state is simply repeated at the next interval. See
+ * {@link MerisVaWriterSimulator} for a writer producing such files from an existing product.
+ */
+public class MerisVaGrowingFile {
+
+    /**
+     * Is informed about lines becoming available. Listeners are called on the polling thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when lines have become available.
+         *
+         * @param file      the growing file
+         * @param firstLine the first new line
+         * @param lineCount the number of new lines
+         */
+        void linesAvailable(MerisVaGrowingFile file, int firstLine, int lineCount);
+
+        /**
+         * Called once when the file is complete. No further lines will become available.
+         *
+         * @param file the growing file
+         */
+        void completed(MerisVaGrowingFile file);
+    }
+
+    private static final long DEFAULT_POLL_INTERVAL_MILLIS = 500;
+    private static final int REOPEN_ATTEMPTS = 5;
+    private static final long REOPEN_PAUSE_MILLIS = 20;
+    // longer than the resolution of file modification times, which is a second on many file systems
+    private static final long CHANGE_GRACE_MILLIS = 3000;
+
+    private final File file;
+    private final List<Listener> listeners;
+    private final MerisVaMemoryBudget.Account memoryAccount;
+    private long pollIntervalMillis;
+    private ScheduledExecutorService poller;
+    private Snapshot snapshot;
+    private String[] bandNames;
+    private long lastModified;
+    private long lastLength;
+    private long lastChangeMillis;
+    private int availableLineCount;
+    private int sceneWidth;
+    private boolean complete;
+    private boolean closed;
+
+    /**
+     * Constructs a watcher for the given file. The file need not exist yet.
+     *
+     * @param file the MERIS-VA file being written
+     */
+    public MerisVaGrowingFile(File file) {
+        this.file = file;
+        listeners = new CopyOnWriteArrayList<Listener>();
+        memoryAccount = MerisVaMemoryBudget.getInstance().createAccount(file.getName());
+        pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+        lastModified = -1;
+        lastLength = -1;
+        bandNames = new String[0];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the interval at which the file is polled once {@link #start} has been called.
+     *
+     * @param pollIntervalMillis the interval in milliseconds
+     */
+    public void setPollInterval(long pollIntervalMillis) {
+        if (pollIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid poll interval: " + pollIntervalMillis);
+        }
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts polling the file on a background thread. Polling stops when the file is complete
+     * or the watcher is closed.
+     */
+    public synchronized void start() {
+        if (closed) {
+            throw new IllegalStateException("Watcher has been closed");
+        }
+        if (poller != null) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(new MerisVaThreadFactory("merisva-watch"));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (IOException e) {
+                    Debug.trace(e);
+                }
+            }
+        }, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Polls the file once and informs the listeners about new lines. Callers not using
+     * {@link #start} may call this method at their own pace.
+     *
+     * @return <code>true</code> if new lines have become available
+     *
+     * @throws IOException if the watcher has been closed
+     */
+    public boolean poll() throws IOException {
+        final int firstLine;
+        final int lineCount;
+        final boolean completedNow;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Watcher has been closed");
+            }
+            if (complete || !hasChanged()) {
+                return false;
+            }
+            // hdf5 shares a file which is still open together with the metadata read so far, so the
+            // current snapshot has to be closed before the file is reopened
+            closeSnapshot();
+            snapshot = openSnapshot();
+            if (snapshot == null) {
+                // retried at the next poll; until then readLines reopens the file on demand
+                lastModified = -1;
+                return false;
+            }
+            sceneWidth = snapshot.width;
+            bandNames = snapshot.bands.keySet().toArray(new String[snapshot.bands.size()]);
+            firstLine = availableLineCount;
+            lineCount = Math.max(0, snapshot.lineCount - availableLineCount);
+            availableLineCount += lineCount;
+            completedNow = snapshot.complete && availableLineCount == snapshot.lineCount;
+            complete = completedNow;
+            notifyAll();
+        }
+        if (lineCount > 0) {
+            for (Listener listener : listeners) {
+                listener.linesAvailable(this, firstLine, lineCount);
+            }
+        }
+        if (completedNow) {
+            stopPolling();
+            for (Listener listener : listeners) {
+                listener.completed(this);
+            }
+        }
+        return lineCount > 0;
+    }
+
+    /**
+     * @return the number of lines which can be read, counted from the first scene line
+     */
+    public synchronized int getAvailableLineCount() {
+        return availableLineCount;
+    }
+
+    /**
+     * @return the number of samples per line, or 0 if the file has not been read yet
+     */
+    public synchronized int getSceneWidth() {
+        return sceneWidth;
+    }
+
+    /**
+     * @return <code>true</code> if the file is complete
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Waits until the given number of lines is available, the file is complete or the timeout
+     * has elapsed. The file must be polled meanwhile, see {@link #start}.
+     *
+     * @param lineCount     the number of lines
+     * @param timeoutMillis the maximum waiting time in milliseconds
+     *
+     * @return the number of available lines
+     *
+     * @throws InterruptedException if the waiting thread has been interrupted
+     */
+    public synchronized int awaitLines(int lineCount, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (availableLineCount < lineCount && !complete && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return availableLineCount;
+    }
+
+    /**
+     * @return the names of the scene datasets, or an empty array if the file has not been read yet
+     */
+    public synchronized String[] getBandNames() {
+        return bandNames.clone();
+    }
+
+    /**
+     * Retrieves the product data type of a scene dataset.
+     *
+     * @param bandName the dataset name
+     *
+     * @return the product data type
+     *
+     * @throws IOException if the dataset is not available
+     */
+    public synchronized int getBandDataType(String bandName) throws IOException {
+        return getBand(bandName).getDataType();
+    }
+
+    /**
+     * Reads complete lines of a scene dataset. Only available lines can be read.
+     *
+     * @param bandName   the dataset name
+     * @param y          the first line
+     * @param height     the number of lines
+     * @param destBuffer the destination buffer, filled from its start
+     *
+     * @throws IOException if the lines are not available or could not be read
+     */
+    public synchronized void readLines(String bandName, int y, int height, ProductData destBuffer)
+            throws IOException {
+        if (y < 0 || height <= 0 || y + height > availableLineCount) {
+            throw new ProductIOException("Lines " + y + " to " + (y + height - 1) + " are not available: "
+                                         + file.getPath());
+        }
+        getBand(bandName).readRasterRegion(0, sceneWidth - 1, 1, y, y + height - 1, 1, destBuffer);
+    }
+
+    /**
+     * Stops polling and closes the file.
+     */
+    public void close() {
+        stopPolling();
+        synchronized (this) {
+            closed = true;
+            closeSnapshot();
+            notifyAll();
+        }
+        memoryAccount.close();
+    }
+
+    /**
+     * Watches the file given as argument and prints the lines as they become available.
+     *
+     * @param args the options followed by the file
+     */
+    public static void main(String[] args) throws Exception {
+        long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+        int argIndex = 0;
+        try {
+            while (argIndex < args.length - 1 && args[argIndex].startsWith("-")) {
+                final String option = args[argIndex++];
+                final String value = args[argIndex++];
+                if ("-interval".equals(option)) {
+                    pollIntervalMillis = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            argIndex = -1;
+        }
+        if (argIndex < 0 || args.length - argIndex != 1) {
+            System.out.println("Usage: MerisVaGrowingFile [-interval <millis>] <file>");
+            System.exit(1);
+        }
+
+        final long startMillis = System.currentTimeMillis();
+        final MerisVaGrowingFile growingFile = new MerisVaGrowingFile(new File(args[argIndex]));
+        growingFile.setPollInterval(pollIntervalMillis);
+        growingFile.addListener(new Listener() {
+            @Override
+            public void linesAvailable(MerisVaGrowingFile file, int firstLine, int lineCount) {
+                System.out.println((System.currentTimeMillis() - startMillis) + " ms: lines " + firstLine + " to "
+                                   + (firstLine + lineCount - 1) + " available");
+            }
+
+            @Override
+            public void completed(MerisVaGrowingFile file) {
+                System.out.println((System.currentTimeMillis() - startMillis) + " ms: complete, "
+                                   + file.getAvailableLineCount() + " lines");
+            }
+        });
+        growingFile.start();
+        while (!growingFile.isComplete()) {
+            growingFile.awaitLines(Integer.MAX_VALUE, 1000);
+        }
+        growingFile.close();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Checks whether the file has to be reopened. Modification times are coarse and the final
+     * SceneLineCount update is written in place without changing the file length, so the file is
+     * also reopened for a grace period after the last observed change.
+     */
+
+    private boolean hasChanged() {
+        final long modified = file.lastModified();
+        final long length = file.length();
+        final long now = System.currentTimeMillis();
+        if (modified != lastModified || length != lastLength) {
+            lastModified = modified;
+            lastLength = length;
+            lastChangeMillis = now;
+        }
+        return modified != 0 && now - lastChangeMillis < CHANGE_GRACE_MILLIS;
+    }
+
+    /*
+     * Retrieves a dataset of the current snapshot. If the last poll could not reopen the file, it
+     * is reopened here, so that lines which have been reported stay readable.
+     */
+
+    private MerisVaBand getBand(String bandName) throws IOException {
+        if (snapshot == null && !closed && availableLineCount > 0) {
+            snapshot = openSnapshot();
+        }
+        final MerisVaBand band = snapshot != null ? snapshot.bands.get(bandName) : null;
+        if (band == null) {
+            throw new ProductIOException("Band not available: " + bandName);
+        }
+        return band;
+    }
+
+    private void stopPolling() {
+        final ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = poller;
+            poller = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /*
+     * Opens the file and all scene datasets. A snapshot is only accepted if it covers the lines
+     * which have already been reported. While the writer is updating the file, opening may fail;
+     * it is retried a few times before null is returned.
+     */
+
+    private Snapshot openSnapshot() {
+        for (int attempt = 1; attempt <= REOPEN_ATTEMPTS; attempt++) {
+            final Snapshot opened = new Snapshot();
+            try {
+                H5Utils.assureLibInitialized();
+                opened.open(file.getPath(), memoryAccount);
+                if (opened.lineCount >= availableLineCount) {
+                    return opened;
+                }
+                opened.close();
+            } catch (IOException e) {
+                opened.close();
+                Debug.trace(e);
+            } catch (HDF5Exception e) {
+                opened.close();
+                Debug.trace(e);
+            }
+            if (attempt < REOPEN_ATTEMPTS) {
+                try {
+                    Thread.sleep(REOPEN_PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void closeSnapshot() {
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+    }
+
+    /*
+     * The file as seen by a single open.
+     */
+
+    private static class Snapshot {
+
+        private final Map<String, MerisVaBand> bands;
+        private int fileId;
+        private int sceneGrpID;
+        private int width;
+        private int lineCount;
+        private boolean complete;
+
+        private Snapshot() {
+            bands = new LinkedHashMap<String, MerisVaBand>();
+            fileId = -1;
+            sceneGrpID = -1;
+        }
+
+        private void open(String path, MerisVaMemoryBudget.Account memoryAccount) throws IOException,
+                                                                                        HDF5Exception {
+            fileId = H5.H5Fopen(path, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+            final int rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
+            final H5AttributeMap rootAttributes;
+            try {
+                rootAttributes = H5Utils.readAttributes(rootGrpID);
+            } finally {
+                H5Utils.closeH5G(rootGrpID);
+            }
+            width = rootAttributes.getInt(MerisVaConstants.SCENE_WIDTH_ATT_NAME, 0);
+            final int sceneLineCount = rootAttributes.getInt(MerisVaConstants.SCENE_HEIGHT_ATT_NAME, 0);
+            lineCount = sceneLineCount;
+            complete = true;
+
+            sceneGrpID = H5Utils.openH5G(fileId, MerisVaConstants.SCENE_GROUP_NAME);
+            for (String name : H5Utils.getMemberNames(fileId, MerisVaConstants.SCENE_GROUP_NAME)) {
+                final int datasetID = H5.H5Dopen(sceneGrpID, name);
+                int dataspaceID = -1;
+                int dataTypeID = -1;
+                boolean opened = false;
+                try {
+                    dataspaceID = H5.H5Dget_space(datasetID);
+                    final long[] dims = new long[2];
+                    final long[] maxDims = new long[2];
+                    if (H5.H5Sget_simple_extent_ndims(dataspaceID) != 2) {
+                        throw new ProductIOException("Invalid dataset rank: " + name);
+                    }
+                    H5.H5Sget_simple_extent_dims(dataspaceID, dims, maxDims);
+                    if (dims[1] != width) {
+                        throw new ProductIOException("Invalid dataset width: " + name);
+                    }
+                    dataTypeID = H5.H5Dget_type(datasetID);
+                    if (H5Utils.convertHdfToProductDataType(dataTypeID) == ProductData.TYPE_UNDEFINED) {
+                        throw new ProductIOException("Invalid dataset data type: " + name);
+                    }
+                    lineCount = (int) Math.min(lineCount, dims[0]);
+                    complete &= maxDims[0] != HDF5Constants.H5S_UNLIMITED && dims[0] == maxDims[0];
+
+                    final MerisVaBand band = new MerisVaBand();
+                    band.init(datasetID, dataspaceID, dataTypeID, H5Utils.readAttributes(datasetID));
+                    band.setMemoryAccount(memoryAccount);
+                    bands.put(name, band);
+                    opened = true;
+                } finally {
+                    if (!opened) {
+                        H5Utils.closeH5T(dataTypeID);
+                        H5Utils.closeH5S(dataspaceID);
+                        closeDataset(datasetID);
+                    }
+                }
+            }
+            complete &= !bands.isEmpty() && lineCount == sceneLineCount;
+        }
+
+        private static void closeDataset(int datasetID) {
+            try {
+                H5.H5Dclose(datasetID);
+            } catch (HDF5LibraryException e) {
+                Debug.trace(e);
+            }
+        }
+
+        private void close() {
+            for (MerisVaBand band : bands.values()) {
+                try {
+                    band.close();
+                } catch (IOException e) {
+                    Debug.trace(e);
+                }
+            }
+            bands.clear();
+            H5Utils.closeH5G(sceneGrpID);
+            sceneGrpID = -1;
+            H5Utils.closeH5F(fileId);
+            fileId = -1;
+        }
+    }
+}
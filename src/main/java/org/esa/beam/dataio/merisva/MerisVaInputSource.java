@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The hdf5 file read for a reader input. File inputs are read in place; products given as
+ * <code>byte[]</code>, {@link ByteBuffer} or {@link ImageInputStream} are spilled to the
+ * {@link MerisVaSpillArea} first and the spill file is deleted when the source is closed.
+ * Streams are read from their current position to their end. Packaged products
+ * ({@link MerisVaPackage}) are decompressed into the spill area once per content and shared.
+ */
+class MerisVaInputSource {
+
+    // the hdf5 superblock signature, found at offset 0 or at a user block size of 512 bytes
+    // or a power of two multiple of it
+    private static final byte[] HDF5_SIGNATURE = new byte[]{(byte) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n'};
+    private static final int MAX_SIGNATURE_OFFSET = 8192;
+
+    private final File file;
+    private final boolean spilled;
+    private final String contentKey;
+
+    private MerisVaInputSource(File file, boolean spilled, String contentKey) {
+        this.file = file;
+        this.spilled = spilled;
+        this.contentKey = contentKey;
+    }
+
+    /**
+     * Creates the source of a reader input.
+     *
+     * @param input a <code>String</code> or <code>File</code> naming a product or package,
+     *              a <code>byte[]</code>, <code>ByteBuffer</code> or <code>ImageInputStream</code>
+     *
+     * @return the source
+     *
+     * @throws IOException if an in-memory input or a package could not be spilled
+     */
+    static MerisVaInputSource create(Object input) throws IOException {
+        final MerisVaSpillArea spillArea = MerisVaSpillArea.getInstance();
+        if (input instanceof byte[]) {
+            return new MerisVaInputSource(spillArea.spill((byte[]) input), true, null);
+        } else if (input instanceof ByteBuffer) {
+            return new MerisVaInputSource(spillArea.spill((ByteBuffer) input), true, null);
+        } else if (input instanceof ImageInputStream) {
+            final ImageInputStream stream = (ImageInputStream) input;
+            return new MerisVaInputSource(spillArea.spill(new MerisVaSpillArea.Source() {
+                @Override
+                public int read(byte[] buffer) throws IOException {
+                    return stream.read(buffer);
+                }
+
+                @Override
+                public void close() {
+                    // the stream is owned by the caller
+                }
+            }), true, null);
+        }
+        final File file = new File(input.toString());
+        if (MerisVaPackage.isPackageName(file)) {
+            final MerisVaPackage productPackage = MerisVaPackage.open(file);
+            final String contentKey = productPackage.getContentKey();
+            final File spillFile = spillArea.acquire(contentKey, productPackage.getProductName(),
+                                                     productPackage.getProductSize(),
+                                                     productPackage.createSource());
+            return new MerisVaInputSource(spillFile, true, contentKey);
+        }
+        return new MerisVaInputSource(file, false, null);
+    }
+
+    /**
+     * Checks whether an input is held in memory or given as stream.
+     *
+     * @param input the input
+     *
+     * @return <code>true</code> for <code>byte[]</code>, <code>ByteBuffer</code> and
+     *         <code>ImageInputStream</code> inputs
+     */
+    static boolean isInMemory(Object input) {
+        return input instanceof byte[] || input instanceof ByteBuffer || input instanceof ImageInputStream;
+    }
+
+    /**
+     * Checks whether an in-memory input starts with a hdf5 superblock. Only the leading bytes
+     * are inspected; the position of buffers and streams is not changed.
+     *
+     * @param input a <code>byte[]</code>, <code>ByteBuffer</code> or <code>ImageInputStream</code>
+     *
+     * @return <code>true</code> if the hdf5 signature has been found
+     *
+     * @throws IOException if the stream could not be read
+     */
+    static boolean hasHdf5Signature(Object input) throws IOException {
+        final byte[] head = readHead(input, MAX_SIGNATURE_OFFSET + HDF5_SIGNATURE.length);
+        return findSignature(head);
+    }
+
+    /**
+     * Checks whether the leading bytes of a file hold a hdf5 superblock signature.
+     *
+     * @param head the leading bytes
+     *
+     * @return <code>true</code> if the hdf5 signature has been found
+     */
+    static boolean findSignature(byte[] head) {
+        for (int offset = 0; offset + HDF5_SIGNATURE.length <= head.length; offset = offset == 0 ? 512 : 2 * offset) {
+            int i = 0;
+            while (i < HDF5_SIGNATURE.length && head[offset + i] == HDF5_SIGNATURE[i]) {
+                i++;
+            }
+            if (i == HDF5_SIGNATURE.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the hdf5 file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return <code>true</code> if the file is a spill file of an in-memory input
+     */
+    boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Closes the source, deleting the spill file, if any. The hdf5 file must have been closed before.
+     */
+    void close() {
+        if (contentKey != null) {
+            MerisVaSpillArea.getInstance().release(contentKey);
+        } else if (spilled) {
+            MerisVaSpillArea.getInstance().release(file);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static byte[] readHead(Object input, int maxLength) throws IOException {
+        if (input instanceof byte[]) {
+            final byte[] content = (byte[]) input;
+            final byte[] head = new byte[Math.min(maxLength, content.length)];
+            System.arraycopy(content, 0, head, 0, head.length);
+            return head;
+        } else if (input instanceof ByteBuffer) {
+            final ByteBuffer buffer = ((ByteBuffer) input).duplicate();
+            final byte[] head = new byte[Math.min(maxLength, buffer.remaining())];
+            buffer.get(head);
+            return head;
+        } else if (input instanceof ImageInputStream) {
+            final ImageInputStream stream = (ImageInputStream) input;
+            final byte[] head = new byte[maxLength];
+            int length = 0;
+            stream.mark();
+            try {
+                int count;
+                while (length < maxLength && (count = stream.read(head, length, maxLength - length)) > 0) {
+                    length += count;
+                }
+            } finally {
+                stream.reset();
+            }
+            final byte[] trimmed = new byte[length];
+            System.arraycopy(head, 0, trimmed, 0, length);
+            return trimmed;
+        }
+        return new byte[0];
+    }
+}
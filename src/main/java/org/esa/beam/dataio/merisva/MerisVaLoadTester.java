@@ -0,0 +1,689 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.MetadataElement;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs mixed concurrent reads against MERIS-VA products for a fixed duration and reports how
+ * the reader behaves under load.
+ * <p/>
+ * <p>Every product is opened twice, at full resolution and sub-sampled by 2, and the worker
+ * threads issue random tile, line, sub-sampled tile and metadata reads through
+ * {@link MerisVaReader}. The report gives the throughput, latency percentiles per kind of read,
+ * the share of time worker threads were blocked on a {@link MerisVaBand} monitor, the number of
+ * open hdf5 objects before, during and after the run, and the heap usage. A sample of the reads
+ * is replayed single-threaded on freshly opened products and the results are compared, so the
+ * harness also detects data races and handle leaks.
+ */
+public class MerisVaLoadTester {
+
+    /**
+     * The kinds of reads issued by the worker threads.
+     */
+    public enum ReadKind {
+        TILE,
+        LINE,
+        SUBSAMPLED,
+        METADATA
+    }
+
+    private static final int SUBSAMPLING = 2;
+    private static final int MAX_TILE_SIZE = 256;
+    private static final int VERIFY_INTERVAL = 50;
+    private static final int MAX_VERIFIED_READS_PER_THREAD = 200;
+    private static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+    private final File[] files;
+    private final int threadCount;
+    private final long durationMillis;
+    private long seed;
+
+    /**
+     * Constructs a load tester.
+     *
+     * @param files          the product files
+     * @param threadCount    the number of worker threads
+     * @param durationMillis the duration of the run in milliseconds
+     */
+    public MerisVaLoadTester(File[] files, int threadCount, long durationMillis) {
+        if (files.length == 0) {
+            throw new IllegalArgumentException("No product files given");
+        }
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.files = files.clone();
+        this.threadCount = threadCount;
+        this.durationMillis = durationMillis;
+        seed = 42;
+    }
+
+    /**
+     * Sets the seed of the random read sequences, so that runs can be repeated.
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Opens the products, runs the worker threads for the configured duration, closes the
+     * products and verifies the sampled reads against a single-threaded reference.
+     *
+     * @return the report of the run
+     *
+     * @throws IOException          if a product could not be opened
+     * @throws InterruptedException if the run has been interrupted
+     */
+    public Report run() throws IOException, InterruptedException {
+        final Report report = new Report(threadCount, durationMillis);
+        report.openObjectsBefore = getOpenObjectCount();
+
+        final MerisVaReader[] readers = new MerisVaReader[2 * files.length];
+        final Product[] products = new Product[readers.length];
+        final List<Worker> workers = new ArrayList<Worker>();
+        try {
+            openProducts(readers, products);
+
+            final long deadline = System.nanoTime() + durationMillis * 1000000L;
+            for (int i = 0; i < threadCount; i++) {
+                workers.add(new Worker(i, readers, products, deadline, new Random(seed + i)));
+            }
+            final Sampler sampler = new Sampler(workers, report);
+            for (Worker worker : workers) {
+                worker.start();
+            }
+            sampler.start();
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            sampler.interrupt();
+            sampler.join();
+            report.openObjectsDuring = getOpenObjectCount();
+        } finally {
+            for (Worker worker : workers) {
+                worker.interrupt();
+                worker.join();
+            }
+            closeProducts(readers);
+        }
+        System.gc();
+        report.openObjectsAfter = getOpenObjectCount();
+        report.heapUsedAfter = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        final List<Read> verifiedReads = new ArrayList<Read>();
+        for (Worker worker : workers) {
+            report.add(worker);
+            verifiedReads.addAll(worker.verifiedReads);
+        }
+        verify(verifiedReads, report);
+        return report;
+    }
+
+    /**
+     * Runs the load test on the products given as arguments and prints the report.
+     *
+     * @param args the options followed by the product files
+     */
+    public static void main(String[] args) throws Exception {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        long durationSeconds = 60;
+        long seed = 42;
+        int argIndex = 0;
+        try {
+            while (argIndex < args.length - 1 && args[argIndex].startsWith("-")) {
+                final String option = args[argIndex++];
+                final String value = args[argIndex++];
+                if ("-threads".equals(option)) {
+                    threadCount = Integer.parseInt(value);
+                } else if ("-duration".equals(option)) {
+                    durationSeconds = Long.parseLong(value);
+                } else if ("-seed".equals(option)) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            argIndex = -1;
+        }
+        if (argIndex < 0 || argIndex >= args.length) {
+            System.out.println("Usage: MerisVaLoadTester [-threads <n>] [-duration <seconds>] [-seed <n>] "
+                               + "<product-file> ...");
+            System.exit(1);
+        }
+        final File[] files = new File[args.length - argIndex];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(args[argIndex + i]);
+        }
+
+        final MerisVaLoadTester tester = new MerisVaLoadTester(files, threadCount, durationSeconds * 1000L);
+        tester.setSeed(seed);
+        final Report report = tester.run();
+        System.out.println(report);
+        System.exit(report.isPassed() ? 0 : 2);
+    }
+
+    /**
+     * The result of a load test run.
+     */
+    public static class Report {
+
+        private final int threadCount;
+        private final long durationMillis;
+        private final long[] readCounts;
+        private final LatencyHistogram[] latencies;
+        private long bytesRead;
+        private long errorCount;
+        private String firstError;
+        private int verifiedCount;
+        private int mismatchCount;
+        private long sampleCount;
+        private long bandLockSampleCount;
+        private long blockedCount;
+        private long blockedMillis;
+        private int openObjectsBefore;
+        private int openObjectsDuring;
+        private int openObjectsAfter;
+        private long heapUsedPeak;
+        private long heapUsedAfter;
+
+        private Report(int threadCount, long durationMillis) {
+            this.threadCount = threadCount;
+            this.durationMillis = durationMillis;
+            readCounts = new long[ReadKind.values().length];
+            latencies = new LatencyHistogram[ReadKind.values().length];
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+            blockedCount = -1;
+            blockedMillis = -1;
+        }
+
+        public long getReadCount(ReadKind kind) {
+            return readCounts[kind.ordinal()];
+        }
+
+        public long getTotalReadCount() {
+            long count = 0;
+            for (long readCount : readCounts) {
+                count += readCount;
+            }
+            return count;
+        }
+
+        /**
+         * @return the number of reads per second, over all kinds of reads
+         */
+        public double getThroughput() {
+            return getTotalReadCount() * 1000.0 / Math.max(1, durationMillis);
+        }
+
+        /**
+         * Retrieves a latency percentile.
+         *
+         * @param kind       the kind of read
+         * @param percentile the percentile in the range 0 to 100
+         *
+         * @return the latency in microseconds, with a resolution of 1/8 of its magnitude
+         */
+        public long getLatencyMicros(ReadKind kind, double percentile) {
+            return latencies[kind.ordinal()].getPercentile(percentile);
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public int getMismatchCount() {
+            return mismatchCount;
+        }
+
+        /**
+         * @return the share of samples in which a worker thread was blocked on a band monitor
+         */
+        public double getBandLockContention() {
+            return sampleCount > 0 ? (double) bandLockSampleCount / sampleCount : 0.0;
+        }
+
+        /**
+         * @return the number of hdf5 objects left open after all products have been closed
+         */
+        public int getLeakedObjectCount() {
+            return openObjectsAfter - openObjectsBefore;
+        }
+
+        /**
+         * @return <code>true</code> if no read failed, all verified reads match the reference
+         *         and no hdf5 objects have been leaked
+         */
+        public boolean isPassed() {
+            return errorCount == 0 && mismatchCount == 0 && getLeakedObjectCount() <= 0;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("threads:              ").append(threadCount).append('\n');
+            sb.append("duration:             ").append(durationMillis / 1000.0).append(" s\n");
+            sb.append("reads:                ").append(getTotalReadCount());
+            sb.append(String.format(" (%.1f/s, %.1f MiB/s)%n", getThroughput(),
+                                    bytesRead / 1048576.0 * 1000.0 / Math.max(1, durationMillis)));
+            for (ReadKind kind : ReadKind.values()) {
+                sb.append(String.format("  %-10s %8d  p50 %7d us  p90 %7d us  p99 %7d us  max %7d us%n",
+                                        kind.name().toLowerCase(), getReadCount(kind),
+                                        getLatencyMicros(kind, 50), getLatencyMicros(kind, 90),
+                                        getLatencyMicros(kind, 99), getLatencyMicros(kind, 100)));
+            }
+            sb.append("errors:               ").append(errorCount);
+            if (firstError != null) {
+                sb.append(" (first: ").append(firstError).append(')');
+            }
+            sb.append('\n');
+            sb.append("verified reads:       ").append(verifiedCount);
+            sb.append(", mismatches: ").append(mismatchCount).append('\n');
+            sb.append(String.format("band lock contention: %.1f %% of %d samples%n",
+                                    100.0 * getBandLockContention(), sampleCount));
+            if (blockedCount >= 0) {
+                sb.append("blocked (all locks):  ").append(blockedCount).append(" times, ");
+                sb.append(blockedMillis).append(" ms\n");
+            }
+            sb.append("open hdf5 objects:    ").append(openObjectsBefore).append(" before, ");
+            sb.append(openObjectsDuring).append(" during, ").append(openObjectsAfter).append(" after\n");
+            sb.append("heap used:            ").append(heapUsedPeak / 1048576L).append(" MiB peak, ");
+            sb.append(heapUsedAfter / 1048576L).append(" MiB after\n");
+            sb.append("result:               ").append(isPassed() ? "PASSED" : "FAILED");
+            return sb.toString();
+        }
+
+        private synchronized void add(Worker worker) {
+            for (int i = 0; i < readCounts.length; i++) {
+                readCounts[i] += worker.readCounts[i];
+                latencies[i].add(worker.latencies[i]);
+            }
+            bytesRead += worker.bytesRead;
+            errorCount += worker.errorCount;
+            if (firstError == null) {
+                firstError = worker.firstError;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void openProducts(MerisVaReader[] readers, Product[] products) throws IOException {
+        final MerisVaReaderPlugIn plugIn = new MerisVaReaderPlugIn();
+        for (int i = 0; i < files.length; i++) {
+            readers[2 * i] = (MerisVaReader) plugIn.createReaderInstance();
+            products[2 * i] = readers[2 * i].readProductNodes(files[i], null);
+
+            final ProductSubsetDef subsetDef = new ProductSubsetDef();
+            subsetDef.setSubSampling(SUBSAMPLING, SUBSAMPLING);
+            readers[2 * i + 1] = (MerisVaReader) plugIn.createReaderInstance();
+            products[2 * i + 1] = readers[2 * i + 1].readProductNodes(files[i], subsetDef);
+        }
+    }
+
+    private static void closeProducts(MerisVaReader[] readers) {
+        for (MerisVaReader reader : readers) {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Debug.trace(e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Replays the sampled reads single-threaded on freshly opened products and counts the reads
+     * whose checksum differs.
+     */
+
+    private void verify(List<Read> reads, Report report) throws IOException {
+        final MerisVaReader[] readers = new MerisVaReader[2 * files.length];
+        final Product[] products = new Product[readers.length];
+        try {
+            openProducts(readers, products);
+            for (Read read : reads) {
+                final Read reference = read.copy();
+                execute(reference, readers, products);
+                report.verifiedCount++;
+                if (reference.checksum != read.checksum) {
+                    report.mismatchCount++;
+                }
+            }
+        } finally {
+            closeProducts(readers);
+        }
+    }
+
+    /*
+     * Executes a read and stores its checksum and the number of bytes read.
+     */
+
+    private static void execute(Read read, MerisVaReader[] readers, Product[] products) throws IOException {
+        final MerisVaReader reader = readers[read.productIndex];
+        final Product product = products[read.productIndex];
+        if (read.kind == ReadKind.METADATA) {
+            long checksum = 17;
+            final H5AttributeMap attributes = reader.getRootAttributes();
+            for (String name : attributes.getNames()) {
+                checksum = 31 * checksum + name.hashCode();
+                final String value = attributes.getAsString(name);
+                checksum = 31 * checksum + (value != null ? value.hashCode() : 0);
+            }
+            final MetadataElement mphElem = product.getMetadataRoot().getElement("MPH");
+            checksum = 31 * checksum + (mphElem != null ? mphElem.getNumAttributes() : -1);
+            reader.getDiagnostics();
+            read.checksum = checksum;
+            read.bytes = 0;
+            return;
+        }
+
+        final Band band = product.getBand(read.bandName);
+        final ProductData data = ProductData.createInstance(band.getDataType(), read.width * read.height);
+        if (read.kind == ReadKind.LINE) {
+            reader.readBandLines(read.bandName, read.y, read.height, data);
+        } else {
+            reader.readBandRasterData(band, read.x, read.y, read.width, read.height, data,
+                                      new NullProgressMonitor());
+        }
+        long checksum = 17;
+        for (int i = 0; i < data.getNumElems(); i++) {
+            checksum = 31 * checksum + Double.doubleToLongBits(data.getElemDoubleAt(i));
+        }
+        read.checksum = checksum;
+        read.bytes = (long) data.getNumElems() * data.getElemSize();
+    }
+
+    private static int getOpenObjectCount() {
+        try {
+            return H5.H5Fget_obj_count(HDF5Constants.H5F_OBJ_ALL, HDF5Constants.H5F_OBJ_ALL);
+        } catch (HDF5LibraryException e) {
+            Debug.trace(e);
+            return -1;
+        }
+    }
+
+    /*
+     * A single read, with the checksum of its result once it has been executed.
+     */
+
+    private static class Read {
+
+        private final ReadKind kind;
+        private final int productIndex;
+        private final String bandName;
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+        private long checksum;
+        private long bytes;
+
+        private Read(ReadKind kind, int productIndex, String bandName, int x, int y, int width, int height) {
+            this.kind = kind;
+            this.productIndex = productIndex;
+            this.bandName = bandName;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        private Read copy() {
+            return new Read(kind, productIndex, bandName, x, y, width, height);
+        }
+    }
+
+    private static class Worker extends Thread {
+
+        private final MerisVaReader[] readers;
+        private final Product[] products;
+        private final long deadline;
+        private final Random random;
+        private final long[] readCounts;
+        private final LatencyHistogram[] latencies;
+        private final List<Read> verifiedReads;
+        private long bytesRead;
+        private long errorCount;
+        private String firstError;
+
+        private Worker(int index, MerisVaReader[] readers, Product[] products, long deadline, Random random) {
+            super("merisva-load-" + index);
+            setDaemon(true);
+            this.readers = readers;
+            this.products = products;
+            this.deadline = deadline;
+            this.random = random;
+            readCounts = new long[ReadKind.values().length];
+            latencies = new LatencyHistogram[ReadKind.values().length];
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+            verifiedReads = new ArrayList<Read>();
+        }
+
+        @Override
+        public void run() {
+            long readIndex = 0;
+            while (System.nanoTime() < deadline && !isInterrupted()) {
+                final Read read = createRead();
+                final long startTime = System.nanoTime();
+                try {
+                    execute(read, readers, products);
+                } catch (Exception e) {
+                    errorCount++;
+                    if (firstError == null) {
+                        firstError = e.toString();
+                    }
+                    continue;
+                }
+                latencies[read.kind.ordinal()].record((System.nanoTime() - startTime) / 1000L);
+                readCounts[read.kind.ordinal()]++;
+                bytesRead += read.bytes;
+                if (readIndex++ % VERIFY_INTERVAL == 0 && verifiedReads.size() < MAX_VERIFIED_READS_PER_THREAD) {
+                    verifiedReads.add(read);
+                }
+            }
+        }
+
+        /*
+         * Creates a random read. Sub-sampled reads go to the sub-sampled products, all other
+         * reads to the full resolution products.
+         */
+
+        private Read createRead() {
+            final ReadKind kind = ReadKind.values()[random.nextInt(ReadKind.values().length)];
+            final int productIndex = 2 * random.nextInt(products.length / 2)
+                                     + (kind == ReadKind.SUBSAMPLED ? 1 : 0);
+            final Product product = products[productIndex];
+            if (kind == ReadKind.METADATA) {
+                return new Read(kind, productIndex, null, 0, 0, 0, 0);
+            }
+            final String[] bandNames = product.getBandNames();
+            final String bandName = bandNames[random.nextInt(bandNames.length)];
+            final int sceneWidth = product.getSceneRasterWidth();
+            final int sceneHeight = product.getSceneRasterHeight();
+            if (kind == ReadKind.LINE) {
+                return new Read(kind, productIndex, bandName, 0, random.nextInt(sceneHeight), sceneWidth, 1);
+            }
+            final int width = 1 + random.nextInt(Math.min(MAX_TILE_SIZE, sceneWidth));
+            final int height = 1 + random.nextInt(Math.min(MAX_TILE_SIZE, sceneHeight));
+            return new Read(kind, productIndex, bandName, random.nextInt(sceneWidth - width + 1),
+                            random.nextInt(sceneHeight - height + 1), width, height);
+        }
+    }
+
+    /*
+     * Periodically samples the states of the worker threads and the heap usage. A worker counts
+     * as contended on a band if it is blocked on the monitor of a MerisVaBand.
+     */
+
+    private static class Sampler extends Thread {
+
+        private final List<Worker> workers;
+        private final Report report;
+        private final ThreadMXBean threadBean;
+        private final MemoryMXBean memoryBean;
+
+        private Sampler(List<Worker> workers, Report report) {
+            super("merisva-load-sampler");
+            setDaemon(true);
+            this.workers = workers;
+            this.report = report;
+            threadBean = ManagementFactory.getThreadMXBean();
+            memoryBean = ManagementFactory.getMemoryMXBean();
+            if (threadBean.isThreadContentionMonitoringSupported()) {
+                threadBean.setThreadContentionMonitoringEnabled(true);
+            }
+        }
+
+        @Override
+        public void run() {
+            final long[] threadIds = new long[workers.size()];
+            for (int i = 0; i < threadIds.length; i++) {
+                threadIds[i] = workers.get(i).getId();
+            }
+            final String bandClassName = MerisVaBand.class.getName();
+            try {
+                while (!isInterrupted()) {
+                    sample(threadIds, bandClassName);
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                // the run is over
+            }
+            if (threadBean.isThreadContentionMonitoringEnabled()) {
+                report.blockedCount = 0;
+                report.blockedMillis = 0;
+                for (ThreadInfo info : threadBean.getThreadInfo(threadIds)) {
+                    if (info != null) {
+                        report.blockedCount += info.getBlockedCount();
+                        report.blockedMillis += Math.max(0, info.getBlockedTime());
+                    }
+                }
+            }
+        }
+
+        private void sample(long[] threadIds, String bandClassName) {
+            for (ThreadInfo info : threadBean.getThreadInfo(threadIds)) {
+                if (info == null || info.getThreadState() == Thread.State.TERMINATED) {
+                    continue;
+                }
+                report.sampleCount++;
+                if (info.getThreadState() == Thread.State.BLOCKED && info.getLockName() != null
+                    && info.getLockName().startsWith(bandClassName + "@")) {
+                    report.bandLockSampleCount++;
+                }
+            }
+            report.heapUsedPeak = Math.max(report.heapUsedPeak, memoryBean.getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    /*
+     * A histogram of latencies in microseconds with eight buckets per power of two, so that its
+     * size does not grow with the duration of the run.
+     */
+
+    private static class LatencyHistogram {
+
+        private static final int LINEAR_BUCKETS = 16;
+        private static final int SUB_BUCKETS = 8;
+
+        private final long[] counts;
+        private long totalCount;
+
+        private LatencyHistogram() {
+            counts = new long[LINEAR_BUCKETS + (64 - 4) * SUB_BUCKETS];
+        }
+
+        private void record(long micros) {
+            counts[getBucket(Math.max(0, micros))]++;
+            totalCount++;
+        }
+
+        private void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            totalCount += other.totalCount;
+        }
+
+        private long getPercentile(double percentile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                count += counts[i];
+                if (count >= rank) {
+                    return getBucketValue(i);
+                }
+            }
+            return getBucketValue(counts.length - 1);
+        }
+
+        private static int getBucket(long micros) {
+            if (micros < LINEAR_BUCKETS) {
+                return (int) micros;
+            }
+            final int octave = 63 - Long.numberOfLeadingZeros(micros);
+            final int subBucket = (int) (micros >> (octave - 3)) & (SUB_BUCKETS - 1);
+            return LINEAR_BUCKETS + (octave - 4) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long getBucketValue(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            final int octave = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+            final int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + subBucket) << (octave - 3);
+        }
+    }
+}
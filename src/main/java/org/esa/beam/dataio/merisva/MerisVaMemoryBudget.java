@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.dataio.ProductIOException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The process-wide memory budget shared by all buffers and caches of the MERIS-VA reader.
+ * <p/>
+ * <p>Memory is reserved on an {@link Account}; every reader opens an account for its product,
+ * shared caches and pools use a common account. If a reservation would exceed the budget, the
+ * registered caches are asked to evict entries first. Reservations of caches fail if this does
+ * not free enough memory, so that the entry is simply not cached. Reservations of buffers which
+ * are required to complete a read wait until other reads have released their memory and fail
+ * with an {@link IOException} once the maximum waiting time has passed, rather than running into
+ * an <code>OutOfMemoryError</code>. A single reservation larger than the budget is granted when
+ * nothing else is reserved, so that it cannot block forever.
+ * <p/>
+ * <p>The budget is given in MiB by the system property <code>beam.merisva.memoryBudget</code>
+ * (default: a quarter of the maximum heap size), the maximum waiting time in seconds by
+ * <code>beam.merisva.memoryWait</code> (default 60).
+ */
+public class MerisVaMemoryBudget {
+
+    private static final String BUDGET_PROPERTY = "beam.merisva.memoryBudget";
+    private static final String WAIT_PROPERTY = "beam.merisva.memoryWait";
+    private static final long MIB = 1024L * 1024L;
+
+    private static final MerisVaMemoryBudget INSTANCE = new MerisVaMemoryBudget(
+            Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 4 / MIB) * MIB,
+            Long.getLong(WAIT_PROPERTY, 60L) * 1000L);
+
+    private final long budgetBytes;
+    private final long maxWaitMillis;
+    private final List<Account> accounts;
+    private final List<Evictable> evictables;
+    private final Account sharedAccount;
+    private long usedBytes;
+
+    private MerisVaMemoryBudget(long budgetBytes, long maxWaitMillis) {
+        this.budgetBytes = budgetBytes;
+        this.maxWaitMillis = maxWaitMillis;
+        accounts = new ArrayList<Account>();
+        evictables = new CopyOnWriteArrayList<Evictable>();
+        sharedAccount = createAccount("shared");
+    }
+
+    /**
+     * @return the process-wide memory budget
+     */
+    public static MerisVaMemoryBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the budget in bytes
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @return the number of bytes currently reserved on all accounts
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Retrieves the current usage per account. Products are listed by the name of their file,
+     * the caches and pools shared by all products as <code>shared</code>.
+     *
+     * @return the reserved bytes by account name
+     */
+    public synchronized Map<String, Long> getUsage() {
+        final Map<String, Long> usage = new LinkedHashMap<String, Long>();
+        for (Account account : accounts) {
+            final Long bytes = usage.get(account.name);
+            usage.put(account.name, (bytes != null ? bytes : 0L) + account.usedBytes);
+        }
+        return usage;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * A cache which can give up memory on request. Implementations release the memory of
+     * evicted entries on their accounts and must not reserve memory while evicting.
+     */
+    interface Evictable {
+
+        /**
+         * Evicts entries.
+         *
+         * @param bytes the number of bytes to be freed
+         *
+         * @return the number of bytes actually freed
+         */
+        long evict(long bytes);
+    }
+
+    /**
+     * @return the account of the caches and pools shared by all products
+     */
+    Account getSharedAccount() {
+        return sharedAccount;
+    }
+
+    /**
+     * Opens a new account.
+     *
+     * @param name the name under which the usage of the account is reported
+     *
+     * @return the account
+     */
+    synchronized Account createAccount(String name) {
+        final Account account = new Account(name);
+        accounts.add(account);
+        return account;
+    }
+
+    /**
+     * Registers a cache which is asked to evict entries when the budget is exhausted.
+     *
+     * @param evictable the cache
+     */
+    void addEvictable(Evictable evictable) {
+        evictables.add(evictable);
+    }
+
+    /**
+     * Unregisters a cache.
+     *
+     * @param evictable the cache
+     */
+    void removeEvictable(Evictable evictable) {
+        evictables.remove(evictable);
+    }
+
+    /*
+     * Reserves memory, evicting cache entries if necessary. Evictions are run without holding
+     * the budget's monitor, since evicting caches take their own locks.
+     */
+
+    private boolean reserveBytes(Account account, long bytes, boolean wait) throws IOException {
+        final long deadline = System.currentTimeMillis() + maxWaitMillis;
+        boolean evicted = false;
+        while (true) {
+            final long missingBytes;
+            synchronized (this) {
+                if (usedBytes + bytes <= budgetBytes || usedBytes == 0) {
+                    usedBytes += bytes;
+                    account.usedBytes += bytes;
+                    return true;
+                }
+                missingBytes = usedBytes + bytes - budgetBytes;
+            }
+            if (evict(missingBytes) >= missingBytes) {
+                continue;
+            }
+            if (!wait) {
+                if (evicted) {
+                    return false;
+                }
+                evicted = true;
+                continue;
+            }
+            synchronized (this) {
+                final long waitMillis = deadline - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    throw new ProductIOException("Memory budget of " + budgetBytes / MIB + " MiB exhausted");
+                }
+                if (usedBytes + bytes > budgetBytes && usedBytes > 0) {
+                    try {
+                        wait(waitMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for memory");
+                    }
+                }
+            }
+        }
+    }
+
+    private long evict(long bytes) {
+        long freedBytes = 0;
+        for (Evictable evictable : evictables) {
+            if (freedBytes >= bytes) {
+                break;
+            }
+            freedBytes += evictable.evict(bytes - freedBytes);
+        }
+        return freedBytes;
+    }
+
+    private synchronized void releaseBytes(Account account, long bytes) {
+        final long releasedBytes = Math.min(bytes, account.usedBytes);
+        account.usedBytes -= releasedBytes;
+        usedBytes -= releasedBytes;
+        notifyAll();
+    }
+
+    private synchronized void closeAccount(Account account) {
+        usedBytes -= account.usedBytes;
+        account.usedBytes = 0;
+        accounts.remove(account);
+        notifyAll();
+    }
+
+    /**
+     * The memory reserved by a product or a shared cache.
+     */
+    class Account {
+
+        private final String name;
+        private long usedBytes;
+
+        private Account(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Reserves memory for a cache entry. The entry should not be cached if this fails.
+         *
+         * @param bytes the number of bytes
+         *
+         * @return <code>true</code> if the memory has been reserved
+         */
+        boolean tryReserve(long bytes) {
+            try {
+                return reserveBytes(this, bytes, false);
+            } catch (IOException e) {
+                // not thrown without waiting
+                return false;
+            }
+        }
+
+        /**
+         * Reserves memory for a buffer, waiting until other reservations have been released
+         * if the budget is exhausted.
+         *
+         * @param bytes the number of bytes
+         *
+         * @throws IOException if the memory could not be reserved within the maximum waiting time
+         */
+        void reserve(long bytes) throws IOException {
+            reserveBytes(this, bytes, true);
+        }
+
+        /**
+         * Releases reserved memory.
+         *
+         * @param bytes the number of bytes
+         */
+        void release(long bytes) {
+            releaseBytes(this, bytes);
+        }
+
+        /**
+         * @return the number of bytes currently reserved on the account
+         */
+        long getUsedBytes() {
+            synchronized (MerisVaMemoryBudget.this) {
+                return usedBytes;
+            }
+        }
+
+        /**
+         * Releases all memory reserved on the account and removes it from the usage report.
+         */
+        void close() {
+            closeAccount(this);
+        }
+    }
+}
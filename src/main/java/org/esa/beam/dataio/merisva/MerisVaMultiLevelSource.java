@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import com.bc.ceres.glevel.support.AbstractMultiLevelSource;
+import com.bc.ceres.glevel.support.DefaultMultiLevelModel;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.jai.ImageManager;
+import org.esa.beam.jai.ResolutionLevel;
+import org.esa.beam.jai.SingleBandedOpImage;
+
+import javax.media.jai.PlanarImage;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+/**
+ * The multi-level source of the raw sample image of a MERIS-VA band.
+ * <p/>
+ * <p>Tiles are computed with a single hyperslab read of the band's dataset, bypassing the
+ * line-by-line reads of the product reader. The tile size of a level matches the chunk size of
+ * the dataset it is read from, so that a tile touches as few chunks as possible; datasets stored
+ * contiguously are read in full-width strips. Level <i>n</i> samples every 2<sup>n</sup>-th pixel.
+ * If the file holds overview datasets written by {@link MerisVaTranscoder}, a level is read from
+ * the coarsest overview whose decimation divides the level's sampling, otherwise by strided reads
+ * of the full resolution dataset.
+ */
+class MerisVaMultiLevelSource extends AbstractMultiLevelSource {
+
+    private static final int MIN_LEVEL_SIZE = 256;
+    private static final int MIN_TILE_SIZE = 64;
+    private static final int STRIP_PIXEL_COUNT = 512 * 512;
+
+    private final MerisVaReader reader;
+    private final Band band;
+    private final MerisVaBand[] datasets;
+    private final int[] sourceMapping;
+
+    /**
+     * Constructs the source of a band.
+     *
+     * @param reader        the reader of the product, which records the tile reads if it is traced
+     * @param band          the product band
+     * @param hdfBand       the full resolution dataset of the band
+     * @param overviews     the overview datasets of the band, the element at index <i>n</i> holding the
+     *                      dataset decimated by 2<sup>n+1</sup>; may be empty
+     * @param sourceMapping the offset and sub-sampling of the product raster within the dataset
+     *                      as {offsetX, offsetY, stepX, stepY}
+     */
+    MerisVaMultiLevelSource(MerisVaReader reader, Band band, MerisVaBand hdfBand, MerisVaBand[] overviews,
+                            int[] sourceMapping) {
+        super(new DefaultMultiLevelModel(getLevelCount(band.getSceneRasterWidth(), band.getSceneRasterHeight()),
+                                         new AffineTransform(), band.getSceneRasterWidth(),
+                                         band.getSceneRasterHeight()));
+        this.reader = reader;
+        this.band = band;
+        this.sourceMapping = sourceMapping.clone();
+        datasets = new MerisVaBand[1 + overviews.length];
+        datasets[0] = hdfBand;
+        System.arraycopy(overviews, 0, datasets, 1, overviews.length);
+    }
+
+    @Override
+    protected RenderedImage createImage(int level) {
+        final int width = band.getSceneRasterWidth();
+        final int height = band.getSceneRasterHeight();
+        final int levelWidth = Math.max(1, width >> level);
+        final int levelHeight = Math.max(1, height >> level);
+
+        final int overviewLevel = getOverviewLevel(level);
+        final MerisVaBand dataset = datasets[overviewLevel];
+        final int stepX = (sourceMapping[2] << level) >> overviewLevel;
+        final int stepY = (sourceMapping[3] << level) >> overviewLevel;
+
+        final Dimension tileSize;
+        final int[] chunkSize = dataset.getChunkSize();
+        if (chunkSize != null) {
+            tileSize = new Dimension(Math.max(MIN_TILE_SIZE, chunkSize[1] / stepX),
+                                     Math.max(MIN_TILE_SIZE, chunkSize[0] / stepY));
+        } else {
+            tileSize = new Dimension(levelWidth, Math.max(1, STRIP_PIXEL_COUNT / levelWidth));
+        }
+        tileSize.width = Math.min(tileSize.width, levelWidth);
+        tileSize.height = Math.min(tileSize.height, levelHeight);
+
+        return new TileImage(band.getDataType(), width, height, tileSize,
+                             ResolutionLevel.create(getModel(), level), reader, band.getName(), overviewLevel,
+                             dataset, sourceMapping[0] >> overviewLevel, sourceMapping[1] >> overviewLevel,
+                             stepX, stepY);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static int getLevelCount(int width, int height) {
+        int levelCount = 1;
+        while ((Math.max(width, height) >> levelCount) >= MIN_LEVEL_SIZE) {
+            levelCount++;
+        }
+        return levelCount;
+    }
+
+    /*
+     * Finds the coarsest overview from which the level can be read exactly: its decimation must
+     * divide the sampling of the level and the product offset. Returns 0 for the full resolution.
+     */
+
+    private int getOverviewLevel(int level) {
+        for (int overviewLevel = datasets.length - 1; overviewLevel > 0; overviewLevel--) {
+            final int decimation = 1 << overviewLevel;
+            if (((sourceMapping[2] << level) % decimation) == 0 && ((sourceMapping[3] << level) % decimation) == 0
+                && sourceMapping[0] % decimation == 0 && sourceMapping[1] % decimation == 0) {
+                return overviewLevel;
+            }
+        }
+        return 0;
+    }
+
+    private static class TileImage extends SingleBandedOpImage {
+
+        private final int productDataType;
+        private final MerisVaReader reader;
+        private final String bandName;
+        private final int overviewLevel;
+        private final MerisVaBand dataset;
+        private final int offsetX;
+        private final int offsetY;
+        private final int stepX;
+        private final int stepY;
+
+        private TileImage(int productDataType, int width, int height, Dimension tileSize, ResolutionLevel level,
+                          MerisVaReader reader, String bandName, int overviewLevel, MerisVaBand dataset,
+                          int offsetX, int offsetY, int stepX, int stepY) {
+            super(ImageManager.getDataBufferType(productDataType), width, height, tileSize, null, level);
+            this.productDataType = productDataType;
+            this.reader = reader;
+            this.bandName = bandName;
+            this.overviewLevel = overviewLevel;
+            this.dataset = dataset;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.stepX = stepX;
+            this.stepY = stepY;
+        }
+
+        @Override
+        protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+            final int sourceMinX = offsetX + stepX * destRect.x;
+            final int sourceMaxX = sourceMinX + stepX * (destRect.width - 1);
+            final int sourceMinY = offsetY + stepY * destRect.y;
+            final int sourceMaxY = sourceMinY + stepY * (destRect.height - 1);
+
+            final Object destArray = getDestArray(dest, destRect);
+            final long startNanos = System.nanoTime();
+            try {
+                if (destArray != null) {
+                    // the tile is read straight into the raster's data buffer
+                    dataset.readRasterRegion(sourceMinX, sourceMaxX, stepX, sourceMinY, sourceMaxY, stepY,
+                                             ProductData.createInstance(productDataType, destArray));
+                } else {
+                    final MerisVaBufferPool bufferPool = MerisVaBufferPool.getInstance();
+                    final ProductData buffer = bufferPool.acquire(productDataType,
+                                                                  destRect.width * destRect.height);
+                    try {
+                        dataset.readRasterRegion(sourceMinX, sourceMaxX, stepX, sourceMinY, sourceMaxY, stepY,
+                                                 buffer);
+                        dest.setDataElements(destRect.x, destRect.y, destRect.width, destRect.height,
+                                             buffer.getElems());
+                    } finally {
+                        bufferPool.release(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read tile: " + e.getMessage(), e);
+            }
+            reader.traceRead(MerisVaTrace.RecordKind.TILE, bandName, overviewLevel, sourceMinX, sourceMaxX, stepX,
+                             sourceMinY, sourceMaxY, stepY, startNanos);
+        }
+
+        /*
+         * Retrieves the data array of the raster if it holds exactly the samples of the
+         * rectangle, otherwise null.
+         */
+
+        private static Object getDestArray(WritableRaster dest, Rectangle destRect) {
+            final DataBuffer dataBuffer = dest.getDataBuffer();
+            if (!dest.getBounds().equals(destRect) || dataBuffer.getNumBanks() != 1 || dataBuffer.getOffset() != 0
+                || dataBuffer.getSize() != destRect.width * destRect.height
+                || dest.getSampleModelTranslateX() != -destRect.x || dest.getSampleModelTranslateY() != -destRect.y) {
+                return null;
+            }
+            if (dataBuffer instanceof DataBufferByte) {
+                return ((DataBufferByte) dataBuffer).getData();
+            } else if (dataBuffer instanceof DataBufferShort) {
+                return ((DataBufferShort) dataBuffer).getData();
+            } else if (dataBuffer instanceof DataBufferUShort) {
+                return ((DataBufferUShort) dataBuffer).getData();
+            } else if (dataBuffer instanceof DataBufferInt) {
+                return ((DataBufferInt) dataBuffer).getData();
+            } else if (dataBuffer instanceof DataBufferFloat) {
+                return ((DataBufferFloat) dataBuffer).getData();
+            } else if (dataBuffer instanceof DataBufferDouble) {
+                return ((DataBufferDouble) dataBuffer).getData();
+            }
+            return null;
+        }
+    }
+}
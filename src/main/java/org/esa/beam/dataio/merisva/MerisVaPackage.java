@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.dataio.ProductIOException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A MERIS-VA product packaged as the first <code>.h5</code> entry of a <code>.zip</code> archive
+ * or as a gzip compressed <code>.h5.gz</code> file.
+ * <p/>
+ * <p>A package is identified by a key derived from the identity of the package file - its
+ * canonical path, the entry name, the modification time and the length - and from the checksum
+ * and size of the uncompressed product, as recorded in the zip directory or the gzip trailer,
+ * so the key is known without decompressing the product. Checksum and size alone do not suffice,
+ * since the gzip trailer covers the last member of a file only and records the size modulo 2^32.
+ */
+class MerisVaPackage {
+
+    private static final String ZIP_EXTENSION = ".zip";
+    private static final String GZIP_EXTENSION = ".h5.gz";
+    private static final String H5_EXTENSION = ".h5";
+    private static final int HEAD_LENGTH = 8200;
+
+    private final File file;
+    private final String entryName;
+    private final String contentKey;
+    private final long productSize;
+
+    private MerisVaPackage(File file, String entryName, String contentKey, long productSize) {
+        this.file = file;
+        this.entryName = entryName;
+        this.contentKey = contentKey;
+        this.productSize = productSize;
+    }
+
+    /**
+     * Checks whether a file is named like a package.
+     *
+     * @param file the file
+     *
+     * @return <code>true</code> for <code>.zip</code> and <code>.h5.gz</code> files
+     */
+    static boolean isPackageName(File file) {
+        final String name = file.getName().toLowerCase();
+        return name.endsWith(ZIP_EXTENSION) || name.endsWith(GZIP_EXTENSION);
+    }
+
+    /**
+     * Opens a package, reading its directory or trailer only.
+     *
+     * @param file a <code>.zip</code> or <code>.h5.gz</code> file
+     *
+     * @return the package
+     *
+     * @throws IOException if the file could not be read or a zip archive holds no <code>.h5</code> entry
+     */
+    static MerisVaPackage open(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(ZIP_EXTENSION)) {
+            final ZipFile zipFile = new ZipFile(file);
+            try {
+                final ZipEntry entry = findProductEntry(zipFile);
+                if (entry == null) {
+                    throw new ProductIOException("No MERIS-VA product in archive: " + file);
+                }
+                final String contentKey = "zip:" + getFileKey(file, entry.getName()) + ":"
+                                          + Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+                return new MerisVaPackage(file, entry.getName(), contentKey, entry.getSize());
+            } finally {
+                zipFile.close();
+            }
+        }
+
+        // the gzip trailer holds the CRC-32 and the size modulo 2^32 of the uncompressed data
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 18) {
+                throw new ProductIOException("Not a gzip file: " + file);
+            }
+            raf.seek(raf.length() - 8);
+            final long crc = Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+            final long size = Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+            final String contentKey = "gz:" + getFileKey(file, null) + ":" + Long.toHexString(crc) + ":" + size;
+            return new MerisVaPackage(file, null, contentKey, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the key identifying the uncompressed product
+     */
+    String getContentKey() {
+        return contentKey;
+    }
+
+    /**
+     * @return the file name of the packaged product without extension
+     */
+    String getProductName() {
+        if (entryName != null) {
+            final String name = new File(entryName).getName();
+            return name.substring(0, name.length() - H5_EXTENSION.length());
+        }
+        final String name = file.getName();
+        return name.substring(0, name.length() - GZIP_EXTENSION.length());
+    }
+
+    /**
+     * @return the size of the uncompressed product in bytes, modulo 2^32 for gzip files
+     */
+    long getProductSize() {
+        return productSize;
+    }
+
+    /**
+     * Checks whether the packaged product starts with a hdf5 superblock. Only the leading bytes
+     * of the product are decompressed.
+     *
+     * @return <code>true</code> if the hdf5 signature has been found
+     *
+     * @throws IOException if the package could not be read
+     */
+    boolean hasHdf5Signature() throws IOException {
+        final byte[] head = new byte[HEAD_LENGTH];
+        int length = 0;
+        final InputStream stream = openStream();
+        try {
+            int count;
+            while (length < head.length && (count = stream.read(head, length, head.length - length)) > 0) {
+                length += count;
+            }
+        } finally {
+            stream.close();
+        }
+        final byte[] trimmed = new byte[length];
+        System.arraycopy(head, 0, trimmed, 0, length);
+        return MerisVaInputSource.findSignature(trimmed);
+    }
+
+    /**
+     * Creates a spill source decompressing the product. The package is opened on the first read.
+     *
+     * @return the source
+     */
+    MerisVaSpillArea.Source createSource() {
+        return new MerisVaSpillArea.Source() {
+            private InputStream stream;
+
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                if (stream == null) {
+                    stream = openStream();
+                }
+                return stream.read(buffer);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Identifies a package file and entry by its canonical path, modification time and length,
+     * so that a rewritten package is not served from the spill of its former content.
+     */
+
+    private static String getFileKey(File file, String entryName) throws IOException {
+        final StringBuilder key = new StringBuilder(file.getCanonicalPath());
+        if (entryName != null) {
+            key.append('!').append(entryName);
+        }
+        return key.append('@').append(file.lastModified()).append(':').append(file.length()).toString();
+    }
+
+    private static ZipEntry findProductEntry(ZipFile zipFile) {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(H5_EXTENSION)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Opens a stream of the uncompressed product. Closing the stream closes the package.
+     */
+
+    private InputStream openStream() throws IOException {
+        if (entryName == null) {
+            return new GZIPInputStream(new FileInputStream(file), 64 * 1024);
+        }
+        final ZipFile zipFile = new ZipFile(file);
+        try {
+            final ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new ProductIOException("No MERIS-VA product in archive: " + file);
+            }
+            return new FilterInputStream(zipFile.getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            zipFile.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.datamodel.TiePointGrid;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes full resolution latitude and longitude rasters from the LAT/LON tie point grids of
+ * a product.
+ * <p/>
+ * <p>The bilinear interpolation is separated: the column indexes and weights are computed once
+ * per tile and shared by all its lines, so the inner loop is a plain sequence of array
+ * operations. Large tiles are split into row blocks which are computed in parallel on a shared
+ * pool of daemon threads. Latitude and longitude are always computed together, and the results
+ * are kept in a per-product cache of tiles bounded in MiB by the system property
+ * <code>beam.merisva.geoTileCacheSize</code> (default 16). Cached tiles are accounted on the
+ * memory account of the product and evicted when the {@link MerisVaMemoryBudget} asks for memory.
+ */
+class MerisVaPixelGeoRaster implements MerisVaMemoryBudget.Evictable {
+
+    static final String LATITUDE_BAND_NAME = "latitude";
+    static final String LONGITUDE_BAND_NAME = "longitude";
+
+    private static final String CACHE_SIZE_PROPERTY = "beam.merisva.geoTileCacheSize";
+    private static final long MIB = 1024L * 1024L;
+    private static final int ROW_BLOCK_HEIGHT = 64;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new MerisVaThreadFactory("merisva-geo"));
+
+    private final TiePointGrid latGrid;
+    private final float[] latPoints;
+    private final float[] lonPoints;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final long maxCacheBytes;
+    private final Map<Rectangle, float[][]> tileCache;
+    private final MerisVaMemoryBudget.Account memoryAccount;
+    private long cacheBytes;
+
+    /**
+     * Constructs the raster source for the given tie point grids, which must have the same
+     * geometry.
+     *
+     * @param latGrid       the latitude tie point grid
+     * @param lonGrid       the longitude tie point grid
+     * @param memoryAccount the account on which cached tiles are reserved
+     */
+    MerisVaPixelGeoRaster(TiePointGrid latGrid, TiePointGrid lonGrid, MerisVaMemoryBudget.Account memoryAccount) {
+        this.latGrid = latGrid;
+        latPoints = latGrid.getTiePoints();
+        lonPoints = lonGrid.getTiePoints();
+        gridWidth = latGrid.getRasterWidth();
+        gridHeight = latGrid.getRasterHeight();
+        maxCacheBytes = Long.getLong(CACHE_SIZE_PROPERTY, 16L) * MIB;
+        tileCache = new LinkedHashMap<Rectangle, float[][]>(16, 0.75f, true);
+        this.memoryAccount = memoryAccount;
+    }
+
+    /**
+     * Checks whether a band name denotes one of the pixel geo-location bands.
+     *
+     * @param bandName the band name
+     *
+     * @return <code>true</code> for the latitude and longitude band
+     */
+    static boolean isGeoBand(String bandName) {
+        return LATITUDE_BAND_NAME.equals(bandName) || LONGITUDE_BAND_NAME.equals(bandName);
+    }
+
+    /**
+     * Computes a tile of the latitude or longitude raster.
+     *
+     * @param bandName the band name, {@link #LATITUDE_BAND_NAME} or {@link #LONGITUDE_BAND_NAME}
+     * @param x        the X offset in product raster co-ordinates
+     * @param y        the Y offset in product raster co-ordinates
+     * @param width    the tile width
+     * @param height   the tile height
+     * @param dest     the destination array, filled from its start
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting for row blocks
+     */
+    void read(String bandName, int x, int y, int width, int height, float[] dest) throws InterruptedException {
+        final Rectangle tile = new Rectangle(x, y, width, height);
+        float[][] rasters;
+        synchronized (tileCache) {
+            rasters = tileCache.get(tile);
+        }
+        if (rasters == null) {
+            rasters = computeTile(tile);
+            cacheTile(tile, rasters);
+        }
+        final float[] raster = LATITUDE_BAND_NAME.equals(bandName) ? rasters[0] : rasters[1];
+        System.arraycopy(raster, 0, dest, 0, raster.length);
+    }
+
+    /**
+     * Evicts the least recently used tiles.
+     *
+     * @param bytes the number of bytes to be freed
+     *
+     * @return the number of bytes freed
+     */
+    @Override
+    public long evict(long bytes) {
+        synchronized (tileCache) {
+            final long bytesBefore = cacheBytes;
+            evictEldest(Math.max(0, cacheBytes - bytes));
+            return bytesBefore - cacheBytes;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void cacheTile(Rectangle tile, float[][] rasters) {
+        final long tileBytes = 8L * tile.width * tile.height;
+        if (tileBytes > maxCacheBytes / 4 || !memoryAccount.tryReserve(tileBytes)) {
+            return;
+        }
+        synchronized (tileCache) {
+            if (tileCache.put(tile, rasters) == null) {
+                cacheBytes += tileBytes;
+            } else {
+                memoryAccount.release(tileBytes);
+            }
+            evictEldest(maxCacheBytes);
+        }
+    }
+
+    private void evictEldest(long maxBytes) {
+        final Iterator<Rectangle> iterator = tileCache.keySet().iterator();
+        while (cacheBytes > maxBytes && iterator.hasNext()) {
+            final Rectangle eldest = iterator.next();
+            iterator.remove();
+            final long tileBytes = 8L * eldest.width * eldest.height;
+            cacheBytes -= tileBytes;
+            memoryAccount.release(tileBytes);
+        }
+    }
+
+    private float[][] computeTile(final Rectangle tile) throws InterruptedException {
+        final float[] lat = new float[tile.width * tile.height];
+        final float[] lon = new float[tile.width * tile.height];
+
+        // column indexes and weights are the same for all lines of the tile
+        final int[] col = new int[tile.width];
+        final float[] wx = new float[tile.width];
+        for (int i = 0; i < tile.width; i++) {
+            final float fi = (tile.x + i + 0.5f - latGrid.getOffsetX()) / latGrid.getSubSamplingX();
+            col[i] = clamp((int) Math.floor(fi), gridWidth - 2);
+            wx[i] = fi - col[i];
+        }
+
+        if (tile.height <= ROW_BLOCK_HEIGHT) {
+            computeRows(tile, 0, tile.height, col, wx, lat, lon);
+            return new float[][]{lat, lon};
+        }
+        final List<Callable<Object>> blocks = new ArrayList<Callable<Object>>();
+        for (int row = 0; row < tile.height; row += ROW_BLOCK_HEIGHT) {
+            final int firstRow = row;
+            final int lastRow = Math.min(tile.height, row + ROW_BLOCK_HEIGHT);
+            blocks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    computeRows(tile, firstRow, lastRow, col, wx, lat, lon);
+                    return null;
+                }
+            });
+        }
+        for (Future<Object> future : EXECUTOR.invokeAll(blocks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return new float[][]{lat, lon};
+    }
+
+    /*
+     * Interpolates the lines [firstRow, lastRow) of a tile.
+     */
+
+    private void computeRows(Rectangle tile, int firstRow, int lastRow, int[] col, float[] wx,
+                             float[] lat, float[] lon) {
+        for (int row = firstRow; row < lastRow; row++) {
+            final float fj = (tile.y + row + 0.5f - latGrid.getOffsetY()) / latGrid.getSubSamplingY();
+            final int j = clamp((int) Math.floor(fj), gridHeight - 2);
+            final float wy = fj - j;
+            final int top = j * gridWidth;
+            final int bottom = top + gridWidth;
+            int k = row * tile.width;
+            for (int i = 0; i < tile.width; i++, k++) {
+                final int c = col[i];
+                final float w = wx[i];
+                final float latTop = latPoints[top + c] + w * (latPoints[top + c + 1] - latPoints[top + c]);
+                final float latBottom = latPoints[bottom + c] + w * (latPoints[bottom + c + 1] - latPoints[bottom + c]);
+                lat[k] = latTop + wy * (latBottom - latTop);
+                lon[k] = interpolateLon(lonPoints[top + c], lonPoints[top + c + 1],
+                                        lonPoints[bottom + c], lonPoints[bottom + c + 1], w, wy);
+            }
+        }
+    }
+
+    /*
+     * Interpolates longitudes, unwrapping cells which cross the anti-meridian.
+     */
+
+    private static float interpolateLon(float lon00, float lon01, float lon10, float lon11, float wx, float wy) {
+        final float min = Math.min(Math.min(lon00, lon01), Math.min(lon10, lon11));
+        final float max = Math.max(Math.max(lon00, lon01), Math.max(lon10, lon11));
+        if (max - min > 180.0f) {
+            lon00 = lon00 < 0.0f ? lon00 + 360.0f : lon00;
+            lon01 = lon01 < 0.0f ? lon01 + 360.0f : lon01;
+            lon10 = lon10 < 0.0f ? lon10 + 360.0f : lon10;
+            lon11 = lon11 < 0.0f ? lon11 + 360.0f : lon11;
+        }
+        final float top = lon00 + wx * (lon01 - lon00);
+        final float bottom = lon10 + wx * (lon11 - lon10);
+        final float lon = top + wy * (bottom - top);
+        return lon > 180.0f ? lon - 360.0f : lon;
+    }
+
+    private static int clamp(int index, int maxIndex) {
+        return Math.max(0, Math.min(index, maxIndex));
+    }
+}
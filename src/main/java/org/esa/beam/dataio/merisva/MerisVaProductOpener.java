@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.util.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opens MERIS-VA products in the background on a bounded pool of threads.
+ * <p/>
+ * <p>{@link #open} returns a handle immediately. The product is opened in stages, see
+ * {@link Stage}, and the handle allows waiting for a particular stage. Band rasters can be read
+ * as soon as the {@link Stage#BANDS} stage is done; reads of the product wait for the stage they
+ * need themselves. Tie point grids, the geo-coding and the metadata are added to the product
+ * when their stages are done. If opening fails, all stages not yet done report the failure.
+ */
+public class MerisVaProductOpener {
+
+    /**
+     * The stages of opening a product, in the order they are completed.
+     */
+    public enum Stage {
+        /**
+         * The file is open and the product has been created from the root attributes.
+         */
+        HEADER,
+        /**
+         * The bands and their flag codings have been added.
+         */
+        BANDS,
+        /**
+         * The tie point grids and the geo-coding have been added.
+         */
+        TIE_POINTS,
+        /**
+         * The metadata has been added; the product is complete.
+         */
+        METADATA
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * Constructs an opener.
+     *
+     * @param threadCount the maximum number of products opened concurrently
+     */
+    public MerisVaProductOpener(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        executor = Executors.newFixedThreadPool(threadCount, new MerisVaThreadFactory("merisva-open"));
+    }
+
+    /**
+     * Starts opening a product.
+     *
+     * @param file the product file
+     *
+     * @return the handle of the product being opened
+     */
+    public Handle open(File file) {
+        final MerisVaReader reader = (MerisVaReader) new MerisVaReaderPlugIn().createReaderInstance();
+        executor.execute(new OpenTask(reader, file));
+        return new Handle(reader);
+    }
+
+    /**
+     * Stops the opener. Products which have not started opening fail with an exception.
+     */
+    public void shutdown() {
+        for (Runnable task : executor.shutdownNow()) {
+            ((OpenTask) task).reader.failStages(new ProductIOException("Opener has been shut down"));
+        }
+    }
+
+    /**
+     * The handle of a product being opened.
+     */
+    public static class Handle {
+
+        private final MerisVaReader reader;
+
+        private Handle(MerisVaReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Checks whether a stage has been completed.
+         *
+         * @param stage the stage
+         *
+         * @return <code>true</code> if the stage has been completed successfully
+         */
+        public boolean isDone(Stage stage) {
+            return reader.isStageDone(stage);
+        }
+
+        /**
+         * Waits until a stage has been completed.
+         *
+         * @param stage the stage
+         *
+         * @return the product, complete up to the given stage
+         *
+         * @throws IOException if opening has failed or the waiting thread has been interrupted
+         */
+        public Product getProduct(Stage stage) throws IOException {
+            reader.awaitStage(stage);
+            return reader.getOpenedProduct();
+        }
+
+        /**
+         * Waits until the product has been opened completely.
+         *
+         * @return the product
+         *
+         * @throws IOException if opening has failed or the waiting thread has been interrupted
+         */
+        public Product getProduct() throws IOException {
+            return getProduct(Stage.METADATA);
+        }
+
+        /**
+         * Stops opening the product after the current stage and closes it. Stages which have
+         * not been completed yet fail. If the product has been opened completely already, it is
+         * closed right away and must not be used any more.
+         */
+        public void cancel() {
+            reader.cancelOpen();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static class OpenTask implements Runnable {
+
+        private final MerisVaReader reader;
+        private final File file;
+
+        private OpenTask(MerisVaReader reader, File file) {
+            this.reader = reader;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try {
+                reader.readProductNodes(file, null);
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                // reported through the stages rather than thrown into the pool thread
+                Debug.trace(e);
+                fail(new ProductIOException("Unable to open product: " + e.getMessage()));
+            }
+        }
+
+        private void fail(IOException e) {
+            reader.failStages(e);
+            try {
+                reader.close();
+            } catch (IOException closeException) {
+                Debug.trace(closeException);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A virtual product spanning a set of MERIS-VA files, either as a time-ordered stack of
+ * co-registered scenes or as a mosaic of along-track segments stacked line-wise.
+ * <p/>
+ * <p>No product is created for the member files. Band reads are dispatched directly to the
+ * scene datasets of the files covering the requested region. The member files are opened once
+ * when the stack is created, to read their sizes and times; afterwards they are only opened
+ * again when a read touches them. Files are shared with other stacks through reference counted
+ * handles and at most <code>beam.merisva.maxOpenFiles</code> of them are kept open, so extracting
+ * the time series of a pixel only touches one dataset per file.
+ */
+public class MerisVaProductStack {
+
+    private static final String ISO_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+    private final MerisVaFile[] layers;
+    private final String[] layerTimes;
+    private final int[] layerOffsetsY;
+    private final int[] layerHeights;
+    private final boolean mosaic;
+    private final int width;
+    private final int height;
+
+    private MerisVaProductStack(MerisVaFile[] layers, String[] layerTimes, int[] layerOffsetsY, int[] layerHeights,
+                                boolean mosaic, int width, int height) {
+        this.layers = layers;
+        this.layerTimes = layerTimes;
+        this.layerOffsetsY = layerOffsetsY;
+        this.layerHeights = layerHeights;
+        this.mosaic = mosaic;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a time stack of co-registered products, ordered by a root attribute holding the
+     * sensing time. Times are given in the BEAM UTC format (<code>dd-MMM-yyyy HH:mm:ss</code>) or as
+     * ISO 8601 time stamps (<code>yyyy-MM-dd'T'HH:mm:ss</code>).
+     *
+     * @param files             the product files
+     * @param timeAttributeName the name of the root attribute holding the sensing time
+     *
+     * @return the stack
+     *
+     * @throws IOException if a file could not be opened, lacks the time attribute, holds a time which
+     *                     cannot be parsed or differs in size
+     */
+    public static MerisVaProductStack createTimeStack(File[] files, String timeAttributeName) throws IOException {
+        final MerisVaFile[] layers = acquireAll(files);
+        try {
+            final List<Integer> order = new ArrayList<Integer>();
+            final String[] times = new String[layers.length];
+            final double[] mjds = new double[layers.length];
+            for (int i = 0; i < layers.length; i++) {
+                times[i] = layers[i].getRootAttributes().getAsString(timeAttributeName);
+                if (times[i] == null) {
+                    throw new ProductIOException("Missing attribute '" + timeAttributeName + "': "
+                                                 + layers[i].getPath());
+                }
+                mjds[i] = parseTime(times[i], layers[i].getPath()).getMJD();
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Double.compare(mjds[i1], mjds[i2]);
+                }
+            });
+
+            final MerisVaFile[] sortedLayers = new MerisVaFile[layers.length];
+            final String[] sortedTimes = new String[layers.length];
+            for (int i = 0; i < layers.length; i++) {
+                sortedLayers[i] = layers[order.get(i)];
+                sortedTimes[i] = times[order.get(i)];
+            }
+            final int width = layers[0].getSceneWidth();
+            final int height = layers[0].getSceneHeight();
+            for (MerisVaFile layer : layers) {
+                if (layer.getSceneWidth() != width || layer.getSceneHeight() != height) {
+                    throw new ProductIOException("Scene size differs from the first product: " + layer.getPath());
+                }
+            }
+            final int[] heights = new int[layers.length];
+            Arrays.fill(heights, height);
+            return new MerisVaProductStack(sortedLayers, sortedTimes, new int[layers.length], heights, false,
+                                           width, height);
+        } catch (IOException e) {
+            releaseAll(layers);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a mosaic of along-track segments. The segments are stacked line-wise in the
+     * given order and must have the same scene width.
+     *
+     * @param files the segment files in along-track order
+     *
+     * @return the mosaic
+     *
+     * @throws IOException if a file could not be opened or differs in width
+     */
+    public static MerisVaProductStack createMosaic(File[] files) throws IOException {
+        final MerisVaFile[] layers = acquireAll(files);
+        try {
+            final int width = layers[0].getSceneWidth();
+            final int[] offsetsY = new int[layers.length];
+            final int[] heights = new int[layers.length];
+            int height = 0;
+            for (int i = 0; i < layers.length; i++) {
+                if (layers[i].getSceneWidth() != width) {
+                    throw new ProductIOException("Scene width differs from the first segment: " + layers[i].getPath());
+                }
+                offsetsY[i] = height;
+                heights[i] = layers[i].getSceneHeight();
+                height += heights[i];
+            }
+            return new MerisVaProductStack(layers, new String[layers.length], offsetsY, heights, true, width, height);
+        } catch (IOException e) {
+            releaseAll(layers);
+            throw e;
+        }
+    }
+
+    /**
+     * @return <code>true</code> for a mosaic, <code>false</code> for a time stack
+     */
+    public boolean isMosaic() {
+        return mosaic;
+    }
+
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    public String getLayerPath(int layer) {
+        return layers[layer].getPath();
+    }
+
+    /**
+     * @param layer the layer index
+     *
+     * @return the sensing time of a time stack layer, <code>null</code> for mosaic segments
+     */
+    public String getLayerTime(int layer) {
+        return layerTimes[layer];
+    }
+
+    /**
+     * @return the raster width of a layer or the mosaic
+     */
+    public int getSceneRasterWidth() {
+        return width;
+    }
+
+    /**
+     * @return the raster height of a layer or the complete mosaic
+     */
+    public int getSceneRasterHeight() {
+        return height;
+    }
+
+    /**
+     * Reads the raw samples of a region of a single layer.
+     *
+     * @param layer      the layer index; for a mosaic the region is relative to the segment
+     * @param bandName   the band name
+     * @param region     the region in layer raster co-ordinates
+     * @param destBuffer the destination buffer, at least <code>region.width * region.height</code> elements
+     *
+     * @throws IOException if the data could not be read
+     */
+    public void readLayerRegion(int layer, String bandName, Rectangle region,
+                                ProductData destBuffer) throws IOException {
+        layers[layer].readRegion(bandName, region.x, region.x + region.width - 1, 1,
+                                 region.y, region.y + region.height - 1, 1, destBuffer);
+    }
+
+    /**
+     * Reads the raw samples of a region of the mosaic, assembled from all segments it covers.
+     *
+     * @param bandName   the band name
+     * @param region     the region in mosaic raster co-ordinates
+     * @param destBuffer the destination buffer, at least <code>region.width * region.height</code> elements
+     *
+     * @throws IOException if the data could not be read
+     */
+    public void readRegion(String bandName, Rectangle region, ProductData destBuffer) throws IOException {
+        if (!mosaic) {
+            throw new IllegalStateException("Not a mosaic");
+        }
+        if (!new Rectangle(0, 0, width, height).contains(region)) {
+            throw new IllegalArgumentException("Region exceeds the mosaic: " + region);
+        }
+        final MerisVaBufferPool bufferPool = MerisVaBufferPool.getInstance();
+        final int regionMaxY = region.y + region.height - 1;
+        for (int i = 0; i < layers.length; i++) {
+            // the segment extents are known from the construction, so segments outside the region are not opened
+            final int segmentMaxY = layerOffsetsY[i] + layerHeights[i] - 1;
+            final int minY = Math.max(region.y, layerOffsetsY[i]);
+            final int maxY = Math.min(regionMaxY, segmentMaxY);
+            if (minY > maxY) {
+                continue;
+            }
+            final int numElems = region.width * (maxY - minY + 1);
+            final ProductData segmentData = bufferPool.acquire(layers[i].getBandDataType(bandName), numElems);
+            try {
+                layers[i].readRegion(bandName, region.x, region.x + region.width - 1, 1,
+                                     minY - layerOffsetsY[i], maxY - layerOffsetsY[i], 1, segmentData);
+                System.arraycopy(segmentData.getElems(), 0, destBuffer.getElems(), (minY - region.y) * region.width,
+                                 numElems);
+            } finally {
+                bufferPool.release(segmentData);
+            }
+        }
+    }
+
+    /**
+     * Extracts the geophysical values of a pixel from all layers of a time stack. Samples equal to
+     * the user-defined fill value of a layer's dataset are returned as <code>NaN</code>.
+     *
+     * @param bandName the band name
+     * @param x        the pixel X co-ordinate
+     * @param y        the pixel Y co-ordinate
+     *
+     * @return the values in layer order
+     *
+     * @throws IOException if the data could not be read
+     */
+    public double[] readPixelTimeSeries(String bandName, int x, int y) throws IOException {
+        if (mosaic) {
+            throw new IllegalStateException("Not a time stack");
+        }
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IllegalArgumentException("Pixel outside of the scene: " + x + "," + y);
+        }
+        final double[] values = new double[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            final ProductData sample = ProductData.createInstance(layers[i].getBandDataType(bandName), 1);
+            layers[i].readRegion(bandName, x, x, 1, y, y, 1, sample);
+            final Object fillValue = layers[i].getBandFillValue(bandName);
+            if (fillValue != null && Array.get(fillValue, 0).equals(Array.get(sample.getElems(), 0))) {
+                values[i] = Double.NaN;
+                continue;
+            }
+            final H5AttributeMap attributes = layers[i].getBandAttributes(bandName);
+            double scalingFactor = attributes.getDouble(MerisVaConstants.SCALE_ATT_NAME, 0.0);
+            if (scalingFactor == 0.0) {
+                scalingFactor = 1.0;
+            }
+            final double scalingOffset = attributes.getDouble(MerisVaConstants.OFFSET_ATT_NAME, 0.0);
+            values[i] = sample.getElemDoubleAt(0) * scalingFactor + scalingOffset;
+        }
+        return values;
+    }
+
+    /**
+     * Releases the member files. The stack must not be used any longer.
+     */
+    public void close() {
+        releaseAll(layers);
+        Arrays.fill(layers, null);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static ProductData.UTC parseTime(String text, String path) throws ProductIOException {
+        try {
+            return ProductData.UTC.parse(text);
+        } catch (ParseException e) {
+            try {
+                return ProductData.UTC.parse(text, ISO_TIME_PATTERN);
+            } catch (ParseException e2) {
+                throw new ProductIOException("Invalid time '" + text + "': " + path);
+            }
+        }
+    }
+
+    private static MerisVaFile[] acquireAll(File[] files) {
+        if (files.length == 0) {
+            throw new IllegalArgumentException("No files given");
+        }
+        final MerisVaFile[] handles = new MerisVaFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+            handles[i] = MerisVaFile.acquire(files[i]);
+        }
+        return handles;
+    }
+
+    private static void releaseAll(MerisVaFile[] handles) {
+        for (MerisVaFile handle : handles) {
+            if (handle != null) {
+                handle.release();
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.esa.beam.dataio.merisva;
 
 import com.bc.ceres.core.ProgressMonitor;
+import com.bc.ceres.glevel.support.DefaultMultiLevelImage;
 import ncsa.hdf.hdf5lib.H5;
 import ncsa.hdf.hdf5lib.HDF5Constants;
 import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
@@ -25,6 +26,7 @@ import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
 import org.esa.beam.framework.dataio.AbstractProductReader;
 import org.esa.beam.framework.dataio.ProductIOException;
 import org.esa.beam.framework.dataio.ProductReaderPlugIn;
+import org.esa.beam.framework.dataio.ProductSubsetDef;
 import org.esa.beam.framework.datamodel.Band;
 import org.esa.beam.framework.datamodel.FlagCoding;
 import org.esa.beam.framework.datamodel.GeoCoding;
@@ -38,14 +40,45 @@ import org.esa.beam.framework.datamodel.TiePointGrid;
 import org.esa.beam.util.Debug;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The product reader for MERIS-VA hdf5 products.
+ * <p/>
+ * <p>Besides the rectangular raster reads of the product reader interface, it provides
+ * {@link #readPixels} for reading scattered pixels.
+ * <p/>
+ * <p>If the system property <code>beam.merisva.traceFile</code> is set, the opening, the dataset
+ * reads and the closing of every product are recorded into a {@link MerisVaTrace}.
+ */
+public class MerisVaReader extends AbstractProductReader {
+
+    /**
+     * The system property enabling the virtual per-pixel <code>latitude</code> and
+     * <code>longitude</code> bands.
+     */
+    public static final String PIXEL_GEO_BANDS_PROPERTY = "beam.merisva.pixelGeoBands";
+
+    /**
+     * The system property controlling whether band images are read tile-wise by the reader's own
+     * chunk-aligned multi-level sources (default) or through the generic tiling of BEAM.
+     */
+    public static final String MULTI_LEVEL_SOURCE_PROPERTY = "beam.merisva.multiLevelSource";
 
-class MerisVaReader extends AbstractProductReader {
+    private static final String MPH_ELEMENT_NAME = "MPH";
 
-    private static boolean h5Initialized = false;
+    private MerisVaInputSource inputSource;
     private int fileId;
     private Product product;
     private int width;
@@ -53,12 +86,26 @@ class MerisVaReader extends AbstractProductReader {
     private int tiePtColCount;
     private int tiePtLineCount;
     private int tiePtSubs;
+    private Rectangle sceneRegion;
+    private H5AttributeMap rootAttributes;
     private Hashtable<String, MerisVaBand> bands;
+    private Hashtable<String, String> readMessages;
+    private Hashtable<String, MerisVaBand[]> overviewBands;
     private int sceneGrpID;
     private TiePointGrid latGrid;
     private TiePointGrid lonGrid;
     private Vector<String> flagsDsNames;
-
+    private H5ChunkCacheSizer chunkCacheSizer;
+    private MerisVaPixelGeoRaster pixelGeoRaster;
+    private MerisVaMemoryBudget.Account memoryAccount;
+    private volatile MerisVaTraceRecorder traceRecorder;
+    private int traceProductId;
+    private final Map<String, FutureTask<MerisVaFlagIndex>> flagIndexes;
+    private final CountDownLatch[] stageLatches;
+    private final boolean[] stagesDone;
+    private volatile IOException openFailure;
+    private volatile boolean openCancelled;
+    private final MerisVaDiagnostics diagnostics;
 
     /**
      * Construct a new instance of a product reader for the Meris-VA Hdf5
@@ -69,8 +116,17 @@ class MerisVaReader extends AbstractProductReader {
     MerisVaReader(ProductReaderPlugIn readerPlugIn) {
         super(readerPlugIn);
         fileId = -1;
+        sceneGrpID = -1;
         product = null;
         flagsDsNames = new Vector<String>();
+        diagnostics = new MerisVaDiagnostics();
+        flagIndexes = new HashMap<String, FutureTask<MerisVaFlagIndex>>();
+        final int stageCount = MerisVaProductOpener.Stage.values().length;
+        stageLatches = new CountDownLatch[stageCount];
+        for (int i = 0; i < stageCount; i++) {
+            stageLatches[i] = new CountDownLatch(1);
+        }
+        stagesDone = new boolean[stageCount];
     }
 
     /**
@@ -85,25 +141,53 @@ class MerisVaReader extends AbstractProductReader {
      */
     @Override
     protected Product readProductNodesImpl() throws IOException {
-        assureHdfLibInitialized();
-        File inputFile = new File(getInput().toString());
-        try {
-            fileId = H5.H5Fopen(inputFile.getPath(), HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
-        } catch (HDF5LibraryException e) {
-            throw new ProductIOException(createErrorMessage(e));
+        final long startNanos = System.nanoTime();
+        traceRecorder = MerisVaTraceRecorder.getInstance();
+        if (traceRecorder != null) {
+            traceProductId = traceRecorder.createProductId();
         }
+        try {
+            readHeader();
+            completeStage(MerisVaProductOpener.Stage.HEADER);
 
-        readMandatoryAttributes();
-        createProduct();
+            readBands();
+            if (Boolean.parseBoolean(System.getProperty(MULTI_LEVEL_SOURCE_PROPERTY, "true"))) {
+                readOverviewBands();
+                setUpSourceImages();
+            }
+            completeStage(MerisVaProductOpener.Stage.BANDS);
+
+            // add all metadata if required
+            // ----------------------------
+            if (!isMetadataIgnored()) {
+                readTiePointGrids();
+                setUpGeoCoding();
+            }
+            if (Boolean.getBoolean(PIXEL_GEO_BANDS_PROPERTY)) {
+                addPixelGeoBands();
+            }
+            completeStage(MerisVaProductOpener.Stage.TIE_POINTS);
 
-        // add all metadata if required
-        // ----------------------------
-        if (!isMetadataIgnored()) {
-            readAttributes();
-            readTiePointGrids();
-            setUpGeoCoding();
+            if (!isMetadataIgnored() && isNodeAccepted(MPH_ELEMENT_NAME)) {
+                readAttributes();
+            }
+            completeStage(MerisVaProductOpener.Stage.METADATA);
+        } catch (IOException e) {
+            failStages(e);
+            closeAfterFailure();
+            throw e;
+        } catch (RuntimeException e) {
+            failStages(new ProductIOException(e.getMessage()));
+            closeAfterFailure();
+            throw e;
+        }
+        // a cancellation may close the reader as soon as the last stage is done
+        final MerisVaTraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            final String path = MerisVaInputSource.isInMemory(getInput()) ? "" : getInput().toString();
+            recorder.recordOpen(traceProductId, path, getSourceMapping(), product.getSceneRasterWidth(),
+                                product.getSceneRasterHeight(), startNanos);
         }
-        readBands();
 
         return product;
     }
@@ -142,14 +226,18 @@ class MerisVaReader extends AbstractProductReader {
                                           int destWidth, int destHeight, ProductData destBuffer,
                                           ProgressMonitor pm) throws IOException {
         assureHdfLibInitialized();
+        awaitStage(getRequiredStage(destBand.getName()));
 
         final MerisVaBand band = bands.get(destBand.getName());
         final int sourceMaxX = sourceOffsetX + sourceWidth - 1;
         final int sourceMaxY = sourceOffsetY + sourceHeight - 1;
 
-        if (band != null) {
+        if (band == null && pixelGeoRaster != null && MerisVaPixelGeoRaster.isGeoBand(destBand.getName())) {
+            readPixelGeoTile(destBand.getName(), destOffsetX, destOffsetY, destWidth, destHeight, destBuffer);
+        } else if (band != null) {
+            final long startNanos = System.nanoTime();
             try {
-                pm.beginTask("Reading band '" + destBand.getName() + "'...", destHeight); /*I18N*/
+                pm.beginTask(readMessages.get(destBand.getName()), destHeight);
 
                 int destArrayPos = 0;
                 for (int sourceY = sourceOffsetY; sourceY <= sourceMaxY; sourceY += sourceStepY) {
@@ -163,6 +251,8 @@ class MerisVaReader extends AbstractProductReader {
             } finally {
                 pm.done();
             }
+            traceRead(MerisVaTrace.RecordKind.RASTER, destBand.getName(), 0, sourceOffsetX, sourceMaxX, sourceStepX,
+                      sourceOffsetY, sourceMaxY, sourceStepY, startNanos);
         }
     }
 
@@ -173,27 +263,352 @@ class MerisVaReader extends AbstractProductReader {
      */
     @Override
     public void close() throws IOException {
+        final long startNanos = System.nanoTime();
 
-        for (MerisVaBand band : bands.values()) {
-            band.close();
+        if (bands != null) {
+            recordAccessPattern();
+            for (MerisVaBand band : bands.values()) {
+                band.close();
+            }
+        }
+        if (overviewBands != null) {
+            for (MerisVaBand[] overviews : overviewBands.values()) {
+                for (MerisVaBand overview : overviews) {
+                    overview.close();
+                }
+            }
         }
 
         if (sceneGrpID >= 0) {
             H5Utils.closeH5G(sceneGrpID);
+            sceneGrpID = -1;
+        }
+
+        if (fileId >= 0) {
+            try {
+                H5.H5Fclose(fileId);
+            } catch (HDF5LibraryException e) {
+                throw new ProductIOException(createErrorMessage(e));
+            }
+            fileId = -1;
+        }
+        if (inputSource != null) {
+            inputSource.close();
+            inputSource = null;
+        }
+
+        if (chunkCacheSizer != null) {
+            chunkCacheSizer.release();
+            chunkCacheSizer = null;
+        }
+
+        if (pixelGeoRaster != null) {
+            MerisVaMemoryBudget.getInstance().removeEvictable(pixelGeoRaster);
+        }
+        synchronized (flagIndexes) {
+            flagIndexes.clear();
+        }
+        if (memoryAccount != null) {
+            memoryAccount.close();
+            memoryAccount = null;
+        }
+        if (traceRecorder != null) {
+            traceRecorder.recordClose(traceProductId, startNanos);
+            traceRecorder = null;
+        }
+    }
+
+    /**
+     * Reads the raw samples of scattered pixels of a set of bands. Only the requested samples
+     * are read, using hdf5 point selections in storage order, so the cost depends on the number
+     * of points and the chunks they touch rather than on the region they span.
+     *
+     * @param bandNames the names of the bands
+     * @param x         the X co-ordinates in product raster co-ordinates
+     * @param y         the Y co-ordinates in product raster co-ordinates
+     *
+     * @return one buffer per band holding the samples in the order of the co-ordinates
+     *
+     * @throws IOException if the data could not be read
+     */
+    public ProductData[] readPixels(String[] bandNames, int[] x, int[] y) throws IOException {
+        if (x.length != y.length) {
+            throw new IllegalArgumentException("Co-ordinate arrays differ in length");
+        }
+        assureHdfLibInitialized();
+        awaitStage(MerisVaProductOpener.Stage.BANDS);
+
+        final int[] mapping = getSourceMapping();
+        final int[] sourceX = new int[x.length];
+        final int[] sourceY = new int[y.length];
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] < 0 || x[i] >= product.getSceneRasterWidth() || y[i] < 0
+                || y[i] >= product.getSceneRasterHeight()) {
+                throw new IllegalArgumentException("Pixel outside of the product: " + x[i] + "," + y[i]);
+            }
+            sourceX[i] = mapping[0] + mapping[2] * x[i];
+            sourceY[i] = mapping[1] + mapping[3] * y[i];
+        }
+
+        final ProductData[] samples = new ProductData[bandNames.length];
+        for (int i = 0; i < bandNames.length; i++) {
+            final MerisVaBand band = bands.get(bandNames[i]);
+            if (band == null) {
+                throw new ProductIOException("Band not found: " + bandNames[i]);
+            }
+            samples[i] = ProductData.createInstance(band.getDataType(), x.length);
+            final long startNanos = System.nanoTime();
+            band.readPoints(sourceX, sourceY, samples[i]);
+            final MerisVaTraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+                recorder.recordPoints(traceProductId, bandNames[i], sourceX, sourceY, startNanos);
+            }
+        }
+        return samples;
+    }
+
+    /*
+     * Reads a block of complete product lines of a band with a single hyperslab read. The
+     * destination buffer may hold more lines than the block; it is filled from its start.
+     *
+     * @param bandName     the name of the band
+     * @param destOffsetY  the first line in product raster co-ordinates
+     * @param destHeight   the number of lines to read
+     * @param destBuffer   the destination buffer
+     */
+
+    void readBandLines(String bandName, int destOffsetY, int destHeight, ProductData destBuffer) throws IOException {
+        readBandRegion(bandName, 0, destOffsetY, product.getSceneRasterWidth(), destHeight, destBuffer);
+    }
+
+    /*
+     * Reads a rectangular region of a band with a single hyperslab read. The destination buffer
+     * may hold more lines than the region; it is filled from its start.
+     *
+     * @param bandName     the name of the band
+     * @param destOffsetX  the first column in product raster co-ordinates
+     * @param destOffsetY  the first line in product raster co-ordinates
+     * @param destWidth    the number of columns to read
+     * @param destHeight   the number of lines to read
+     * @param destBuffer   the destination buffer
+     */
+
+    void readBandRegion(String bandName, int destOffsetX, int destOffsetY, int destWidth, int destHeight,
+                        ProductData destBuffer) throws IOException {
+        assureHdfLibInitialized();
+        awaitStage(getRequiredStage(bandName));
+
+        final MerisVaBand band = bands.get(bandName);
+        if (band == null && pixelGeoRaster != null && MerisVaPixelGeoRaster.isGeoBand(bandName)) {
+            readPixelGeoTile(bandName, destOffsetX, destOffsetY, destWidth, destHeight, destBuffer);
+            return;
         }
+        if (band == null) {
+            throw new ProductIOException("Band not found: " + bandName);
+        }
+
+        final int[] mapping = getSourceMapping();
+        final int sourceStepX = mapping[2];
+        final int sourceStepY = mapping[3];
+        final int sourceMinX = mapping[0] + sourceStepX * destOffsetX;
+        final int sourceMaxX = sourceMinX + sourceStepX * (destWidth - 1);
+        final int sourceMinY = mapping[1] + sourceStepY * destOffsetY;
+        final int sourceMaxY = sourceMinY + sourceStepY * (destHeight - 1);
+        final long startNanos = System.nanoTime();
+        band.readRasterRegion(sourceMinX, sourceMaxX, sourceStepX, sourceMinY, sourceMaxY, sourceStepY, destBuffer);
+        traceRead(MerisVaTrace.RecordKind.LINES, bandName, 0, sourceMinX, sourceMaxX, sourceStepX,
+                  sourceMinY, sourceMaxY, sourceStepY, startNanos);
+    }
 
+    /*
+     * Retrieves the product while it is being opened, or null if the header has not been read.
+     */
+
+    Product getOpenedProduct() {
+        return product;
+    }
+
+    /*
+     * Checks whether an opening stage has been completed successfully.
+     */
+
+    synchronized boolean isStageDone(MerisVaProductOpener.Stage stage) {
+        return stagesDone[stage.ordinal()];
+    }
+
+    /*
+     * Waits until an opening stage has been completed. Throws the failure of the opening if the
+     * stage will never be completed.
+     */
+
+    void awaitStage(MerisVaProductOpener.Stage stage) throws IOException {
         try {
-            H5.H5Fclose(fileId);
-        } catch (HDF5LibraryException e) {
-            throw new ProductIOException(createErrorMessage(e));
+            stageLatches[stage.ordinal()].await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProductIOException("Interrupted while waiting for the product to be opened");
+        }
+        if (!isStageDone(stage)) {
+            final IOException failure = openFailure;
+            throw new ProductIOException(failure != null ? failure.getMessage() : "Product has not been opened");
+        }
+    }
+
+    /*
+     * Requests the opening to stop after the current stage, which closes the reader. If the
+     * opening has completed already, the reader is closed right away; if it has failed, it has
+     * been closed already.
+     */
+
+    void cancelOpen() {
+        synchronized (this) {
+            if (openCancelled) {
+                return;
+            }
+            openCancelled = true;
+            if (!stagesDone[MerisVaProductOpener.Stage.METADATA.ordinal()]) {
+                return;
+            }
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            Debug.trace(e);
+        }
+    }
+
+    /*
+     * Marks all stages which have not been completed as failed and releases their waiters.
+     */
+
+    synchronized void failStages(IOException failure) {
+        if (openFailure == null) {
+            openFailure = failure;
+        }
+        for (CountDownLatch latch : stageLatches) {
+            latch.countDown();
+        }
+    }
+
+    /*
+     * Retrieves the root attributes of the file.
+     */
+
+    H5AttributeMap getRootAttributes() {
+        return rootAttributes;
+    }
+
+    /*
+     * Retrieves the attributes of a band's dataset, or null if the band is unknown.
+     */
+
+    H5AttributeMap getBandAttributes(String bandName) {
+        final MerisVaBand band = bands.get(bandName);
+        return band != null ? band.getAttributes() : null;
+    }
+
+    /*
+     * Retrieves the user-defined fill value of a band's dataset in the given memory data type,
+     * or null if the band is unknown or its dataset has no user-defined fill value.
+     */
+
+    byte[] getBandFillValue(String bandName, int typeId) throws HDF5Exception {
+        final MerisVaBand band = bands.get(bandName);
+        return band != null ? H5Utils.getFillValue(band.getDatasetID(), typeId) : null;
+    }
+
+    /*
+     * Retrieves the memory account of the product, or the shared account if the product has not
+     * been opened.
+     */
+
+    MerisVaMemoryBudget.Account getMemoryAccount() {
+        final MerisVaMemoryBudget.Account account = memoryAccount;
+        return account != null ? account : MerisVaMemoryBudget.getInstance().getSharedAccount();
+    }
+
+    /*
+     * Retrieves the flag indexes of the product by flag band name, as tasks which have built or
+     * are building them. Access must be synchronized on the returned map.
+     */
+
+    Map<String, FutureTask<MerisVaFlagIndex>> getFlagIndexes() {
+        return flagIndexes;
+    }
+
+    /*
+     * Retrieves the dataset of a band at an overview level, zero for the full resolution dataset.
+     * Returns null if the band has no such dataset.
+     */
+
+    MerisVaBand getDataset(String bandName, int level) {
+        if (level == 0) {
+            return bands.get(bandName);
+        }
+        final MerisVaBand[] overviews = overviewBands != null ? overviewBands.get(bandName) : null;
+        return overviews != null && level <= overviews.length ? overviews[level - 1] : null;
+    }
+
+    /*
+     * Records a read of a band's dataset if the reader is traced, see MerisVaTraceRecorder.
+     */
+
+    void traceRead(MerisVaTrace.RecordKind kind, String bandName, int level, int minX, int maxX, int stepX,
+                   int minY, int maxY, int stepY, long startNanos) {
+        final MerisVaTraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordRead(traceProductId, kind, bandName, level, minX, maxX, stepX, minY, maxY, stepY,
+                                startNanos);
         }
-        fileId = -1;
+    }
+
+    /*
+     * Retrieves the source of the hdf5 file read, or null if the product has not been opened.
+     */
+
+    MerisVaInputSource getInputSource() {
+        return inputSource;
+    }
+
+    /*
+     * Retrieves the diagnostics of the product, updated with the access pattern observed so far.
+     */
+
+    MerisVaDiagnostics getDiagnostics() {
+        if (bands != null) {
+            for (String name : bands.keySet()) {
+                final MerisVaBand band = bands.get(name);
+                final String accessPattern = band.getReadCount() == 0 ? "none" : getAccessPattern(band);
+                diagnostics.put("band." + name + ".reads", band.getReadCount());
+                diagnostics.put("band." + name + ".observedAccess", accessPattern);
+                diagnostics.put("band." + name + ".skippedSamples", band.getSkippedSampleCount());
+                diagnostics.put("band." + name + ".chunkCacheRefusals", band.getChunkCacheRefusalCount());
+            }
+        }
+        if (memoryAccount != null) {
+            diagnostics.put("memory.usedBytes", memoryAccount.getUsedBytes());
+        }
+        return diagnostics;
     }
 
     ///////////////////////////////////////////////////////////////////////////
     /////// END OF PUBLIC
     ///////////////////////////////////////////////////////////////////////////
 
+    /*
+     * Releases the file, the spilled input and the memory account of a product which could not be
+     * opened. Callers opening products through ProductIO never get hold of the reader to close it.
+     */
+
+    private void closeAfterFailure() {
+        traceRecorder = null;
+        try {
+            close();
+        } catch (IOException e) {
+            Debug.trace(e);
+        }
+    }
+
     /**
      * Checks for the initialization state of the hdf5 library. If it is not initialized
      * initializes the library
@@ -201,14 +616,128 @@ class MerisVaReader extends AbstractProductReader {
      * @throws ProductIOException on initialization failure
      */
     private void assureHdfLibInitialized() throws ProductIOException {
-        if (!h5Initialized) {
-            try {
-                H5.H5open();
-                h5Initialized = true;
-            } catch (HDF5LibraryException e) {
-                throw new ProductIOException(createErrorMessage(e));
+        H5Utils.assureLibInitialized();
+    }
+
+    /*
+     * Adds the virtual latitude and longitude bands, interpolated from the LAT/LON tie point grids.
+     * Nothing is added if the grids are missing or the product already has bands of these names.
+     */
+
+    private void addPixelGeoBands() {
+        if (latGrid == null || lonGrid == null || latGrid.getRasterWidth() < 2 || latGrid.getRasterHeight() < 2
+            || product.containsBand(MerisVaPixelGeoRaster.LATITUDE_BAND_NAME)
+            || product.containsBand(MerisVaPixelGeoRaster.LONGITUDE_BAND_NAME)) {
+            return;
+        }
+        pixelGeoRaster = new MerisVaPixelGeoRaster(latGrid, lonGrid, memoryAccount);
+        MerisVaMemoryBudget.getInstance().addEvictable(pixelGeoRaster);
+
+        final String[] names = {MerisVaPixelGeoRaster.LATITUDE_BAND_NAME, MerisVaPixelGeoRaster.LONGITUDE_BAND_NAME};
+        final String[] descriptions = {"Latitude of the pixel centre", "Longitude of the pixel centre"};
+        for (int i = 0; i < names.length; i++) {
+            final Band band = new Band(names[i], ProductData.TYPE_FLOAT32, product.getSceneRasterWidth(),
+                                       product.getSceneRasterHeight());
+            band.setDescription(descriptions[i]);
+            band.setUnit("deg");
+            product.addBand(band);
+        }
+    }
+
+    private void readPixelGeoTile(String bandName, int destOffsetX, int destOffsetY, int destWidth, int destHeight,
+                                  ProductData destBuffer) throws IOException {
+        try {
+            pixelGeoRaster.read(bandName, destOffsetX, destOffsetY, destWidth, destHeight,
+                                (float[]) destBuffer.getElems());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProductIOException("Interrupted while computing band '" + bandName + "'");
+        }
+    }
+
+    /*
+     * Maps product to source raster co-ordinates the same way readBandRasterData does.
+     *
+     * @return the source X and Y offset and the sub-sampling in X and Y direction
+     */
+
+    int[] getSourceMapping() {
+        final int[] mapping = new int[]{0, 0, 1, 1};
+        final ProductSubsetDef subsetDef = getSubsetDef();
+        if (subsetDef != null) {
+            mapping[2] = subsetDef.getSubSamplingX();
+            mapping[3] = subsetDef.getSubSamplingY();
+            if (subsetDef.getRegion() != null) {
+                mapping[0] = subsetDef.getRegion().x;
+                mapping[1] = subsetDef.getRegion().y;
             }
         }
+        return mapping;
+    }
+
+    /*
+     * Opens the file and creates the product from the root attributes.
+     */
+
+    private void readHeader() throws IOException {
+        assureHdfLibInitialized();
+        inputSource = MerisVaInputSource.create(getInput());
+        final File inputFile = inputSource.getFile();
+        try {
+            fileId = H5.H5Fopen(inputFile.getPath(), HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+        } catch (HDF5LibraryException e) {
+            inputSource.close();
+            inputSource = null;
+            throw new ProductIOException(createErrorMessage(e));
+        }
+        memoryAccount = MerisVaMemoryBudget.getInstance().createAccount(inputFile.getName());
+
+        try {
+            readMandatoryAttributes();
+            sceneRegion = computeSceneRegion();
+            tuneChunkCache(inputFile);
+        } catch (IOException e) {
+            H5Utils.closeH5F(fileId);
+            fileId = -1;
+            inputSource.close();
+            inputSource = null;
+            memoryAccount.close();
+            memoryAccount = null;
+            throw e;
+        }
+        createProduct();
+    }
+
+    /*
+     * Marks an opening stage as completed, or stops the opening if it has been cancelled. The
+     * check is made together with the marking, so that a cancellation arriving after the last
+     * stage has been completed is left to cancelOpen() to close the reader.
+     */
+
+    private void completeStage(MerisVaProductOpener.Stage stage) throws IOException {
+        synchronized (this) {
+            if (openCancelled) {
+                throw new ProductIOException("Opening has been cancelled");
+            }
+            stagesDone[stage.ordinal()] = true;
+        }
+        stageLatches[stage.ordinal()].countDown();
+    }
+
+    /*
+     * Checks whether a band, tie point grid or metadata element is selected by the subset definition.
+     */
+
+    private boolean isNodeAccepted(String name) {
+        final ProductSubsetDef subsetDef = getSubsetDef();
+        return subsetDef == null || subsetDef.isNodeAccepted(name);
+    }
+
+    private static MerisVaProductOpener.Stage getRequiredStage(String bandName) {
+        if (MerisVaPixelGeoRaster.isGeoBand(bandName)) {
+            return MerisVaProductOpener.Stage.TIE_POINTS;
+        }
+        return MerisVaProductOpener.Stage.BANDS;
     }
 
     /**
@@ -227,135 +756,275 @@ class MerisVaReader extends AbstractProductReader {
      */
 
     private void createProduct() throws IOException {
+        String _productName = rootAttributes.getString(MerisVaConstants.PRODUCT_NAME_ATT_NAME);
+        String _productType = rootAttributes.getString(MerisVaConstants.PRODUCT_TYPE_ATT_NAME);
+
+        final int[] mapping = getSourceMapping();
+        final int productWidth = (sceneRegion.width - 1) / mapping[2] + 1;
+        final int productHeight = (sceneRegion.height - 1) / mapping[3] + 1;
+        product = new Product(_productName, _productType, productWidth, productHeight);
+        product.setProductReader(this);
+    }
+
+    /*
+     * Reads the most important attributes for the product. These are the scenen width and hight,
+     * tie point swidth, height and subsampling. All root attributes are read in a single pass
+     * and kept for the product creation and the metadata.
+     */
+
+    private void readMandatoryAttributes() throws IOException {
         int rootGrpID = -1;
 
         try {
             rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
-            String _productName = H5Utils.readStringAttribute(rootGrpID, MerisVaConstants.PRODUCT_NAME_ATT_NAME);
-            String _productType = H5Utils.readStringAttribute(rootGrpID, MerisVaConstants.PRODUCT_TYPE_ATT_NAME);
-
-            product = new Product(_productName, _productType, width, height);
-            product.setProductReader(this);
+            rootAttributes = H5Utils.readAttributes(rootGrpID);
         } finally {
             if (rootGrpID >= 0) {
                 H5Utils.closeH5G(rootGrpID);
             }
         }
+
+        width = rootAttributes.getInt(MerisVaConstants.SCENE_WIDTH_ATT_NAME, 0);
+        height = rootAttributes.getInt(MerisVaConstants.SCENE_HEIGHT_ATT_NAME, 0);
+        tiePtColCount = rootAttributes.getInt(MerisVaConstants.TIE_PT_COL_CNT_ATT_NAME, 0);
+        tiePtLineCount = rootAttributes.getInt(MerisVaConstants.TIE_PT_LINE_CNT_ATT_NAME, 0);
+        tiePtSubs = rootAttributes.getInt(MerisVaConstants.TIE_PT_SUBS_ATT_NAME, 0);
     }
 
     /*
-     * Reads the most important attributes for the product. These are the scenen width and hight,
-     * tie point swidth, height and subsampling. Throws exception if one of those is missing.
+     * Computes the region of the scene raster covered by the product. A pixel region of the subset
+     * definition is clipped to the scene. If the product is opened with a geographic subset, the
+     * region is located using the LAT/LON tie point grids. In both cases the result is stored as the
+     * pixel region of the subset definition. Throws an exception if the region is empty.
      */
 
-    private void readMandatoryAttributes() throws IOException {
-        int rootGrpID = -1;
+    private Rectangle computeSceneRegion() throws IOException {
+        final Rectangle region = new Rectangle(0, 0, width, height);
+        final ProductSubsetDef subsetDef = getSubsetDef();
+        if (subsetDef == null) {
+            return region;
+        }
+        if (!(subsetDef instanceof MerisVaGeoSubsetDef) || ((MerisVaGeoSubsetDef) subsetDef).getGeoRegion() == null) {
+            if (subsetDef.getRegion() == null) {
+                return region;
+            }
+            final Rectangle subsetRegion = subsetDef.getRegion().intersection(region);
+            if (subsetRegion.isEmpty()) {
+                throw new ProductIOException("Subset region is outside of the scene");
+            }
+            subsetDef.setRegion(subsetRegion);
+            return subsetRegion;
+        }
+        final MerisVaGeoSubsetDef geoSubsetDef = (MerisVaGeoSubsetDef) subsetDef;
 
+        int tiePtGrpID = -1;
+        final float[] latData;
+        final float[] lonData;
         try {
-            rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
-
-            width = H5Utils.readIntAttribute(rootGrpID, MerisVaConstants.SCENE_WIDTH_ATT_NAME);
-            height = H5Utils.readIntAttribute(rootGrpID, MerisVaConstants.SCENE_HEIGHT_ATT_NAME);
-            tiePtColCount = H5Utils.readIntAttribute(rootGrpID, MerisVaConstants.TIE_PT_COL_CNT_ATT_NAME);
-            tiePtLineCount = H5Utils.readIntAttribute(rootGrpID, MerisVaConstants.TIE_PT_LINE_CNT_ATT_NAME);
-            tiePtSubs = H5Utils.readIntAttribute(rootGrpID, MerisVaConstants.TIE_PT_SUBS_ATT_NAME);
-
-        } catch (IOException e) {
-            throw e;
+            tiePtGrpID = H5Utils.openH5G(fileId, MerisVaConstants.TIE_POINT_GROUP_NAME);
+            latData = H5Utils.readFloatDataset(tiePtGrpID, MerisVaConstants.LAT_TIE_POINT_NAME);
+            lonData = H5Utils.readFloatDataset(tiePtGrpID, MerisVaConstants.LON_TIE_POINT_NAME);
         } finally {
-            if (rootGrpID >= 0) {
-                H5Utils.closeH5G(rootGrpID);
-            }
+            H5Utils.closeH5G(tiePtGrpID);
+        }
+        if (latData.length != tiePtColCount * tiePtLineCount || lonData.length != latData.length) {
+            throw new ProductIOException("Invalid LAT/LON tie point grid size");
+        }
+
+        Rectangle geoRegion = MerisVaGeoLocator.computePixelRegion(latData, lonData, tiePtColCount, tiePtLineCount,
+                                                                   tiePtSubs, width, height,
+                                                                   geoSubsetDef.getGeoRegion());
+        if (geoSubsetDef.getRegion() != null) {
+            geoRegion = geoRegion.intersection(geoSubsetDef.getRegion());
         }
+        if (geoRegion.isEmpty()) {
+            throw new ProductIOException("Product does not intersect the geographic region");
+        }
+        geoSubsetDef.setRegion(geoRegion);
+        return geoRegion;
     }
 
     /*
-     * Reads all the high-level attributes from the file
-     *
+     * Classifies the reads of a band as row or tile access.
      */
 
-    private void readAttributes() throws IOException {
-        int rootGrpID = -1;
+    private String getAccessPattern(MerisVaBand band) {
+        if (band.getMeanReadWidth() >= 0.9 * sceneRegion.width) {
+            return H5ChunkCacheSizer.ACCESS_ROW;
+        }
+        return H5ChunkCacheSizer.ACCESS_TILE;
+    }
 
-        try {
-            MetadataElement mdElem = product.getMetadataRoot();
-            if (mdElem == null) {
-                return;
+    /*
+     * Passes the access pattern of most reads of the product on to the chunk cache sizing of the
+     * products opened next.
+     */
+
+    private void recordAccessPattern() {
+        long rowReadCount = 0;
+        long tileReadCount = 0;
+        for (MerisVaBand band : bands.values()) {
+            final long readCount = band.getReadCount();
+            if (readCount == 0) {
+                continue;
             }
-            MetadataElement mphElem = new MetadataElement("MPH");
-            rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
-            int numAttrs = H5.H5Aget_num_attrs(rootGrpID);
+            if (H5ChunkCacheSizer.ACCESS_ROW.equals(getAccessPattern(band))) {
+                rowReadCount += readCount;
+            } else {
+                tileReadCount += readCount;
+            }
+        }
+        if (rowReadCount + tileReadCount > 0) {
+            H5ChunkCacheSizer.setObservedAccessPattern(rowReadCount >= tileReadCount
+                                                       ? H5ChunkCacheSizer.ACCESS_ROW
+                                                       : H5ChunkCacheSizer.ACCESS_TILE);
+        }
+    }
 
-            // loop over attributes. Catch exceptions here, we don't want to lose
-            // all attributes because of one failure
-            for (int n = 0; n < numAttrs; n++) {
-                try {
-                    addAttributeToMetadata(rootGrpID, n, mphElem);
-                } catch (IOException e) {
-                    Debug.trace("Unable to read attribute at index '" + n + "'");
-                    Debug.trace(e);
+    /*
+     * Sizes the raw data chunk cache of the file for the chunked scene datasets. The cache of a
+     * hdf5 1.6 file can only be configured when it is opened, so the file is reopened with the
+     * tuned settings if the default cache is too small. Failing to do so is not fatal.
+     */
+
+    private void tuneChunkCache(File inputFile) throws IOException {
+        final H5ChunkCacheSizer sizer = H5ChunkCacheSizer.create();
+        probeChunkLayouts(sizer);
+        if (sizer.isTuningRequired() && sizer.allocate(memoryAccount)) {
+            int faplID = -1;
+            try {
+                faplID = H5.H5Pcreate(HDF5Constants.H5P_FILE_ACCESS);
+                sizer.applyTo(faplID);
+                // an open file keeps its cache settings, so it has to be closed before
+                H5Utils.closeH5F(fileId);
+                fileId = -1;
+                fileId = H5.H5Fopen(inputFile.getPath(), HDF5Constants.H5F_ACC_RDONLY, faplID);
+                chunkCacheSizer = sizer;
+            } catch (HDF5Exception e) {
+                Debug.trace(e);
+                sizer.release();
+            } finally {
+                if (faplID >= 0) {
+                    try {
+                        H5.H5Pclose(faplID);
+                    } catch (HDF5LibraryException e) {
+                        Debug.trace(e);
+                    }
                 }
             }
-
-            mdElem.addElement(mphElem);
-        } catch (HDF5LibraryException e) {
-            throw new IOException(e.getMessage());
-        } finally {
-            if (rootGrpID >= 0) {
-                H5Utils.closeH5G(rootGrpID);
+            if (fileId < 0) {
+                try {
+                    fileId = H5.H5Fopen(inputFile.getPath(), HDF5Constants.H5F_ACC_RDONLY,
+                                        HDF5Constants.H5P_DEFAULT);
+                } catch (HDF5LibraryException e) {
+                    throw new ProductIOException(createErrorMessage(e));
+                }
             }
         }
+        sizer.report(diagnostics);
     }
 
     /*
-     * Adds an attribute to the metadata element passed in.
-     *
-     * @param groupID the group identifier
-     * @param idx     the attribute index inside the group
-     * @param target  the target MetadataElement
-     *
+     * Adds the chunk layouts of the scene datasets to the cache sizer. Datasets served by the
+     * decoded chunk cache are skipped.
      */
 
-    private void addAttributeToMetadata(int groupID, int idx, MetadataElement target) throws IOException {
-        int typeClass;
-        int attrID = -1;
-        String[] name = {""};
-        MetadataAttribute attribute = null;
-        ProductData prodData = null;
-
+    private void probeChunkLayouts(H5ChunkCacheSizer sizer) throws IOException {
+        int grpID = -1;
         try {
-            attrID = H5.H5Aopen_idx(groupID, idx);
-            H5.H5Aget_name(attrID, 80, name);
+            grpID = H5Utils.openH5G(fileId, MerisVaConstants.SCENE_GROUP_NAME);
+            final int nDatasets = H5.H5Gn_members(fileId, MerisVaConstants.SCENE_GROUP_NAME);
 
-            int typeID = H5.H5Aget_type(attrID);
-            typeClass = H5.H5Tget_class(typeID);
-        } catch (HDF5LibraryException e) {
-            throw new IOException(e.getMessage());
-        } finally {
-            if (attrID >= 0) {
+            String[] names = new String[1];
+            int[] types = new int[1];
+            for (int n = 0; n < nDatasets; n++) {
+                H5.H5Gget_obj_info_idx(fileId, MerisVaConstants.SCENE_GROUP_NAME, n, names, types);
+                if (!isNodeAccepted(names[0])) {
+                    continue;
+                }
+                final int datasetID = H5.H5Dopen(grpID, names[0]);
+                int dataTypeID = -1;
                 try {
-                    H5.H5Aclose(attrID);
-                } catch (HDF5LibraryException e) {
-                    Debug.trace(e);
+                    final long[] chunkDims = H5Utils.getChunkDimensions(datasetID);
+                    final boolean filtered = chunkDims != null && H5Utils.isFiltered(datasetID);
+                    dataTypeID = H5.H5Dget_type(datasetID);
+                    final int elemSize = H5.H5Tget_size(dataTypeID);
+                    diagnostics.put("band." + names[0] + ".chunkSize",
+                                    chunkDims != null ? chunkDims[0] + "x" + chunkDims[1] : "contiguous");
+                    diagnostics.put("band." + names[0] + ".compressed", String.valueOf(filtered));
+                    if (chunkDims != null && !(filtered && MerisVaChunkCache.getInstance().accepts(
+                            chunkDims[0] * chunkDims[1] * elemSize))) {
+                        sizer.addDataset(chunkDims, elemSize, sceneRegion);
+                    } else if (chunkDims != null) {
+                        sizer.addDatasetsWithoutRequirement(1);
+                    }
+                } finally {
+                    H5Utils.closeH5T(dataTypeID);
+                    H5.H5Dclose(datasetID);
                 }
             }
+            sizer.addDatasetsWithoutRequirement(countOverviewDatasets());
+        } catch (HDF5Exception e) {
+            throw new ProductIOException(createErrorMessage(e));
+        } finally {
+            H5Utils.closeH5G(grpID);
         }
+    }
 
-        if (typeClass == HDF5Constants.H5T_INTEGER) {
-            int value = H5Utils.readIntAttribute(groupID, name[0]);
-            prodData = ProductData.createInstance(new int[]{value});
-        } else if (typeClass == HDF5Constants.H5T_FLOAT) {
-            float value = H5Utils.readFloatAttribute(groupID, name[0]);
-            prodData = ProductData.createInstance(new float[]{value});
-        } else if (typeClass == HDF5Constants.H5T_STRING) {
-            String value = H5Utils.readStringAttribute(groupID, name[0]);
-            prodData = ProductData.createInstance(value);
-        } else {
-            return;
+    /*
+     * Counts the overview datasets of the accepted bands. Overview datasets are always chunked.
+     */
+
+    private int countOverviewDatasets() throws HDF5Exception {
+        final String overviewGrpName = MerisVaConstants.OVERVIEW_GROUP_NAME;
+        if (!Arrays.asList(H5Utils.getMemberNames(fileId, "/")).contains(overviewGrpName.substring(1))) {
+            return 0;
         }
+        final List<String> levelGrpNames = Arrays.asList(H5Utils.getMemberNames(fileId, overviewGrpName));
+        final String levelGrpPrefix = overviewGrpName + "/" + MerisVaConstants.OVERVIEW_LEVEL_GROUP_PREFIX;
+        int datasetCount = 0;
+        for (int level = 1; levelGrpNames.contains(MerisVaConstants.OVERVIEW_LEVEL_GROUP_PREFIX + level); level++) {
+            for (String name : H5Utils.getMemberNames(fileId, levelGrpPrefix + level)) {
+                if (isNodeAccepted(name)) {
+                    datasetCount++;
+                }
+            }
+        }
+        return datasetCount;
+    }
+
+    /*
+     * Computes the window of tie points covering the scene region of the product.
+     *
+     * @return the window in tie point co-ordinates
+     */
+
+    private Rectangle getTiePointWindow() {
+        final int x0 = sceneRegion.x / tiePtSubs;
+        final int y0 = sceneRegion.y / tiePtSubs;
+        final int x1 = Math.min(tiePtColCount - 1,
+                                (sceneRegion.x + sceneRegion.width - 1 + tiePtSubs - 1) / tiePtSubs);
+        final int y1 = Math.min(tiePtLineCount - 1,
+                                (sceneRegion.y + sceneRegion.height - 1 + tiePtSubs - 1) / tiePtSubs);
+        return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    /*
+     * Reads all the high-level attributes from the file
+     *
+     */
 
-        attribute = new MetadataAttribute(name[0], prodData, true);
-        target.addAttribute(attribute);
+    private void readAttributes() {
+        MetadataElement mdElem = product.getMetadataRoot();
+        if (mdElem == null) {
+            return;
+        }
+        MetadataElement mphElem = new MetadataElement(MPH_ELEMENT_NAME);
+        for (String name : rootAttributes.getNames()) {
+            ProductData prodData = rootAttributes.createProductData(name);
+            mphElem.addAttribute(new MetadataAttribute(name, prodData, true));
+        }
+        mdElem.addElement(mphElem);
     }
 
     /*
@@ -366,6 +1035,7 @@ class MerisVaReader extends AbstractProductReader {
 
         try {
             bands = new Hashtable<String, MerisVaBand>();
+            readMessages = new Hashtable<String, String>();
             sceneGrpID = H5Utils.openH5G(fileId, MerisVaConstants.SCENE_GROUP_NAME);
 
             int nDatasets = H5.H5Gn_members(fileId, MerisVaConstants.SCENE_GROUP_NAME);
@@ -374,7 +1044,12 @@ class MerisVaReader extends AbstractProductReader {
             int[] types = new int[1];
             for (int n = 0; n < nDatasets; n++) {
                 H5.H5Gget_obj_info_idx(fileId, MerisVaConstants.SCENE_GROUP_NAME, n, names, types);
-                addBandToProduct(sceneGrpID, names[0]);
+                if (isNodeAccepted(names[0])) {
+                    addBandToProduct(sceneGrpID, names[0]);
+                } else {
+                    // a selected flag band may only be referenced by datasets which are not selected
+                    collectFlagsDsReference(sceneGrpID, names[0]);
+                }
             }
 
             setFlagCodingForFlagBands();
@@ -383,6 +1058,77 @@ class MerisVaReader extends AbstractProductReader {
         }
     }
 
+    /*
+     * Opens the overview datasets of the bands, if the file has any. For each band, the overviews
+     * of consecutive levels starting at level 1 are opened. Overviews are optional, so failures
+     * are only traced.
+     */
+
+    private void readOverviewBands() {
+        overviewBands = new Hashtable<String, MerisVaBand[]>();
+        final String overviewGrpName = MerisVaConstants.OVERVIEW_GROUP_NAME;
+        try {
+            if (!Arrays.asList(H5Utils.getMemberNames(fileId, "/")).contains(overviewGrpName.substring(1))) {
+                return;
+            }
+            final List<String> levelGrpNames = Arrays.asList(H5Utils.getMemberNames(fileId, overviewGrpName));
+            final String levelGrpPrefix = overviewGrpName + "/" + MerisVaConstants.OVERVIEW_LEVEL_GROUP_PREFIX;
+            final List<String[]> levelMemberNames = new ArrayList<String[]>();
+            int levelCount = 0;
+            while (levelGrpNames.contains(MerisVaConstants.OVERVIEW_LEVEL_GROUP_PREFIX + (levelCount + 1))) {
+                levelCount++;
+                levelMemberNames.add(H5Utils.getMemberNames(fileId, levelGrpPrefix + levelCount));
+            }
+            for (String name : bands.keySet()) {
+                final List<MerisVaBand> overviews = new ArrayList<MerisVaBand>();
+                try {
+                    while (overviews.size() < levelCount
+                           && Arrays.asList(levelMemberNames.get(overviews.size())).contains(name)) {
+                        overviews.add(openOverviewBand(levelGrpPrefix + (overviews.size() + 1), name));
+                    }
+                } catch (IOException e) {
+                    Debug.trace(e);
+                }
+                overviewBands.put(name, overviews.toArray(new MerisVaBand[overviews.size()]));
+            }
+        } catch (HDF5Exception e) {
+            Debug.trace(e);
+        }
+    }
+
+    private MerisVaBand openOverviewBand(String levelGrpName, String name) throws IOException {
+        final int levelGrpID = H5Utils.openH5G(fileId, levelGrpName);
+        try {
+            final int datasetID = H5.H5Dopen(levelGrpID, name);
+            final MerisVaBand overview = new MerisVaBand();
+            overview.init(datasetID, H5.H5Dget_space(datasetID), H5.H5Dget_type(datasetID),
+                          H5Utils.readAttributes(datasetID));
+            overview.setMemoryAccount(memoryAccount);
+            return overview;
+        } catch (HDF5LibraryException e) {
+            throw new ProductIOException(createErrorMessage(e));
+        } finally {
+            H5Utils.closeH5G(levelGrpID);
+        }
+    }
+
+    /*
+     * Sets the reader's chunk-aligned multi-level sources as source images of the bands.
+     */
+
+    private void setUpSourceImages() {
+        final int[] mapping = getSourceMapping();
+        for (String name : bands.keySet()) {
+            MerisVaBand[] overviews = overviewBands.get(name);
+            if (overviews == null) {
+                overviews = new MerisVaBand[0];
+            }
+            final Band band = product.getBand(name);
+            band.setSourceImage(new DefaultMultiLevelImage(new MerisVaMultiLevelSource(this, band, bands.get(name),
+                                                                                       overviews, mapping)));
+        }
+    }
+
     /*
      * Adds a band to the product with given group identifier and object name.
      *
@@ -414,20 +1160,21 @@ class MerisVaReader extends AbstractProductReader {
             if (dataType == ProductData.TYPE_UNDEFINED) {
                 throw new ProductIOException("Invalid dataset data type: " + name);
             }
-            Band band = new Band(name, dataType, width, height);
+            Band band = new Band(name, dataType, product.getSceneRasterWidth(), product.getSceneRasterHeight());
 
             // read attributes
             // ---------------
-            String description = H5Utils.readStringAttribute(datasetID, MerisVaConstants.DESCRIPTION_ATT_NAME);
+            H5AttributeMap attributes = H5Utils.readAttributes(datasetID);
+            String description = attributes.getString(MerisVaConstants.DESCRIPTION_ATT_NAME);
             if (description != null) {
                 band.setDescription(description);
             }
-            String unit = H5Utils.readStringAttribute(datasetID, MerisVaConstants.UNIT_ATT_NAME);
+            String unit = attributes.getString(MerisVaConstants.UNIT_ATT_NAME);
             if (unit != null) {
                 band.setUnit(unit);
             }
 
-            String flagsDs = H5Utils.readStringAttribute(datasetID, MerisVaConstants.FLAGS_DS_ATT_NAME);
+            String flagsDs = attributes.getString(MerisVaConstants.FLAGS_DS_ATT_NAME);
             if (flagsDs != null) {
                 flagsDs = flagsDs.trim();
                 if (flagsDs.length() > 0) {
@@ -435,11 +1182,11 @@ class MerisVaReader extends AbstractProductReader {
                 }
             }
 
-            double scalingFactor = H5Utils.readDoubleAttribute(datasetID, MerisVaConstants.SCALE_ATT_NAME);
+            double scalingFactor = attributes.getDouble(MerisVaConstants.SCALE_ATT_NAME, 0.0);
             if (scalingFactor != 0.0) {
                 band.setScalingFactor(scalingFactor);
             }
-            double scalingOffset = H5Utils.readDoubleAttribute(datasetID, MerisVaConstants.OFFSET_ATT_NAME);
+            double scalingOffset = attributes.getDouble(MerisVaConstants.OFFSET_ATT_NAME, 0.0);
             if (scalingOffset != 0.0) {
                 band.setScalingOffset(scalingOffset);
             }
@@ -447,8 +1194,11 @@ class MerisVaReader extends AbstractProductReader {
             product.addBand(band);
 
             MerisVaBand hdfBand = new MerisVaBand();
-            hdfBand.init(datasetID, dataspaceID, dataTypeID);
+            hdfBand.init(datasetID, dataspaceID, dataTypeID, attributes);
+            hdfBand.setMemoryAccount(memoryAccount);
             bands.put(name, hdfBand);
+            // the progress message is created once, since reading a raster must not allocate
+            readMessages.put(name, "Reading band '" + name + "'..."); /*I18N*/
         } catch (HDF5LibraryException e) {
             throw new ProductIOException(createErrorMessage(e));
         }
@@ -471,7 +1221,9 @@ class MerisVaReader extends AbstractProductReader {
             int[] types = new int[1];
             for (int n = 0; n < nDatasets; n++) {
                 H5.H5Gget_obj_info_idx(fileId, MerisVaConstants.TIE_POINT_GROUP_NAME, n, names, types);
-                addTiePointGridToProduct(tiePtGrpID, names[0]);
+                if (isNodeAccepted(names[0])) {
+                    addTiePointGridToProduct(tiePtGrpID, names[0]);
+                }
             }
         } catch (HDF5LibraryException e) {
             throw new ProductIOException(createErrorMessage(e));
@@ -522,17 +1274,31 @@ class MerisVaReader extends AbstractProductReader {
                 throw new ProductIOException(
                         "Invalid tie point grid size: " + name + " width = " + dims[1] + " height = " + dims[0]);
             }
-            float[] data = new float[width * height];
-            H5.H5Dread(datasetID, hdfDataType, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL,
-                       HDF5Constants.H5P_DEFAULT, data);
-            TiePointGrid grid = new TiePointGrid(name, width, height, 0.5f, 0.5f, tiePtSubs, tiePtSubs, data);
+            final Rectangle window = getTiePointWindow();
+            // the tie points are kept by the product until it is closed
+            memoryAccount.reserve(4L * window.width * window.height);
+            float[] data = new float[window.width * window.height];
+            if (window.width == width && window.height == height) {
+                H5.H5Dread(datasetID, hdfDataType, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL,
+                           HDF5Constants.H5P_DEFAULT, data);
+            } else {
+                readTiePointWindow(datasetID, dataspaceID, hdfDataType, window, data);
+            }
+            // tie point positions in the (sub-sampled) product raster
+            final int[] mapping = getSourceMapping();
+            final float offsetX = 0.5f + (float) (window.x * tiePtSubs - sceneRegion.x) / mapping[2];
+            final float offsetY = 0.5f + (float) (window.y * tiePtSubs - sceneRegion.y) / mapping[3];
+            TiePointGrid grid = new TiePointGrid(name, window.width, window.height, offsetX, offsetY,
+                                                 (float) tiePtSubs / mapping[2], (float) tiePtSubs / mapping[3],
+                                                 data);
 
             // read attributes
-            String description = H5Utils.readStringAttribute(datasetID, MerisVaConstants.DESCRIPTION_ATT_NAME);
+            H5AttributeMap attributes = H5Utils.readAttributes(datasetID);
+            String description = attributes.getString(MerisVaConstants.DESCRIPTION_ATT_NAME);
             if (description != null) {
                 grid.setDescription(description);
             }
-            String unit = H5Utils.readStringAttribute(datasetID, MerisVaConstants.UNIT_ATT_NAME);
+            String unit = attributes.getString(MerisVaConstants.UNIT_ATT_NAME);
             if (unit != null) {
                 grid.setUnit(unit);
             }
@@ -571,6 +1337,37 @@ class MerisVaReader extends AbstractProductReader {
         }
     }
 
+    /*
+     * Reads a window of a tie point grid dataset.
+     *
+     * @param datasetID   the dataset identifier
+     * @param dataspaceID the file dataspace identifier
+     * @param hdfDataType the dataset data type
+     * @param window      the window in tie point co-ordinates
+     * @param data        the array receiving the tie points
+     */
+
+    private void readTiePointWindow(int datasetID, int dataspaceID, int hdfDataType, Rectangle window,
+                                    float[] data) throws HDF5Exception {
+        final long[] count = new long[]{window.height, window.width};
+        int memDataspaceID = -1;
+
+        try {
+            memDataspaceID = H5.H5Screate_simple(2, count, count);
+            H5.H5Sselect_hyperslab(dataspaceID, HDF5Constants.H5S_SELECT_SET,
+                                   new long[]{window.y, window.x}, null, count, null);
+            H5.H5Dread(datasetID, hdfDataType, memDataspaceID, dataspaceID, HDF5Constants.H5P_DEFAULT, data);
+        } finally {
+            if (memDataspaceID >= 0) {
+                try {
+                    H5.H5Sclose(memDataspaceID);
+                } catch (HDF5LibraryException e) {
+                    Debug.trace(e);
+                }
+            }
+        }
+    }
+
     /*
      * Adds the geocoding information to the product.
      */
@@ -607,7 +1404,34 @@ class MerisVaReader extends AbstractProductReader {
     }
 
     /*
-     * Adds flag a coding to all flag bands.
+     * Records the flag band referenced by a scene dataset which is not part of the product. Only
+     * the attributes of the dataset are read.
+     */
+
+    private void collectFlagsDsReference(int sceneGrpID, String name) throws IOException {
+        int datasetID = -1;
+        try {
+            datasetID = H5.H5Dopen(sceneGrpID, name);
+            final String flagsDs = H5Utils.readAttributes(datasetID).getString(MerisVaConstants.FLAGS_DS_ATT_NAME);
+            if (flagsDs != null && flagsDs.trim().length() > 0) {
+                addNameToFlagsDs(flagsDs.trim());
+            }
+        } catch (HDF5LibraryException e) {
+            throw new ProductIOException(createErrorMessage(e));
+        } finally {
+            if (datasetID >= 0) {
+                try {
+                    H5.H5Dclose(datasetID);
+                } catch (HDF5LibraryException e) {
+                    Debug.trace(e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Adds a flag coding to all flag bands of the product, whether or not the bands referencing
+     * them are part of the product.
      */
 
     private void setFlagCodingForFlagBands() throws IOException {
@@ -635,9 +1459,9 @@ class MerisVaReader extends AbstractProductReader {
      * @return a flag coding - or null on failures
      */
 
-    private FlagCoding createFlagCoding(MerisVaBand band, String flagBandName) throws IOException {
+    private FlagCoding createFlagCoding(MerisVaBand band, String flagBandName) {
         FlagCoding coding;
-        int datasetId = band.getDatasetID();
+        H5AttributeMap attributes = band.getAttributes();
         int idx = 0;
         String[] flagNames = new String[]{""};
         String[] flagDescriptions = new String[]{""};
@@ -647,7 +1471,7 @@ class MerisVaReader extends AbstractProductReader {
         String attribValue = "";
         while (attribValue != null) {
             String attribName = MerisVaConstants.FLAG_CODE_PATTERN + (idx + 1);
-            attribValue = H5Utils.readStringAttribute(datasetId, attribName);
+            attribValue = attributes.getString(attribName);
 
             if (attribValue != null) {
                 splitAttributeString(flagNames, flagDescriptions, attribValue);
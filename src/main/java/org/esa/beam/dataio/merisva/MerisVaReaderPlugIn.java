@@ -20,10 +20,14 @@ package org.esa.beam.dataio.merisva;
 import org.esa.beam.framework.dataio.DecodeQualification;
 import org.esa.beam.framework.dataio.ProductReader;
 import org.esa.beam.framework.dataio.ProductReaderPlugIn;
+import org.esa.beam.util.Debug;
 import org.esa.beam.util.io.BeamFileFilter;
 import org.esa.beam.util.logging.BeamLogManager;
 
+import javax.imageio.stream.ImageInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
 public class MerisVaReaderPlugIn implements ProductReaderPlugIn {
@@ -31,6 +35,8 @@ public class MerisVaReaderPlugIn implements ProductReaderPlugIn {
     public static final String MERIS_VA_FORMAT_NAME = "MERIS-VA";
 
     private static final String H5_FILE_EXTENSION = ".h5";
+    private static final String H5_GZIP_FILE_EXTENSION = ".h5.gz";
+    private static final String ZIP_FILE_EXTENSION = ".zip";
     private static final String MERIS_VA_DESCRIPTION = "MERIS-VA product reader";
     private static final String H5_CLASS_NAME = "ncsa.hdf.hdf5lib.H5";
 
@@ -60,9 +66,31 @@ public class MerisVaReaderPlugIn implements ProductReaderPlugIn {
         if (!isHdf5LibAvailable()) {
             return DecodeQualification.UNABLE;
         }
+        if (MerisVaInputSource.isInMemory(input)) {
+            // only the hdf5 signature can be checked without spilling the product
+            try {
+                if (MerisVaInputSource.hasHdf5Signature(input)) {
+                    return DecodeQualification.SUITABLE;
+                }
+            } catch (IOException e) {
+                Debug.trace(e);
+            }
+            return DecodeQualification.UNABLE;
+        }
         File file = new File(input.toString());
 
         if (file.exists() && file.isFile()) {
+            if (MerisVaPackage.isPackageName(file)) {
+                // only the leading bytes of the packaged product are decompressed
+                try {
+                    if (MerisVaPackage.open(file).hasHdf5Signature()) {
+                        return DecodeQualification.INTENDED;
+                    }
+                } catch (IOException e) {
+                    Debug.trace(e);
+                }
+                return DecodeQualification.UNABLE;
+            }
             if (file.getPath().toLowerCase().endsWith(H5_FILE_EXTENSION)) {
                 // @todo - check if the h5open testreading the file is really expensive
                 // if not - implement this here
@@ -88,7 +116,7 @@ public class MerisVaReaderPlugIn implements ProductReaderPlugIn {
         if (!isHdf5LibAvailable()) {
             return new Class[0];
         }
-        return new Class[]{String.class, File.class};
+        return new Class[]{String.class, File.class, byte[].class, ByteBuffer.class, ImageInputStream.class};
     }
 
     /**
@@ -134,7 +162,7 @@ public class MerisVaReaderPlugIn implements ProductReaderPlugIn {
         if (!isHdf5LibAvailable()) {
             return new String[0];
         }
-        return new String[]{H5_FILE_EXTENSION};
+        return new String[]{H5_FILE_EXTENSION, H5_GZIP_FILE_EXTENSION, ZIP_FILE_EXTENSION};
     }
 
     /**
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.FlagCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Statistics of a band over a region of a MERIS-VA product: the number of samples, their sum,
+ * mean, minimum, maximum and a histogram, computed from geophysical (scaled) values.
+ * <p/>
+ * <p>The region is streamed in blocks of rows, which are read and aggregated in parallel; only
+ * one block buffer per worker thread is held in memory, reserved on the product's account of
+ * the {@link MerisVaMemoryBudget}. Samples may be restricted by a flag mask: only pixels having
+ * all given flags of a flag band set are counted. If the {@link MerisVaFlagIndex} of the flag band
+ * has already been built, blocks without any masked pixel are not read at all. No-data samples
+ * and NaN values are not counted.
+ * <p/>
+ * <p>The histogram spans the range from the minimum to the maximum value. For bands with 8 or
+ * 16 bit integer samples it is derived from exact counts of the raw values in a single pass;
+ * for other bands the region is streamed a second time once the range is known.
+ */
+public class MerisVaRegionStatistics {
+
+    private static final int ROW_BLOCK_HEIGHT = 64;
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new MerisVaThreadFactory("merisva-stats"));
+
+    private final String bandName;
+    private final Rectangle region;
+    private final long count;
+    private final double sum;
+    private final double min;
+    private final double max;
+    private final long[] histogram;
+
+    private MerisVaRegionStatistics(String bandName, Rectangle region, long count, double sum, double min,
+                                    double max, long[] histogram) {
+        this.bandName = bandName;
+        this.region = region;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Computes the statistics of a band over a region.
+     *
+     * @param product  the product, must have been opened with the MERIS-VA reader
+     * @param bandName the name of the band
+     * @param region   the region in product raster co-ordinates, clipped to the scene raster
+     * @param binCount the number of histogram bins
+     * @param pm       the progress monitor
+     *
+     * @return the statistics
+     *
+     * @throws IOException              if the band could not be read or the computation has been canceled
+     * @throws IllegalArgumentException if the product was not opened with the MERIS-VA reader,
+     *                                  the band is not contained in the product or the region is empty
+     */
+    public static MerisVaRegionStatistics compute(Product product, String bandName, Rectangle region, int binCount,
+                                                  ProgressMonitor pm) throws IOException {
+        return compute(product, bandName, region, null, null, binCount, pm);
+    }
+
+    /**
+     * Computes the statistics of a band over the pixels of a region having all given flags set.
+     *
+     * @param product      the product, must have been opened with the MERIS-VA reader
+     * @param bandName     the name of the band
+     * @param region       the region in product raster co-ordinates, clipped to the scene raster
+     * @param flagBandName the name of the flag band, or <code>null</code> if all pixels are counted
+     * @param flagNames    the flags which must be set
+     * @param binCount     the number of histogram bins
+     * @param pm           the progress monitor
+     *
+     * @return the statistics
+     *
+     * @throws IOException              if a band could not be read or the computation has been canceled
+     * @throws IllegalArgumentException if the product was not opened with the MERIS-VA reader,
+     *                                  a band or flag is not contained in the product or the region is empty
+     */
+    public static MerisVaRegionStatistics compute(Product product, String bandName, Rectangle region,
+                                                  String flagBandName, String[] flagNames, int binCount,
+                                                  ProgressMonitor pm) throws IOException {
+        if (!(product.getProductReader() instanceof MerisVaReader)) {
+            throw new IllegalArgumentException("Product has not been read by the MERIS-VA reader");
+        }
+        final Band band = product.getBand(bandName);
+        if (band == null) {
+            throw new IllegalArgumentException("Band not found: " + bandName);
+        }
+        if (binCount <= 0) {
+            throw new IllegalArgumentException("Invalid bin count: " + binCount);
+        }
+        final Rectangle clippedRegion = region.intersection(
+                new Rectangle(product.getSceneRasterWidth(), product.getSceneRasterHeight()));
+        if (clippedRegion.isEmpty()) {
+            throw new IllegalArgumentException("Region outside of the scene raster: " + region);
+        }
+        int flagMask = 0;
+        if (flagBandName != null) {
+            final Band flagBand = product.getBand(flagBandName);
+            if (flagBand == null || flagBand.getFlagCoding() == null) {
+                throw new IllegalArgumentException("Not a flag band: " + flagBandName);
+            }
+            flagMask = getFlagMask(flagBand.getFlagCoding(), flagNames);
+        }
+
+        final MerisVaReader reader = (MerisVaReader) product.getProductReader();
+        final Aggregation aggregation = new Aggregation(reader, band, clippedRegion, flagBandName, flagNames,
+                                                        flagMask);
+        final boolean exactHistogram = isExactHistogramType(band.getDataType());
+        pm.beginTask("Computing statistics of band '" + bandName + "'...", /*I18N*/
+                     exactHistogram ? clippedRegion.height : 2 * clippedRegion.height);
+        try {
+            final Partial total = aggregation.run(null, pm);
+            long[] histogram = exactHistogram ? total.binRawCounts(band, binCount) : new long[binCount];
+            if (!exactHistogram && total.count > 0) {
+                histogram = aggregation.run(new Binning(total.min, total.max, binCount), pm).bins;
+            }
+            return new MerisVaRegionStatistics(bandName, clippedRegion, total.count, total.sum,
+                                               total.count > 0 ? total.min : Double.NaN,
+                                               total.count > 0 ? total.max : Double.NaN, histogram);
+        } finally {
+            pm.done();
+        }
+    }
+
+    public String getBandName() {
+        return bandName;
+    }
+
+    /**
+     * @return the region the statistics have been computed for, clipped to the scene raster
+     */
+    public Rectangle getRegion() {
+        return new Rectangle(region);
+    }
+
+    /**
+     * @return the number of counted samples
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the mean value, or NaN if no sample has been counted
+     */
+    public double getMean() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * @return the minimum value, or NaN if no sample has been counted
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return the maximum value, or NaN if no sample has been counted
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Retrieves the histogram. Bin <code>i</code> counts the values in the range
+     * <code>[min + i * w, min + (i + 1) * w)</code> with <code>w = (max - min) / binCount</code>;
+     * the last bin includes the maximum.
+     *
+     * @return the sample counts per bin
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static int getFlagMask(FlagCoding coding, String[] flagNames) {
+        if (flagNames == null || flagNames.length == 0) {
+            throw new IllegalArgumentException("No flags given");
+        }
+        final List<String> codedNames = Arrays.asList(coding.getFlagNames());
+        int flagMask = 0;
+        for (String flagName : flagNames) {
+            if (!codedNames.contains(flagName)) {
+                throw new IllegalArgumentException("Flag not found: " + flagName);
+            }
+            flagMask |= coding.getFlagMask(flagName);
+        }
+        return flagMask;
+    }
+
+    private static boolean isExactHistogramType(int dataType) {
+        return dataType == ProductData.TYPE_INT8 || dataType == ProductData.TYPE_UINT8
+               || dataType == ProductData.TYPE_INT16 || dataType == ProductData.TYPE_UINT16;
+    }
+
+    /*
+     * The smallest raw value of an 8 or 16 bit integer type, which is the offset of the raw
+     * value counts.
+     */
+
+    private static int getRawMin(int dataType) {
+        if (dataType == ProductData.TYPE_INT8) {
+            return Byte.MIN_VALUE;
+        } else if (dataType == ProductData.TYPE_INT16) {
+            return Short.MIN_VALUE;
+        }
+        return 0;
+    }
+
+    private static int getRawRange(int dataType) {
+        return ProductData.getElemSize(dataType) == 1 ? 1 << 8 : 1 << 16;
+    }
+
+    /*
+     * A single pass over the row blocks of the region. Worker threads take the next block from a
+     * shared counter and aggregate into their own partial result, so that blocks are not queued
+     * and the partial results are merged once at the end.
+     */
+
+    private static class Aggregation {
+
+        private final MerisVaReader reader;
+        private final Band band;
+        private final Rectangle region;
+        private final String flagBandName;
+        private final int flagMask;
+        private final MerisVaFlagBitmap flagBitmap;
+        private final int blockCount;
+
+        private Aggregation(MerisVaReader reader, Band band, Rectangle region, String flagBandName,
+                            String[] flagNames, int flagMask) {
+            this.reader = reader;
+            this.band = band;
+            this.region = region;
+            this.flagBandName = flagBandName;
+            this.flagMask = flagMask;
+            flagBitmap = flagBandName != null ? getFlagBitmap(reader, flagBandName, flagNames) : null;
+            blockCount = (region.height + ROW_BLOCK_HEIGHT - 1) / ROW_BLOCK_HEIGHT;
+        }
+
+        /*
+         * Aggregates all blocks. With a binning the histogram bins are counted, otherwise the
+         * count, sum, range and, for 8 or 16 bit integer bands, the raw value counts.
+         */
+
+        private Partial run(final Binning binning, ProgressMonitor pm) throws IOException {
+            final int workerCount = Math.min(blockCount, Runtime.getRuntime().availableProcessors());
+            long blockBytes = (long) region.width * ROW_BLOCK_HEIGHT * ProductData.getElemSize(band.getDataType());
+            if (flagBandName != null) {
+                blockBytes += (long) region.width * ROW_BLOCK_HEIGHT * ProductData.getElemSize(
+                        band.getProduct().getBand(flagBandName).getDataType());
+            }
+            final MerisVaMemoryBudget.Account account = reader.getMemoryAccount();
+            account.reserve(workerCount * blockBytes);
+
+            final AtomicInteger nextBlock = new AtomicInteger(0);
+            final AtomicInteger linesDone = new AtomicInteger(0);
+            final AtomicBoolean canceled = new AtomicBoolean(false);
+            final List<Future<Partial>> futures = new ArrayList<Future<Partial>>();
+            try {
+                for (int i = 0; i < workerCount; i++) {
+                    futures.add(EXECUTOR.submit(new Callable<Partial>() {
+                        @Override
+                        public Partial call() throws IOException {
+                            return aggregateBlocks(binning, nextBlock, linesDone, canceled);
+                        }
+                    }));
+                }
+                final Partial total = binning != null ? new Partial(binning.binCount) : new Partial(band);
+                int linesReported = 0;
+                for (Future<Partial> future : futures) {
+                    while (true) {
+                        try {
+                            total.add(future.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+                            break;
+                        } catch (TimeoutException e) {
+                            final int lines = linesDone.get();
+                            pm.worked(lines - linesReported);
+                            linesReported = lines;
+                            if (pm.isCanceled()) {
+                                canceled.set(true);
+                            }
+                        }
+                    }
+                }
+                pm.worked(linesDone.get() - linesReported);
+                if (canceled.get()) {
+                    throw new IOException("Statistics canceled");
+                }
+                return total;
+            } catch (InterruptedException e) {
+                canceled.set(true);
+                throw new IOException("Statistics interrupted");
+            } catch (ExecutionException e) {
+                canceled.set(true);
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                for (Future<Partial> future : futures) {
+                    try {
+                        future.get();
+                    } catch (Exception ignored) {
+                        // the first failure has been reported
+                    }
+                }
+                account.release(workerCount * blockBytes);
+            }
+        }
+
+        private Partial aggregateBlocks(Binning binning, AtomicInteger nextBlock, AtomicInteger linesDone,
+                                        AtomicBoolean canceled) throws IOException {
+            final Partial partial = binning != null ? new Partial(binning.binCount) : new Partial(band);
+            final MerisVaBufferPool pool = MerisVaBufferPool.getInstance();
+            final int capacity = region.width * ROW_BLOCK_HEIGHT;
+            final ProductData data = pool.acquire(band.getDataType(), capacity);
+            final ProductData flags = flagBandName != null
+                                      ? pool.acquire(band.getProduct().getBand(flagBandName).getDataType(), capacity)
+                                      : null;
+            final Rectangle blockRect = new Rectangle();
+            try {
+                int blockIndex;
+                while (!canceled.get() && (blockIndex = nextBlock.getAndIncrement()) < blockCount) {
+                    final int y = region.y + blockIndex * ROW_BLOCK_HEIGHT;
+                    final int height = Math.min(ROW_BLOCK_HEIGHT, region.y + region.height - y);
+                    blockRect.setBounds(region.x, y, region.width, height);
+                    if (flagBitmap == null || flagBitmap.intersects(blockRect)) {
+                        reader.readBandRegion(band.getName(), region.x, y, region.width, height, data);
+                        if (flags != null) {
+                            reader.readBandRegion(flagBandName, region.x, y, region.width, height, flags);
+                        }
+                        aggregateBlock(data, flags, region.width * height, binning, partial);
+                    }
+                    linesDone.addAndGet(height);
+                }
+            } finally {
+                pool.release(data);
+                if (flags != null) {
+                    pool.release(flags);
+                }
+            }
+            return partial;
+        }
+
+        private void aggregateBlock(ProductData data, ProductData flags, int sampleCount, Binning binning,
+                                    Partial partial) {
+            final boolean noDataUsed = band.isNoDataValueUsed();
+            final double noDataValue = band.getNoDataValue();
+            final int rawMin = partial.rawCounts != null ? getRawMin(band.getDataType()) : 0;
+            for (int i = 0; i < sampleCount; i++) {
+                if (flags != null && (flags.getElemIntAt(i) & flagMask) != flagMask) {
+                    continue;
+                }
+                if (partial.rawCounts != null) {
+                    final int raw = data.getElemIntAt(i);
+                    if (!noDataUsed || raw != noDataValue) {
+                        partial.rawCounts[raw - rawMin]++;
+                    }
+                    continue;
+                }
+                final double raw = data.getElemDoubleAt(i);
+                if (noDataUsed && raw == noDataValue) {
+                    continue;
+                }
+                final double value = band.scale(raw);
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                if (binning != null) {
+                    partial.bins[binning.getBin(value)]++;
+                } else {
+                    partial.addValue(value);
+                }
+            }
+        }
+
+        /*
+         * Retrieves the bitmap of the masked pixels if the flag index has already been built.
+         * The index is neither built nor waited for here, since this would read the flag band
+         * once more.
+         */
+
+        private static MerisVaFlagBitmap getFlagBitmap(MerisVaReader reader, String flagBandName,
+                                                       String[] flagNames) {
+            final MerisVaFlagIndex index = MerisVaFlagIndex.getBuiltIndex(reader, flagBandName);
+            return index != null ? index.and(flagNames) : null;
+        }
+    }
+
+    /*
+     * The histogram range of the second pass over bands without exact raw value counts.
+     */
+
+    private static class Binning {
+
+        private final double min;
+        private final double max;
+        private final int binCount;
+
+        private Binning(double min, double max, int binCount) {
+            this.min = min;
+            this.max = max;
+            this.binCount = binCount;
+        }
+
+        private int getBin(double value) {
+            if (max <= min) {
+                return 0;
+            }
+            final int bin = (int) ((value - min) / (max - min) * binCount);
+            return Math.max(0, Math.min(binCount - 1, bin));
+        }
+    }
+
+    /*
+     * The aggregate of the blocks processed by a single worker thread.
+     */
+
+    private static class Partial {
+
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+        private final long[] rawCounts;
+        private final long[] bins;
+
+        private Partial(Band band) {
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            rawCounts = isExactHistogramType(band.getDataType()) ? new long[getRawRange(band.getDataType())] : null;
+            bins = null;
+        }
+
+        private Partial(int binCount) {
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            rawCounts = null;
+            bins = new long[binCount];
+        }
+
+        private void addValue(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        /*
+         * Adds another partial result. Raw value counts are turned into the count, sum and range
+         * on the way, so the merged result is complete.
+         */
+
+        private void add(Partial other) {
+            if (other.rawCounts != null) {
+                for (int i = 0; i < rawCounts.length; i++) {
+                    rawCounts[i] += other.rawCounts[i];
+                }
+            }
+            if (other.bins != null) {
+                for (int i = 0; i < bins.length; i++) {
+                    bins[i] += other.bins[i];
+                }
+            }
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        /*
+         * Derives count, sum and range from the raw value counts, then bins the scaled raw values.
+         */
+
+        private long[] binRawCounts(Band band, int binCount) {
+            final int rawMin = getRawMin(band.getDataType());
+            for (int i = 0; i < rawCounts.length; i++) {
+                if (rawCounts[i] > 0) {
+                    final double value = band.scale(rawMin + i);
+                    count += rawCounts[i];
+                    sum += value * rawCounts[i];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            final Binning binning = new Binning(min, max, binCount);
+            final long[] histogram = new long[binCount];
+            for (int i = 0; i < rawCounts.length; i++) {
+                if (rawCounts[i] > 0) {
+                    histogram[binning.getBin(band.scale(rawMin + i))] += rawCounts[i];
+                }
+            }
+            return histogram;
+        }
+    }
+}
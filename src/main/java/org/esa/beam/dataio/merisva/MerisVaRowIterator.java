@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * A pull-based iterator over the lines of a MERIS-VA product, yielding blocks of complete
+ * lines for a set of bands.
+ * <p/>
+ * <p>Each block is read with one hyperslab read per band. The block buffers are taken from the
+ * {@link MerisVaBufferPool} once and reused for every block, so memory use is bounded by the
+ * block size and independent of the scene height. The data of a block is only valid until the
+ * next call to {@link #next()}. Call {@link #close()} to return the buffers to the pool. The
+ * buffers are reserved on the product's account of the {@link MerisVaMemoryBudget}.
+ */
+public class MerisVaRowIterator {
+
+    private final MerisVaReader reader;
+    private final int sceneHeight;
+    private final int blockHeight;
+    private final RowBlock block;
+    private final long blockBytes;
+    private MerisVaMemoryBudget.Account memoryAccount;
+    private int nextY;
+
+    private MerisVaRowIterator(MerisVaReader reader, Band[] bands, int blockHeight) {
+        this.reader = reader;
+        this.blockHeight = blockHeight;
+        final Product product = bands[0].getProduct();
+        sceneHeight = product.getSceneRasterHeight();
+        block = new RowBlock(bands, product.getSceneRasterWidth(), blockHeight);
+        long bytes = 0;
+        for (Band band : bands) {
+            bytes += (long) product.getSceneRasterWidth() * blockHeight * ProductData.getElemSize(band.getDataType());
+        }
+        blockBytes = bytes;
+        nextY = 0;
+    }
+
+    /**
+     * Creates an iterator over the given bands of a product read by the MERIS-VA reader.
+     *
+     * @param product     the product, must have been opened with the MERIS-VA reader
+     * @param bandNames   the names of the bands to be read
+     * @param blockHeight the maximum number of lines per block
+     *
+     * @return the iterator
+     *
+     * @throws IllegalArgumentException if the product was not opened with the MERIS-VA reader
+     *                                  or a band is not contained in the product
+     */
+    public static MerisVaRowIterator create(Product product, String[] bandNames, int blockHeight) {
+        if (!(product.getProductReader() instanceof MerisVaReader)) {
+            throw new IllegalArgumentException("Product has not been read by the MERIS-VA reader");
+        }
+        if (bandNames.length == 0) {
+            throw new IllegalArgumentException("No bands given");
+        }
+        if (blockHeight <= 0) {
+            throw new IllegalArgumentException("Invalid block height: " + blockHeight);
+        }
+        final Band[] bands = new Band[bandNames.length];
+        for (int i = 0; i < bandNames.length; i++) {
+            bands[i] = product.getBand(bandNames[i]);
+            if (bands[i] == null) {
+                throw new IllegalArgumentException("Band not found: " + bandNames[i]);
+            }
+        }
+        return new MerisVaRowIterator((MerisVaReader) product.getProductReader(), bands, blockHeight);
+    }
+
+    /**
+     * Checks whether there are lines left to be read.
+     *
+     * @return <code>true</code> if a further block is available
+     */
+    public boolean hasNext() {
+        return nextY < sceneHeight;
+    }
+
+    /**
+     * Reads the next block of lines into the reused block buffers.
+     *
+     * @return the block, valid until the next call of this method
+     *
+     * @throws IOException if the data could not be read
+     */
+    public RowBlock next() throws IOException {
+        if (block.data == null) {
+            throw new IllegalStateException("Iterator has been closed");
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (memoryAccount == null) {
+            // the block buffers are accounted from the first read until the iterator is closed
+            final MerisVaMemoryBudget.Account account = reader.getMemoryAccount();
+            account.reserve(blockBytes);
+            memoryAccount = account;
+        }
+        final int lineCount = Math.min(blockHeight, sceneHeight - nextY);
+        for (int i = 0; i < block.bands.length; i++) {
+            reader.readBandLines(block.bands[i].getName(), nextY, lineCount, block.data[i]);
+        }
+        block.y = nextY;
+        block.height = lineCount;
+        nextY += lineCount;
+        return block;
+    }
+
+    /**
+     * Restarts the iteration at the given line.
+     *
+     * @param y the first line of the next block
+     */
+    public void seek(int y) {
+        if (y < 0 || y > sceneHeight) {
+            throw new IllegalArgumentException("Invalid line: " + y);
+        }
+        nextY = y;
+    }
+
+    /**
+     * Returns the block buffers to the buffer pool. The iterator and its blocks must not be
+     * used any longer.
+     */
+    public void close() {
+        if (block.data != null) {
+            for (ProductData data : block.data) {
+                MerisVaBufferPool.getInstance().release(data);
+            }
+            block.data = null;
+        }
+        if (memoryAccount != null) {
+            memoryAccount.release(blockBytes);
+            memoryAccount = null;
+        }
+    }
+
+    /**
+     * A block of complete product lines for a set of bands.
+     */
+    public static class RowBlock {
+
+        private final Band[] bands;
+        private ProductData[] data;
+        private final int width;
+        private int y;
+        private int height;
+
+        private RowBlock(Band[] bands, int width, int capacity) {
+            this.bands = bands;
+            this.width = width;
+            data = new ProductData[bands.length];
+            for (int i = 0; i < bands.length; i++) {
+                data[i] = MerisVaBufferPool.getInstance().acquire(bands[i].getDataType(), width * capacity);
+            }
+        }
+
+        /**
+         * @return the first line of the block in product raster co-ordinates
+         */
+        public int getY() {
+            return y;
+        }
+
+        /**
+         * @return the number of lines in the block
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the number of samples per line
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Retrieves the raw samples of a band. Only the first <code>getWidth() * getHeight()</code>
+         * elements of the returned buffer belong to the block.
+         *
+         * @param bandName the band name
+         *
+         * @return the band samples, or <code>null</code> if the band is not part of the block
+         */
+        public ProductData getData(String bandName) {
+            for (int i = 0; i < bands.length; i++) {
+                if (bands[i].getName().equals(bandName)) {
+                    return data[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Retrieves the raw samples of the band at the given index in the iterator's band list.
+         *
+         * @param bandIndex the band index
+         *
+         * @return the band samples
+         */
+        public ProductData getData(int bandIndex) {
+            return data[bandIndex];
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.util.Debug;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The directory receiving MERIS-VA products which have been handed to the reader in memory or
+ * as streams. hdf5 1.6 opens files by name only, so such products are spilled to a file first.
+ * <p/>
+ * <p>The directory is given by the system property <code>beam.merisva.spillDir</code>. By default
+ * the memory-backed file system <code>/dev/shm</code> is used where available, so that spilling
+ * does not cause disk I/O, and the temporary directory otherwise. Spill files are deleted when
+ * released, or by a shutdown hook when the virtual machine exits. Their names carry the process id.
+ * If the system property <code>beam.merisva.spillCleanup</code> is <code>true</code>, spill files
+ * of process ids not listed in <code>/proc</code> are deleted on startup, e.g. those left behind by
+ * killed processes. Process ids are local to a pid namespace, so the cleanup must only be enabled
+ * if the spill directory and the temporary directory are not shared with processes running in
+ * another pid namespace, such as other containers of a pod sharing <code>/dev/shm</code>.
+ * <p/>
+ * <p>Spill files in <code>/dev/shm</code> occupy memory, so their size is charged to the
+ * <code>spill</code> account of the {@link MerisVaMemoryBudget}. Content is spilled to the temporary
+ * directory instead if the budget cannot provide its size. Spill files elsewhere are not charged.
+ * <p/>
+ * <p>Decompressed packages are spilled once per content key and shared by all readers of the same
+ * content. Spill files no longer in use are kept up to the size given in MiB by the system property
+ * <code>beam.merisva.spillCacheSize</code> (default 1024); the least recently used ones beyond that
+ * size are deleted.
+ */
+class MerisVaSpillArea implements MerisVaMemoryBudget.Evictable {
+
+    private static final String SPILL_DIR_PROPERTY = "beam.merisva.spillDir";
+    private static final String CACHE_SIZE_PROPERTY = "beam.merisva.spillCacheSize";
+    private static final String CLEANUP_PROPERTY = "beam.merisva.spillCleanup";
+    private static final long MIB = 1024L * 1024L;
+    private static final File SHARED_MEMORY_DIR = new File("/dev/shm");
+    private static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+    private static final File PROCESS_DIR = new File("/proc");
+    private static final String SPILL_FILE_PREFIX = "merisva";
+    private static final String PROCESS_ID = getProcessId();
+    private static final String SPILL_FILE_SUFFIX = ".h5";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final MerisVaSpillArea INSTANCE = new MerisVaSpillArea(
+            getDefaultDir(), Long.getLong(CACHE_SIZE_PROPERTY, 1024L) * MIB);
+
+    private final File dir;
+    private final long maxCachedBytes;
+    private final Map<String, CachedSpill> cachedSpills;
+    private long cachedBytes;
+    // the spill files not yet deleted, with the bytes charged to the memory budget for them
+    private final Map<File, Long> liveFiles;
+    private final MerisVaMemoryBudget.Account memoryAccount;
+
+    private MerisVaSpillArea(File dir, long maxCachedBytes) {
+        this.dir = dir;
+        this.maxCachedBytes = maxCachedBytes;
+        cachedSpills = new LinkedHashMap<String, CachedSpill>(16, 0.75f, true);
+        cachedBytes = 0;
+        liveFiles = new HashMap<File, Long>();
+        final MerisVaMemoryBudget memoryBudget = MerisVaMemoryBudget.getInstance();
+        memoryAccount = memoryBudget.createAccount("spill");
+        memoryBudget.addEvictable(this);
+
+        if (Boolean.getBoolean(CLEANUP_PROPERTY)) {
+            deleteStaleFiles(dir);
+            if (!dir.equals(TEMP_DIR)) {
+                deleteStaleFiles(TEMP_DIR);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deleteLiveFiles();
+            }
+        }, "merisva-spill"));
+    }
+
+    /**
+     * @return the process-wide spill area
+     */
+    static MerisVaSpillArea getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the spill directory
+     */
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * Writes the contents of an array to a new spill file.
+     *
+     * @param content the content
+     *
+     * @return the spill file
+     *
+     * @throws IOException if the file could not be written
+     */
+    File spill(byte[] content) throws IOException {
+        return spill(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Writes the remaining contents of a buffer to a new spill file. The position of the buffer
+     * is not changed.
+     *
+     * @param content the content
+     *
+     * @return the spill file
+     *
+     * @throws IOException if the file could not be written
+     */
+    File spill(ByteBuffer content) throws IOException {
+        final ByteBuffer buffer = content.duplicate();
+        final String prefix = getFilePrefix(null);
+        final File file = createFile(prefix, buffer.remaining());
+        try {
+            final FileOutputStream output = new FileOutputStream(file);
+            try {
+                final FileChannel channel = output.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            release(file);
+            throw e;
+        }
+        return chargeWrittenFile(file, prefix);
+    }
+
+    /**
+     * Writes the contents of a source to a new spill file.
+     *
+     * @param source the source, read until it is exhausted and closed
+     *
+     * @return the spill file
+     *
+     * @throws IOException if the source could not be read or the file could not be written
+     */
+    File spill(Source source) throws IOException {
+        return spill(source, getFilePrefix(null), 0);
+    }
+
+    /**
+     * Retrieves the shared spill file of a content key, writing the contents of a source to a
+     * new spill file if there is none. Concurrent callers asking for the same key wait until the
+     * file has been written once. Each call must be balanced by a call to {@link #release(String)}.
+     *
+     * @param contentKey the content key
+     * @param name       the name of the content, used as prefix of the spill file name
+     * @param sizeHint   the expected size of the content in bytes, zero if unknown
+     * @param source     the source, read only if the content has not been spilled before, and closed
+     *
+     * @return the spill file
+     *
+     * @throws IOException if the source could not be read or the file could not be written
+     */
+    File acquire(String contentKey, String name, long sizeHint, Source source) throws IOException {
+        final CachedSpill cachedSpill;
+        final boolean writer;
+        synchronized (this) {
+            CachedSpill existing = cachedSpills.get(contentKey);
+            writer = existing == null;
+            if (writer) {
+                existing = new CachedSpill();
+                cachedSpills.put(contentKey, existing);
+            }
+            existing.refCount++;
+            cachedSpill = existing;
+        }
+        if (!writer) {
+            source.close();
+            try {
+                return cachedSpill.awaitFile();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (cachedSpills.get(contentKey) == cachedSpill) {
+                        cachedSpill.refCount--;
+                    }
+                }
+                throw e;
+            }
+        }
+        try {
+            final File file = spill(source, getFilePrefix(name), sizeHint);
+            synchronized (this) {
+                cachedSpill.length = file.length();
+                cachedBytes += cachedSpill.length;
+                cachedSpill.setFile(file, null);
+                evictUnused();
+            }
+            return file;
+        } catch (IOException e) {
+            synchronized (this) {
+                cachedSpills.remove(contentKey);
+                cachedSpill.setFile(null, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a shared spill file acquired with {@link #acquire}.
+     *
+     * @param contentKey the content key
+     */
+    synchronized void release(String contentKey) {
+        final CachedSpill cachedSpill = cachedSpills.get(contentKey);
+        if (cachedSpill != null && cachedSpill.refCount > 0) {
+            cachedSpill.refCount--;
+            evictUnused();
+        }
+    }
+
+    /**
+     * Deletes a spill file.
+     *
+     * @param file the spill file
+     */
+    void release(File file) {
+        delete(file);
+    }
+
+    /**
+     * Deletes the least recently used spill files which are no longer in use and are charged to
+     * the memory budget.
+     *
+     * @param bytes the number of bytes to be freed
+     *
+     * @return the number of bytes freed
+     */
+    @Override
+    public synchronized long evict(long bytes) {
+        long freedBytes = 0;
+        final Iterator<CachedSpill> iterator = cachedSpills.values().iterator();
+        while (freedBytes < bytes && iterator.hasNext()) {
+            final CachedSpill cachedSpill = iterator.next();
+            if (cachedSpill.refCount == 0 && cachedSpill.file != null && getChargedBytes(cachedSpill.file) > 0) {
+                iterator.remove();
+                cachedBytes -= cachedSpill.length;
+                freedBytes += delete(cachedSpill.file);
+            }
+        }
+        return freedBytes;
+    }
+
+    /**
+     * A source of the bytes to be spilled.
+     */
+    interface Source extends Closeable {
+
+        /**
+         * Reads the next bytes.
+         *
+         * @param buffer the buffer receiving the bytes
+         *
+         * @return the number of bytes read, zero or negative at the end of the source
+         *
+         * @throws IOException if the source could not be read
+         */
+        int read(byte[] buffer) throws IOException;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private File spill(Source source, String prefix, long sizeHint) throws IOException {
+        try {
+            final File file = createFile(prefix, sizeHint);
+            try {
+                final FileOutputStream output = new FileOutputStream(file);
+                try {
+                    final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int count;
+                    while ((count = source.read(buffer)) > 0) {
+                        output.write(buffer, 0, count);
+                    }
+                } finally {
+                    output.close();
+                }
+            } catch (IOException e) {
+                release(file);
+                throw e;
+            }
+            return chargeWrittenFile(file, prefix);
+        } finally {
+            source.close();
+        }
+    }
+
+    /*
+     * Deletes the least recently used spill files which are no longer in use until the cached
+     * size is within its limit.
+     */
+
+    private void evictUnused() {
+        final Iterator<CachedSpill> iterator = cachedSpills.values().iterator();
+        while (cachedBytes > maxCachedBytes && iterator.hasNext()) {
+            final CachedSpill cachedSpill = iterator.next();
+            if (cachedSpill.refCount == 0 && cachedSpill.file != null) {
+                iterator.remove();
+                cachedBytes -= cachedSpill.length;
+                release(cachedSpill.file);
+            }
+        }
+    }
+
+    private static File getDefaultDir() {
+        final String dirPath = System.getProperty(SPILL_DIR_PROPERTY);
+        if (dirPath != null) {
+            return new File(dirPath);
+        }
+        if (SHARED_MEMORY_DIR.isDirectory() && SHARED_MEMORY_DIR.canWrite()) {
+            return SHARED_MEMORY_DIR;
+        }
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /*
+     * Creates a spill file. Falls back to the temporary directory if the memory-backed file system
+     * has not enough space left for the expected size, or the memory budget cannot provide it.
+     */
+
+    private File createFile(String prefix, long sizeHint) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spill directory: " + dir);
+        }
+        File fileDir = dir;
+        long chargedBytes = 0;
+        if (dir.equals(SHARED_MEMORY_DIR) && sizeHint > 0) {
+            if (dir.getUsableSpace() >= sizeHint && memoryAccount.tryReserve(sizeHint)) {
+                chargedBytes = sizeHint;
+            } else {
+                fileDir = TEMP_DIR;
+            }
+        }
+        final File file;
+        try {
+            file = File.createTempFile(prefix, SPILL_FILE_SUFFIX, fileDir);
+        } catch (IOException e) {
+            memoryAccount.release(chargedBytes);
+            throw e;
+        }
+        synchronized (liveFiles) {
+            liveFiles.put(file, chargedBytes);
+        }
+        return file;
+    }
+
+    /*
+     * Adjusts the charge of a written spill file in the memory-backed file system to its actual
+     * length. The file is moved to the temporary directory if the budget cannot provide it.
+     */
+
+    private File chargeWrittenFile(File file, String prefix) throws IOException {
+        if (!file.getParentFile().equals(SHARED_MEMORY_DIR)) {
+            return file;
+        }
+        final long length = file.length();
+        final long chargedBytes = getChargedBytes(file);
+        if (length <= chargedBytes) {
+            memoryAccount.release(chargedBytes - length);
+        } else if (!memoryAccount.tryReserve(length - chargedBytes)) {
+            return moveToTempDir(file, prefix);
+        }
+        synchronized (liveFiles) {
+            liveFiles.put(file, length);
+        }
+        return file;
+    }
+
+    private File moveToTempDir(File file, String prefix) throws IOException {
+        final File tempFile = File.createTempFile(prefix, SPILL_FILE_SUFFIX, TEMP_DIR);
+        synchronized (liveFiles) {
+            liveFiles.put(tempFile, 0L);
+        }
+        try {
+            final FileInputStream input = new FileInputStream(file);
+            try {
+                final FileOutputStream output = new FileOutputStream(tempFile);
+                try {
+                    final FileChannel channel = input.getChannel();
+                    final long length = channel.size();
+                    long position = 0;
+                    while (position < length) {
+                        position += channel.transferTo(position, length - position, output.getChannel());
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            release(tempFile);
+            throw e;
+        } finally {
+            release(file);
+        }
+        return tempFile;
+    }
+
+    private long getChargedBytes(File file) {
+        synchronized (liveFiles) {
+            final Long chargedBytes = liveFiles.get(file);
+            return chargedBytes != null ? chargedBytes : 0;
+        }
+    }
+
+    /*
+     * Deletes a spill file and releases the memory charged for it. Returns the released bytes.
+     */
+
+    private long delete(File file) {
+        final Long chargedBytes;
+        synchronized (liveFiles) {
+            chargedBytes = liveFiles.remove(file);
+        }
+        if (file.exists() && !file.delete()) {
+            Debug.trace("Unable to delete spill file: " + file);
+        }
+        if (chargedBytes == null) {
+            return 0;
+        }
+        memoryAccount.release(chargedBytes);
+        return chargedBytes;
+    }
+
+    private void deleteLiveFiles() {
+        synchronized (liveFiles) {
+            for (File file : liveFiles.keySet()) {
+                file.delete();
+            }
+            liveFiles.clear();
+        }
+    }
+
+    /*
+     * Spill file names start with the spill prefix and the id of the process which has written
+     * them, e.g. merisva4711_MER_RR_12345.h5.
+     */
+
+    private static String getFilePrefix(String name) {
+        final String prefix = SPILL_FILE_PREFIX + PROCESS_ID + "_";
+        return name != null && name.length() > 0 ? prefix + name + "_" : prefix;
+    }
+
+    /*
+     * Deletes the spill files of processes which no longer run in this pid namespace. Process ids
+     * are only checked where the /proc file system lists the running processes.
+     */
+
+    private static void deleteStaleFiles(File directory) {
+        if (PROCESS_ID.length() == 0 || !new File(PROCESS_DIR, PROCESS_ID).isDirectory()) {
+            return;
+        }
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.startsWith(SPILL_FILE_PREFIX) || !name.endsWith(SPILL_FILE_SUFFIX)) {
+                continue;
+            }
+            final int end = name.indexOf('_', SPILL_FILE_PREFIX.length());
+            if (end < 0) {
+                continue;
+            }
+            final String processId = name.substring(SPILL_FILE_PREFIX.length(), end);
+            if (isProcessId(processId) && !processId.equals(PROCESS_ID)
+                && !new File(PROCESS_DIR, processId).exists() && !file.delete()) {
+                Debug.trace("Unable to delete stale spill file: " + file);
+            }
+        }
+    }
+
+    private static boolean isProcessId(String s) {
+        if (s.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Retrieves the id of this process from the name of the runtime, which is <pid>@<host> on
+     * the common virtual machines. Returns an empty string if the name does not have this form.
+     */
+
+    private static String getProcessId() {
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        final int end = name.indexOf('@');
+        final String processId = end > 0 ? name.substring(0, end) : "";
+        return isProcessId(processId) ? processId : "";
+    }
+
+    private static class CachedSpill {
+
+        private int refCount;
+        private long length;
+        private File file;
+        private IOException failure;
+        private boolean done;
+
+        private synchronized void setFile(File file, IOException failure) {
+            this.file = file;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized File awaitFile() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for spill file");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Unable to spill content: " + failure.getMessage());
+            }
+            return file;
+        }
+    }
+}
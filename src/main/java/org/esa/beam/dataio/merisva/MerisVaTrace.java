@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An access trace of the MERIS-VA reader, as written by the trace recorder when the system
+ * property <code>beam.merisva.traceFile</code> is set. Use {@link MerisVaTraceReplayer} to
+ * re-execute a trace.
+ * <p/>
+ * <p>A trace holds a record for every product opened and closed and for every read of a
+ * band's dataset. Reads are given in the co-ordinates of the dataset they address, so they can
+ * be replayed regardless of the subset a product has been opened with. Times are given in
+ * nanoseconds relative to the start of the trace.
+ * <p/>
+ * <p>The file is a binary stream starting with a header line, followed by records which start
+ * with a type byte. Thread and band names are written once in definition records and referred
+ * to by index afterwards.
+ */
+public class MerisVaTrace {
+
+    /**
+     * The kind of a traced record.
+     */
+    public enum RecordKind {
+        /**
+         * A product has been opened.
+         */
+        OPEN,
+        /**
+         * A region has been read line by line through the product reader interface.
+         */
+        RASTER,
+        /**
+         * Complete product lines, or another region of a band, have been read with a single read.
+         */
+        LINES,
+        /**
+         * A tile of a multi-level image has been read with a single read.
+         */
+        TILE,
+        /**
+         * Scattered pixels have been read.
+         */
+        POINTS,
+        /**
+         * A product has been closed.
+         */
+        CLOSE
+    }
+
+    static final String FILE_HEADER = "MERIS-VA trace 1";
+    static final byte THREAD_DEFINITION = 0;
+    static final byte NAME_DEFINITION = 1;
+    static final byte RECORD = 2;
+
+    private final List<Record> records;
+
+    private MerisVaTrace(List<Record> records) {
+        this.records = records;
+    }
+
+    /**
+     * Reads a trace file. A trace cut short, e.g. because the traced process has been killed,
+     * is read up to its last complete record.
+     *
+     * @param traceFile the trace file
+     *
+     * @return the trace
+     *
+     * @throws IOException if the file could not be read or is not a trace
+     */
+    public static MerisVaTrace read(File traceFile) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile)));
+        try {
+            if (!FILE_HEADER.equals(input.readUTF())) {
+                throw new IOException("Not a MERIS-VA trace: " + traceFile);
+            }
+            final List<String> threadNames = new ArrayList<String>();
+            final List<String> names = new ArrayList<String>();
+            final List<Record> records = new ArrayList<Record>();
+            try {
+                while (true) {
+                    final byte type = input.readByte();
+                    if (type == THREAD_DEFINITION) {
+                        threadNames.add(input.readUTF());
+                    } else if (type == NAME_DEFINITION) {
+                        names.add(input.readUTF());
+                    } else if (type == RECORD) {
+                        records.add(readRecord(input, threadNames, names));
+                    } else {
+                        throw new IOException("Invalid trace record type: " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                // end of trace
+            }
+            return new MerisVaTrace(records);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the records in the order they have been written
+     */
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * A single traced operation.
+     */
+    public static class Record {
+
+        private final RecordKind kind;
+        private final long startNanos;
+        private final long durationNanos;
+        private final String threadName;
+        private final int productId;
+        private String path;
+        private int[] sourceMapping;
+        private String bandName;
+        private int level;
+        private int[] region;
+        private int[] pointsX;
+        private int[] pointsY;
+
+        private Record(RecordKind kind, long startNanos, long durationNanos, String threadName, int productId) {
+            this.kind = kind;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.threadName = threadName;
+            this.productId = productId;
+        }
+
+        public RecordKind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the start of the operation in nanoseconds relative to the start of the trace
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * @return the identifier of the product within the trace
+         */
+        public int getProductId() {
+            return productId;
+        }
+
+        /**
+         * @return the product file of an {@link RecordKind#OPEN} record
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the source mapping {offsetX, offsetY, stepX, stepY, width, height} of the product
+         *         of an {@link RecordKind#OPEN} record
+         */
+        public int[] getSourceMapping() {
+            return sourceMapping != null ? sourceMapping.clone() : null;
+        }
+
+        public String getBandName() {
+            return bandName;
+        }
+
+        /**
+         * @return the overview level of the dataset read by a {@link RecordKind#TILE} record, zero
+         *         for the full resolution dataset
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the region {minX, maxX, stepX, minY, maxY, stepY} of a read in dataset co-ordinates
+         */
+        public int[] getRegion() {
+            return region != null ? region.clone() : null;
+        }
+
+        /**
+         * @return the X co-ordinates of a {@link RecordKind#POINTS} record in dataset co-ordinates
+         */
+        public int[] getPointsX() {
+            return pointsX != null ? pointsX.clone() : null;
+        }
+
+        /**
+         * @return the Y co-ordinates of a {@link RecordKind#POINTS} record in dataset co-ordinates
+         */
+        public int[] getPointsY() {
+            return pointsY != null ? pointsY.clone() : null;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static Record readRecord(DataInputStream input, List<String> threadNames,
+                                     List<String> names) throws IOException {
+        final RecordKind kind = RecordKind.values()[input.readByte()];
+        final long startNanos = input.readLong();
+        final long durationNanos = input.readLong();
+        final String threadName = threadNames.get(input.readInt());
+        final int productId = input.readInt();
+        final Record record = new Record(kind, startNanos, durationNanos, threadName, productId);
+        if (kind == RecordKind.OPEN) {
+            record.path = input.readUTF();
+            record.sourceMapping = readInts(input, 6);
+        } else if (kind == RecordKind.POINTS) {
+            record.bandName = names.get(input.readInt());
+            final int count = input.readInt();
+            record.pointsX = readInts(input, count);
+            record.pointsY = readInts(input, count);
+        } else if (kind != RecordKind.CLOSE) {
+            record.bandName = names.get(input.readInt());
+            record.level = input.readByte();
+            record.region = readInts(input, 6);
+        }
+        return record;
+    }
+
+    private static int[] readInts(DataInputStream input, int count) throws IOException {
+        final int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = input.readInt();
+        }
+        return values;
+    }
+}
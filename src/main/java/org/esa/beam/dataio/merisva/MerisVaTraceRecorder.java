@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.util.logging.BeamLogManager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the accesses of all MERIS-VA readers of the process into a {@link MerisVaTrace} file.
+ * <p/>
+ * <p>Recording is enabled by the system property <code>beam.merisva.traceFile</code>, giving the
+ * path of the trace file, which is replaced when the first product is opened. Records are
+ * buffered; the buffer is flushed whenever a product is closed and when the virtual machine
+ * exits. If the trace file cannot be written, recording is switched off and the failure logged.
+ */
+class MerisVaTraceRecorder {
+
+    private static final String TRACE_FILE_PROPERTY = "beam.merisva.traceFile";
+
+    private static MerisVaTraceRecorder instance;
+
+    private String tracePath;
+    private final long startNanos;
+    private final Map<String, Integer> nameIndexes;
+    private final ThreadLocal<Integer> threadIndex;
+    private DataOutputStream output;
+    private int threadCount;
+    private int productCount;
+
+    private MerisVaTraceRecorder(String tracePath) {
+        this.tracePath = tracePath;
+        startNanos = System.nanoTime();
+        nameIndexes = new HashMap<String, Integer>();
+        threadIndex = new ThreadLocal<Integer>();
+    }
+
+    /**
+     * Retrieves the process-wide recorder.
+     *
+     * @return the recorder, or <code>null</code> if recording is not enabled
+     */
+    static synchronized MerisVaTraceRecorder getInstance() {
+        if (instance == null) {
+            final String tracePath = System.getProperty(TRACE_FILE_PROPERTY);
+            if (tracePath == null) {
+                return null;
+            }
+            instance = new MerisVaTraceRecorder(tracePath);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    instance.flush();
+                }
+            }, "merisva-trace"));
+        }
+        return instance;
+    }
+
+    /**
+     * Assigns the identifier of a product within the trace. Reads of the product may be recorded
+     * before its opening has been recorded, since bands are readable before the product is
+     * completely opened.
+     *
+     * @return the product identifier
+     */
+    synchronized int createProductId() {
+        return productCount++;
+    }
+
+    /**
+     * Records the opening of a product.
+     *
+     * @param productId     the identifier of the product
+     * @param path          the product file
+     * @param sourceMapping the source mapping of the product, see {@link MerisVaReader#getSourceMapping}
+     * @param width         the product width
+     * @param height        the product height
+     * @param startNanos    the value of {@link System#nanoTime()} when the opening has started
+     */
+    synchronized void recordOpen(int productId, String path, int[] sourceMapping, int width, int height,
+                                 long startNanos) {
+        if (beginRecord(MerisVaTrace.RecordKind.OPEN, startNanos, productId)) {
+            try {
+                output.writeUTF(path);
+                writeInts(sourceMapping);
+                output.writeInt(width);
+                output.writeInt(height);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Records a read of a region.
+     *
+     * @param productId  the identifier of the product
+     * @param kind       the kind of read, one of RASTER, LINES or TILE
+     * @param bandName   the name of the band
+     * @param level      the overview level of the dataset read, zero for the full resolution
+     * @param minX       the minimum X in dataset co-ordinates
+     * @param maxX       the maximum X in dataset co-ordinates
+     * @param stepX      the sub-sampling in X direction
+     * @param minY       the minimum Y in dataset co-ordinates
+     * @param maxY       the maximum Y in dataset co-ordinates
+     * @param stepY      the sub-sampling in Y direction
+     * @param startNanos the value of {@link System#nanoTime()} when the read has started
+     */
+    synchronized void recordRead(int productId, MerisVaTrace.RecordKind kind, String bandName, int level,
+                                 int minX, int maxX, int stepX, int minY, int maxY, int stepY, long startNanos) {
+        final int nameIndex = getNameIndex(bandName);
+        if (beginRecord(kind, startNanos, productId)) {
+            try {
+                output.writeInt(nameIndex);
+                output.writeByte(level);
+                output.writeInt(minX);
+                output.writeInt(maxX);
+                output.writeInt(stepX);
+                output.writeInt(minY);
+                output.writeInt(maxY);
+                output.writeInt(stepY);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Records a read of scattered pixels.
+     *
+     * @param productId  the identifier of the product
+     * @param bandName   the name of the band
+     * @param x          the X co-ordinates in dataset co-ordinates
+     * @param y          the Y co-ordinates in dataset co-ordinates
+     * @param startNanos the value of {@link System#nanoTime()} when the read has started
+     */
+    synchronized void recordPoints(int productId, String bandName, int[] x, int[] y, long startNanos) {
+        final int nameIndex = getNameIndex(bandName);
+        if (beginRecord(MerisVaTrace.RecordKind.POINTS, startNanos, productId)) {
+            try {
+                output.writeInt(nameIndex);
+                output.writeInt(x.length);
+                writeInts(x);
+                writeInts(y);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Records the closing of a product and flushes the trace.
+     *
+     * @param productId  the identifier of the product
+     * @param startNanos the value of {@link System#nanoTime()} when the closing has started
+     */
+    synchronized void recordClose(int productId, long startNanos) {
+        beginRecord(MerisVaTrace.RecordKind.CLOSE, startNanos, productId);
+        flush();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Writes the common part of a record, preceded by the definition of the current thread if
+     * it has not been written yet. Returns false if recording has been switched off.
+     */
+
+    private boolean beginRecord(MerisVaTrace.RecordKind kind, long operationStartNanos, int productId) {
+        final long endNanos = System.nanoTime();
+        if (!assureOutput()) {
+            return false;
+        }
+        try {
+            Integer index = threadIndex.get();
+            if (index == null) {
+                index = threadCount++;
+                threadIndex.set(index);
+                output.writeByte(MerisVaTrace.THREAD_DEFINITION);
+                output.writeUTF(Thread.currentThread().getName());
+            }
+            output.writeByte(MerisVaTrace.RECORD);
+            output.writeByte(kind.ordinal());
+            output.writeLong(operationStartNanos - startNanos);
+            output.writeLong(endNanos - operationStartNanos);
+            output.writeInt(index);
+            output.writeInt(productId);
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    /*
+     * Retrieves the index of a band name, writing its definition on first use. Returns -1 if
+     * recording has been switched off.
+     */
+
+    private int getNameIndex(String name) {
+        Integer index = nameIndexes.get(name);
+        if (index == null && assureOutput()) {
+            try {
+                output.writeByte(MerisVaTrace.NAME_DEFINITION);
+                output.writeUTF(name);
+                index = nameIndexes.size();
+                nameIndexes.put(name, index);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return index != null ? index : -1;
+    }
+
+    private boolean assureOutput() {
+        if (output == null && tracePath != null) {
+            try {
+                output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tracePath), 64 * 1024));
+                output.writeUTF(MerisVaTrace.FILE_HEADER);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return output != null;
+    }
+
+    private void writeInts(int[] values) throws IOException {
+        for (int value : values) {
+            output.writeInt(value);
+        }
+    }
+
+    private synchronized void flush() {
+        if (output != null) {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /*
+     * Switches recording off after a write failure.
+     */
+
+    private void fail(IOException e) {
+        BeamLogManager.getSystemLogger().warning("Unable to write reader trace, recording stopped: " + e.getMessage());
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException ignored) {
+                // already failed
+            }
+        }
+        output = null;
+        tracePath = null;
+    }
+}
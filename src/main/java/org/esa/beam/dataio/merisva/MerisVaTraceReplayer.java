@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import org.esa.beam.framework.dataio.ProductSubsetDef;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Re-executes a {@link MerisVaTrace} and compares the durations of the replayed operations with
+ * the traced ones.
+ * <p/>
+ * <p>Every traced thread is replayed by a thread of its own, which executes the records of the
+ * traced thread in their original order, either back to back or, in timed mode, at their
+ * original start times. Products are opened with the subset they have been traced with, either
+ * from their original files or all from a single given product file. Reads are issued directly
+ * against the datasets of the bands, so the replay exercises the caches and read-ahead of the
+ * reader configured by the system properties of the replaying process. Reads of a product wait
+ * until it has been opened, and closing a product waits until all of its reads have been
+ * replayed.
+ */
+public class MerisVaTraceReplayer {
+
+    private final MerisVaTrace trace;
+    private File productFile;
+    private boolean timed;
+
+    /**
+     * Constructs a replayer.
+     *
+     * @param trace the trace
+     */
+    public MerisVaTraceReplayer(MerisVaTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Sets the product file all traced products are replaced with.
+     *
+     * @param productFile the product file, or <code>null</code> to replay against the traced files
+     */
+    public void setProductFile(File productFile) {
+        this.productFile = productFile;
+    }
+
+    /**
+     * Sets whether records are replayed at their original start times rather than back to back.
+     *
+     * @param timed <code>true</code> for timed mode
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
+    /**
+     * Replays the trace.
+     *
+     * @return the report of the replay
+     *
+     * @throws InterruptedException if the replay has been interrupted
+     */
+    public Report replay() throws InterruptedException {
+        final Report report = new Report();
+        final Map<Integer, ProductSlot> slots = new HashMap<Integer, ProductSlot>();
+        final Map<String, List<MerisVaTrace.Record>> threadRecords = new LinkedHashMap<String,
+                List<MerisVaTrace.Record>>();
+        for (MerisVaTrace.Record record : trace.getRecords()) {
+            ProductSlot slot = slots.get(record.getProductId());
+            if (slot == null) {
+                slot = new ProductSlot();
+                slots.put(record.getProductId(), slot);
+            }
+            if (record.getKind() == MerisVaTrace.RecordKind.OPEN) {
+                slot.opened = true;
+            } else if (record.getKind() != MerisVaTrace.RecordKind.CLOSE) {
+                slot.readCount++;
+            }
+            List<MerisVaTrace.Record> records = threadRecords.get(record.getThreadName());
+            if (records == null) {
+                records = new ArrayList<MerisVaTrace.Record>();
+                threadRecords.put(record.getThreadName(), records);
+            }
+            records.add(record);
+            report.tracedEndNanos = Math.max(report.tracedEndNanos,
+                                             record.getStartNanos() + record.getDurationNanos());
+        }
+        for (ProductSlot slot : slots.values()) {
+            slot.readsDone = new CountDownLatch(slot.readCount);
+            if (!slot.opened) {
+                slot.failure = "Product has not been opened in the trace";
+                slot.openDone.countDown();
+            }
+        }
+
+        final long replayStartNanos = System.nanoTime();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (Map.Entry<String, List<MerisVaTrace.Record>> entry : threadRecords.entrySet()) {
+            threads.add(new ReplayThread(entry.getKey(), entry.getValue(), slots, report, replayStartNanos));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            report.replayedNanos = System.nanoTime() - replayStartNanos;
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (ProductSlot slot : slots.values()) {
+                slot.close();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Replays the trace file given as argument and prints the report.
+     *
+     * @param args the options followed by the trace file
+     */
+    public static void main(String[] args) throws Exception {
+        File productFile = null;
+        boolean timed = false;
+        int argIndex = 0;
+        while (argIndex < args.length - 1 && args[argIndex].startsWith("-")) {
+            final String option = args[argIndex++];
+            if ("-timed".equals(option)) {
+                timed = true;
+            } else if ("-product".equals(option) && argIndex < args.length - 1) {
+                productFile = new File(args[argIndex++]);
+            } else {
+                argIndex = args.length;
+            }
+        }
+        if (argIndex != args.length - 1) {
+            System.out.println("Usage: MerisVaTraceReplayer [-timed] [-product <product-file>] <trace-file>");
+            System.exit(1);
+        }
+
+        final MerisVaTraceReplayer replayer = new MerisVaTraceReplayer(MerisVaTrace.read(new File(args[argIndex])));
+        replayer.setProductFile(productFile);
+        replayer.setTimed(timed);
+        final Report report = replayer.replay();
+        System.out.println(report);
+        System.exit(report.getErrorCount() == 0 ? 0 : 2);
+    }
+
+    /**
+     * The result of a replay.
+     */
+    public static class Report {
+
+        private final Map<MerisVaTrace.RecordKind, List<long[]>> durations;
+        private long tracedEndNanos;
+        private long replayedNanos;
+        private long errorCount;
+        private String firstError;
+
+        private Report() {
+            durations = new LinkedHashMap<MerisVaTrace.RecordKind, List<long[]>>();
+            for (MerisVaTrace.RecordKind kind : MerisVaTrace.RecordKind.values()) {
+                durations.put(kind, new ArrayList<long[]>());
+            }
+        }
+
+        /**
+         * Retrieves the number of replayed records of a kind.
+         *
+         * @param kind the record kind
+         *
+         * @return the record count
+         */
+        public synchronized int getCount(MerisVaTrace.RecordKind kind) {
+            return durations.get(kind).size();
+        }
+
+        /**
+         * Retrieves a percentile of the traced or replayed durations of a record kind.
+         *
+         * @param kind       the record kind
+         * @param replayed   <code>true</code> for the replayed, <code>false</code> for the traced durations
+         * @param percentile the percentile, 100 for the maximum
+         *
+         * @return the duration in microseconds, zero if no record of the kind has been replayed
+         */
+        public synchronized long getDurationMicros(MerisVaTrace.RecordKind kind, boolean replayed,
+                                                   double percentile) {
+            final List<long[]> kindDurations = durations.get(kind);
+            if (kindDurations.isEmpty()) {
+                return 0;
+            }
+            final long[] values = new long[kindDurations.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = kindDurations.get(i)[replayed ? 1 : 0];
+            }
+            Arrays.sort(values);
+            final int rank = Math.max(1, (int) Math.ceil(percentile / 100.0 * values.length));
+            return values[rank - 1] / 1000L;
+        }
+
+        /**
+         * Retrieves the total traced or replayed duration of the records of a kind.
+         *
+         * @param kind     the record kind
+         * @param replayed <code>true</code> for the replayed, <code>false</code> for the traced durations
+         *
+         * @return the total duration in microseconds
+         */
+        public synchronized long getTotalMicros(MerisVaTrace.RecordKind kind, boolean replayed) {
+            long total = 0;
+            for (long[] duration : durations.get(kind)) {
+                total += duration[replayed ? 1 : 0];
+            }
+            return total / 1000L;
+        }
+
+        public synchronized long getErrorCount() {
+            return errorCount;
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-8s %8s  %12s %12s %12s  %12s %12s %12s  %7s%n", "kind", "count",
+                                    "traced p50", "p90", "total", "replay p50", "p90", "total", "ratio"));
+            for (MerisVaTrace.RecordKind kind : MerisVaTrace.RecordKind.values()) {
+                if (getCount(kind) == 0) {
+                    continue;
+                }
+                final long tracedTotal = getTotalMicros(kind, false);
+                final long replayedTotal = getTotalMicros(kind, true);
+                sb.append(String.format("%-8s %8d  %9d us %9d us %9d us  %9d us %9d us %9d us  %7.2f%n",
+                                        kind.name().toLowerCase(), getCount(kind),
+                                        getDurationMicros(kind, false, 50), getDurationMicros(kind, false, 90),
+                                        tracedTotal,
+                                        getDurationMicros(kind, true, 50), getDurationMicros(kind, true, 90),
+                                        replayedTotal,
+                                        tracedTotal > 0 ? (double) replayedTotal / tracedTotal : 0.0));
+            }
+            sb.append(String.format("wall time: %.3f s traced, %.3f s replayed%n",
+                                    tracedEndNanos / 1.0e9, replayedNanos / 1.0e9));
+            sb.append("errors:    ").append(errorCount);
+            if (firstError != null) {
+                sb.append(" (first: ").append(firstError).append(')');
+            }
+            return sb.toString();
+        }
+
+        private synchronized void add(MerisVaTrace.Record record, long replayedNanos) {
+            durations.get(record.getKind()).add(new long[]{record.getDurationNanos(), replayedNanos});
+        }
+
+        private synchronized void addError(MerisVaTrace.Record record, String message) {
+            errorCount++;
+            if (firstError == null) {
+                firstError = record.getKind().name().toLowerCase() + ": " + message;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * The replayed product of a traced product identifier.
+     */
+
+    private static class ProductSlot {
+
+        private final CountDownLatch openDone;
+        private CountDownLatch readsDone;
+        private boolean opened;
+        private int readCount;
+        private volatile MerisVaReader reader;
+        private volatile String failure;
+
+        private ProductSlot() {
+            openDone = new CountDownLatch(1);
+        }
+
+        private synchronized void close() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Debug.trace(e);
+                }
+                reader = null;
+            }
+        }
+    }
+
+    private class ReplayThread extends Thread {
+
+        private final List<MerisVaTrace.Record> records;
+        private final Map<Integer, ProductSlot> slots;
+        private final Report report;
+        private final long replayStartNanos;
+
+        private ReplayThread(String tracedName, List<MerisVaTrace.Record> records, Map<Integer, ProductSlot> slots,
+                             Report report, long replayStartNanos) {
+            super("replay-" + tracedName);
+            this.records = records;
+            this.slots = slots;
+            this.report = report;
+            this.replayStartNanos = replayStartNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (MerisVaTrace.Record record : records) {
+                    if (timed) {
+                        final long delayNanos = replayStartNanos + record.getStartNanos() - System.nanoTime();
+                        if (delayNanos > 0) {
+                            Thread.sleep(delayNanos / 1000000L, (int) (delayNanos % 1000000L));
+                        }
+                    }
+                    replay(record);
+                }
+            } catch (InterruptedException e) {
+                // the replay has been stopped
+            }
+        }
+
+        private void replay(MerisVaTrace.Record record) throws InterruptedException {
+            final ProductSlot slot = slots.get(record.getProductId());
+            final MerisVaTrace.RecordKind kind = record.getKind();
+            try {
+                if (kind == MerisVaTrace.RecordKind.OPEN) {
+                    final long startNanos = System.nanoTime();
+                    try {
+                        slot.reader = open(record);
+                        report.add(record, System.nanoTime() - startNanos);
+                    } finally {
+                        slot.openDone.countDown();
+                    }
+                } else if (kind == MerisVaTrace.RecordKind.CLOSE) {
+                    slot.readsDone.await();
+                    final long startNanos = System.nanoTime();
+                    slot.close();
+                    report.add(record, System.nanoTime() - startNanos);
+                } else {
+                    try {
+                        slot.openDone.await();
+                        final MerisVaReader reader = slot.reader;
+                        if (reader == null) {
+                            throw new IOException(slot.failure);
+                        }
+                        final MerisVaBand dataset = reader.getDataset(record.getBandName(), record.getLevel());
+                        if (dataset == null) {
+                            throw new IOException("Dataset not found: " + record.getBandName() + " level "
+                                                  + record.getLevel());
+                        }
+                        final long startNanos = System.nanoTime();
+                        read(dataset, record);
+                        report.add(record, System.nanoTime() - startNanos);
+                    } finally {
+                        slot.readsDone.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                if (kind == MerisVaTrace.RecordKind.OPEN) {
+                    slot.failure = e.getMessage();
+                }
+                report.addError(record, e.getMessage());
+            } catch (RuntimeException e) {
+                report.addError(record, e.toString());
+            }
+        }
+
+        private MerisVaReader open(MerisVaTrace.Record record) throws IOException {
+            final File file = productFile != null ? productFile : new File(record.getPath());
+            if (file.getPath().length() == 0) {
+                throw new IOException("In-memory product; a product file must be given");
+            }
+            final int[] mapping = record.getSourceMapping();
+            final ProductSubsetDef subsetDef = new ProductSubsetDef();
+            subsetDef.setRegion(mapping[0], mapping[1], (mapping[4] - 1) * mapping[2] + 1,
+                                (mapping[5] - 1) * mapping[3] + 1);
+            subsetDef.setSubSampling(mapping[2], mapping[3]);
+            final MerisVaReader reader = (MerisVaReader) new MerisVaReaderPlugIn().createReaderInstance();
+            reader.readProductNodes(file, subsetDef);
+            return reader;
+        }
+
+        private void read(MerisVaBand dataset, MerisVaTrace.Record record) throws IOException {
+            final MerisVaBufferPool bufferPool = MerisVaBufferPool.getInstance();
+            if (record.getKind() == MerisVaTrace.RecordKind.POINTS) {
+                final int[] x = record.getPointsX();
+                final ProductData buffer = bufferPool.acquire(dataset.getDataType(), x.length);
+                try {
+                    dataset.readPoints(x, record.getPointsY(), buffer);
+                } finally {
+                    bufferPool.release(buffer);
+                }
+                return;
+            }
+            final int[] region = record.getRegion();
+            final int width = (region[1] - region[0]) / region[2] + 1;
+            final int height = (region[4] - region[3]) / region[5] + 1;
+            final ProductData buffer = bufferPool.acquire(dataset.getDataType(), width * height);
+            try {
+                if (record.getKind() == MerisVaTrace.RecordKind.RASTER) {
+                    // line by line, as done by the product reader interface
+                    int destPos = 0;
+                    for (int y = region[3]; y <= region[4]; y += region[5]) {
+                        dataset.readRasterLine(region[0], region[1], region[2], y, buffer, destPos);
+                        destPos += width;
+                    }
+                } else {
+                    dataset.readRasterRegion(region[0], region[1], region[2], region[3], region[4], region[5],
+                                             buffer);
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+}
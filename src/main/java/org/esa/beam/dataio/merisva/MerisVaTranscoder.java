@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import com.bc.ceres.core.NullProgressMonitor;
+import com.bc.ceres.core.ProgressMonitor;
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.framework.datamodel.TiePointGrid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rewrites a MERIS-VA product into a MERIS-VA file with a layout optimized for tiled reads.
+ * <p/>
+ * <p>The output keeps the root attributes, the tie point grids and the scene datasets with
+ * their attributes, so it can be opened by the MERIS-VA reader like the original. The scene
+ * datasets are stored in chunks of the configured tile size, optionally deflate compressed.
+ * Optional overview datasets hold the scene decimated by powers of two; they are stored in the
+ * group {@link MerisVaConstants#OVERVIEW_GROUP_NAME}, from which the reader serves the lower
+ * resolution levels of the band images.
+ */
+public class MerisVaTranscoder {
+
+    private int tileWidth;
+    private int tileHeight;
+    private int deflateLevel;
+    private int overviewLevelCount;
+
+    /**
+     * Constructs a transcoder writing 512 x 512 chunks with deflate level 6 and no overviews.
+     */
+    public MerisVaTranscoder() {
+        tileWidth = 512;
+        tileHeight = 512;
+        deflateLevel = 6;
+        overviewLevelCount = 0;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Sets the chunk size of the scene datasets. Chunks are clipped to the scene size.
+     *
+     * @param tileWidth  the chunk width
+     * @param tileHeight the chunk height
+     */
+    public void setTileSize(int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Invalid tile size: " + tileWidth + " x " + tileHeight);
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+    }
+
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    /**
+     * Sets the deflate compression level.
+     *
+     * @param deflateLevel the level from 1 to 9, or 0 for uncompressed chunks
+     */
+    public void setDeflateLevel(int deflateLevel) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("Invalid deflate level: " + deflateLevel);
+        }
+        this.deflateLevel = deflateLevel;
+    }
+
+    public int getOverviewLevelCount() {
+        return overviewLevelCount;
+    }
+
+    /**
+     * Sets the number of overview levels. Level <i>n</i> holds every 2<sup><i>n</i></sup>-th
+     * sample of every 2<sup><i>n</i></sup>-th line.
+     *
+     * @param overviewLevelCount the number of levels, 0 for no overviews
+     */
+    public void setOverviewLevelCount(int overviewLevelCount) {
+        if (overviewLevelCount < 0 || overviewLevelCount > 16) {
+            throw new IllegalArgumentException("Invalid overview level count: " + overviewLevelCount);
+        }
+        this.overviewLevelCount = overviewLevelCount;
+    }
+
+    /**
+     * Transcodes a product. The target file is removed again if the transcoding fails.
+     *
+     * @param sourceFile the MERIS-VA product
+     * @param targetFile the file to be written, replaced if it exists
+     * @param pm         a monitor to inform the user about progress
+     *
+     * @throws IOException if the product could not be read or written
+     */
+    public void transcode(File sourceFile, File targetFile, ProgressMonitor pm) throws IOException {
+        H5Utils.assureLibInitialized();
+
+        final MerisVaReader reader = (MerisVaReader) new MerisVaReaderPlugIn().createReaderInstance();
+        final Product product = reader.readProductNodes(sourceFile, null);
+        int fileId = -1;
+        boolean success = false;
+        try {
+            fileId = H5.H5Fcreate(targetFile.getPath(), HDF5Constants.H5F_ACC_TRUNC, HDF5Constants.H5P_DEFAULT,
+                                  HDF5Constants.H5P_DEFAULT);
+            writeRootAttributes(fileId, reader.getRootAttributes());
+            writeTiePointGrids(fileId, product);
+            writeBands(fileId, reader, product, pm);
+            success = true;
+        } catch (HDF5Exception e) {
+            throw new ProductIOException("HDF library error: " + targetFile.getPath() + ": " + e.getMessage());
+        } finally {
+            H5Utils.closeH5F(fileId);
+            reader.close();
+            if (!success) {
+                targetFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Transcodes the product given as argument.
+     *
+     * @param args the options followed by the source and target file
+     */
+    public static void main(String[] args) throws Exception {
+        final MerisVaTranscoder transcoder = new MerisVaTranscoder();
+        int argIndex = 0;
+        try {
+            while (argIndex < args.length - 2) {
+                final String option = args[argIndex++];
+                final String value = args[argIndex++];
+                if ("-tile".equals(option)) {
+                    final String[] size = value.split("x");
+                    transcoder.setTileSize(Integer.parseInt(size[0]), Integer.parseInt(size[size.length - 1]));
+                } else if ("-deflate".equals(option)) {
+                    transcoder.setDeflateLevel(Integer.parseInt(value));
+                } else if ("-overviews".equals(option)) {
+                    transcoder.setOverviewLevelCount(Integer.parseInt(value));
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            argIndex = -1;
+        }
+        if (argIndex < 0 || args.length - argIndex != 2) {
+            System.out.println("Usage: MerisVaTranscoder [-tile <w>x<h>] [-deflate <0-9>] [-overviews <n>] "
+                               + "<source-file> <target-file>");
+            System.exit(1);
+        }
+        transcoder.transcode(new File(args[argIndex]), new File(args[argIndex + 1]), new NullProgressMonitor());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the root attributes of a MERIS-VA file.
+     *
+     * @param fileId         the file identifier
+     * @param rootAttributes the attributes
+     *
+     * @throws IOException if an attribute could not be written
+     */
+    static void writeRootAttributes(int fileId, H5AttributeMap rootAttributes) throws IOException {
+        final int rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
+        try {
+            H5Utils.writeAttributes(rootGrpID, rootAttributes);
+        } finally {
+            H5Utils.closeH5G(rootGrpID);
+        }
+    }
+
+    /**
+     * Writes the tie point grids as contiguous float datasets. The reader only interprets the
+     * description and unit attributes of a grid, so only these are kept.
+     *
+     * @param fileId  the file identifier
+     * @param product the product providing the grids
+     *
+     * @throws IOException   if an attribute could not be written
+     * @throws HDF5Exception if a dataset could not be written
+     */
+    static void writeTiePointGrids(int fileId, Product product) throws IOException, HDF5Exception {
+        final int grpID = H5.H5Gcreate(fileId, MerisVaConstants.TIE_POINT_GROUP_NAME, 0);
+        try {
+            for (TiePointGrid grid : product.getTiePointGrids()) {
+                final long[] dims = new long[]{grid.getRasterHeight(), grid.getRasterWidth()};
+                final int datasetID = createDataset(grpID, grid.getName(), HDF5Constants.H5T_NATIVE_FLOAT, dims,
+                                                    HDF5Constants.H5P_DEFAULT);
+                try {
+                    H5.H5Dwrite(datasetID, HDF5Constants.H5T_NATIVE_FLOAT, HDF5Constants.H5S_ALL,
+                                HDF5Constants.H5S_ALL, HDF5Constants.H5P_DEFAULT, grid.getTiePoints());
+                    final H5AttributeMap attributes = new H5AttributeMap();
+                    if (grid.getDescription() != null) {
+                        attributes.put(MerisVaConstants.DESCRIPTION_ATT_NAME, grid.getDescription());
+                    }
+                    if (grid.getUnit() != null) {
+                        attributes.put(MerisVaConstants.UNIT_ATT_NAME, grid.getUnit());
+                    }
+                    H5Utils.writeAttributes(datasetID, attributes);
+                } finally {
+                    H5.H5Dclose(datasetID);
+                }
+            }
+        } finally {
+            H5Utils.closeH5G(grpID);
+        }
+    }
+
+    /*
+     * Copies the scene datasets block by block, each block covering one row of chunks, and
+     * derives the overview datasets from the same blocks. The pixel geo-location bands are
+     * computed from the tie point grids when read, so they are not written.
+     */
+
+    private void writeBands(int fileId, MerisVaReader reader, Product product,
+                            ProgressMonitor pm) throws IOException, HDF5Exception {
+        final List<Band> bands = new ArrayList<Band>();
+        for (Band band : product.getBands()) {
+            if (!MerisVaPixelGeoRaster.isGeoBand(band.getName())) {
+                bands.add(band);
+            }
+        }
+        final int width = product.getSceneRasterWidth();
+        final int height = product.getSceneRasterHeight();
+        final int blockHeight = Math.min(tileHeight, height);
+        final int blockCount = (height + blockHeight - 1) / blockHeight;
+
+        final int sceneGrpID = H5.H5Gcreate(fileId, MerisVaConstants.SCENE_GROUP_NAME, 0);
+        final int[] levelGrpIDs = new int[overviewLevelCount];
+        Arrays.fill(levelGrpIDs, -1);
+        pm.beginTask("Transcoding product '" + product.getName() + "'...", bands.size() * blockCount); /*I18N*/
+        try {
+            createOverviewGroups(fileId, levelGrpIDs);
+            for (Band band : bands) {
+                final int hdfDataType = H5Utils.convertProductToHdfDataType(band.getDataType());
+                if (hdfDataType < 0) {
+                    throw new ProductIOException("Unsupported band data type: " + band.getName());
+                }
+                final H5AttributeMap attributes = reader.getBandAttributes(band.getName());
+                final byte[] fillValue = reader.getBandFillValue(band.getName(), hdfDataType);
+                final int[] datasetIDs = new int[1 + overviewLevelCount];
+                Arrays.fill(datasetIDs, -1);
+                datasetIDs[0] = createChunkedDataset(sceneGrpID, band.getName(), hdfDataType, width, height,
+                                                     attributes, fillValue);
+                try {
+                    for (int level = 1; level <= overviewLevelCount; level++) {
+                        datasetIDs[level] = createChunkedDataset(levelGrpIDs[level - 1], band.getName(), hdfDataType,
+                                                                 ((width - 1) >> level) + 1, ((height - 1) >> level) + 1,
+                                                                 attributes, fillValue);
+                        final H5AttributeMap levelAttribute = new H5AttributeMap();
+                        levelAttribute.put(MerisVaConstants.OVERVIEW_LEVEL_ATT_NAME, new int[]{level});
+                        H5Utils.writeAttributes(datasetIDs[level], levelAttribute);
+                    }
+                    final MerisVaRowIterator iterator = MerisVaRowIterator.create(product,
+                                                                                  new String[]{band.getName()},
+                                                                                  blockHeight);
+                    try {
+                        while (iterator.hasNext()) {
+                            if (pm.isCanceled()) {
+                                throw new IOException("Transcoding canceled");
+                            }
+                            final MerisVaRowIterator.RowBlock block = iterator.next();
+                            for (int level = 0; level <= overviewLevelCount; level++) {
+                                writeBlock(datasetIDs[level], hdfDataType, block, level);
+                            }
+                            pm.worked(1);
+                        }
+                    } finally {
+                        iterator.close();
+                    }
+                } finally {
+                    for (int datasetID : datasetIDs) {
+                        if (datasetID >= 0) {
+                            H5.H5Dclose(datasetID);
+                        }
+                    }
+                }
+            }
+        } finally {
+            pm.done();
+            for (int levelGrpID : levelGrpIDs) {
+                H5Utils.closeH5G(levelGrpID);
+            }
+            H5Utils.closeH5G(sceneGrpID);
+        }
+    }
+
+    private void createOverviewGroups(int fileId, int[] levelGrpIDs) throws HDF5Exception {
+        if (overviewLevelCount > 0) {
+            final int overviewGrpID = H5.H5Gcreate(fileId, MerisVaConstants.OVERVIEW_GROUP_NAME, 0);
+            try {
+                for (int level = 1; level <= overviewLevelCount; level++) {
+                    levelGrpIDs[level - 1] = H5.H5Gcreate(overviewGrpID,
+                                                          MerisVaConstants.OVERVIEW_LEVEL_GROUP_PREFIX + level, 0);
+                }
+            } finally {
+                H5Utils.closeH5G(overviewGrpID);
+            }
+        }
+    }
+
+    /*
+     * Creates a chunked dataset. The user-defined fill value of the source dataset, if any, is
+     * copied, since the reader derives the valid extent of a band from it.
+     */
+
+    private int createChunkedDataset(int grpID, String name, int hdfDataType, int width, int height,
+                                     H5AttributeMap attributes, byte[] fillValue) throws IOException, HDF5Exception {
+        final int plistID = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
+        try {
+            H5.H5Pset_chunk(plistID, 2, new long[]{Math.min(tileHeight, height), Math.min(tileWidth, width)});
+            if (deflateLevel > 0) {
+                H5.H5Pset_deflate(plistID, deflateLevel);
+            }
+            if (fillValue != null) {
+                H5.H5Pset_fill_value(plistID, hdfDataType, fillValue);
+            }
+            final int datasetID = createDataset(grpID, name, hdfDataType, new long[]{height, width}, plistID);
+            if (attributes != null) {
+                H5Utils.writeAttributes(datasetID, attributes);
+            }
+            return datasetID;
+        } finally {
+            H5.H5Pclose(plistID);
+        }
+    }
+
+    private static int createDataset(int grpID, String name, int hdfDataType, long[] dims,
+                                     int plistID) throws HDF5Exception {
+        final int dataspaceID = H5.H5Screate_simple(2, dims, null);
+        try {
+            return H5.H5Dcreate(grpID, name, hdfDataType, dataspaceID, plistID);
+        } finally {
+            H5Utils.closeH5S(dataspaceID);
+        }
+    }
+
+    /*
+     * Writes the lines of a block to a dataset of the given overview level, level 0 being the
+     * scene dataset. The decimation is done by a strided selection of the block buffer.
+     */
+
+    private static void writeBlock(int datasetID, int hdfDataType, MerisVaRowIterator.RowBlock block,
+                                   int level) throws HDF5Exception {
+        final int factor = 1 << level;
+        final int firstY = (block.getY() + factor - 1) / factor * factor;
+        final int lastY = block.getY() + block.getHeight() - 1;
+        if (firstY > lastY) {
+            return;
+        }
+        final ProductData data = block.getData(0);
+        final long[] count = new long[]{(lastY - firstY) / factor + 1, (block.getWidth() - 1) / factor + 1};
+        final long[] memDims = new long[]{data.getNumElems() / block.getWidth(), block.getWidth()};
+        int memDataspaceID = -1;
+        int fileDataspaceID = -1;
+        try {
+            memDataspaceID = H5.H5Screate_simple(2, memDims, null);
+            H5.H5Sselect_hyperslab(memDataspaceID, HDF5Constants.H5S_SELECT_SET,
+                                   new long[]{firstY - block.getY(), 0}, new long[]{factor, factor}, count, null);
+            fileDataspaceID = H5.H5Dget_space(datasetID);
+            H5.H5Sselect_hyperslab(fileDataspaceID, HDF5Constants.H5S_SELECT_SET,
+                                   new long[]{firstY / factor, 0}, null, count, null);
+            H5.H5Dwrite(datasetID, hdfDataType, memDataspaceID, fileDataspaceID, HDF5Constants.H5P_DEFAULT,
+                        data.getElems());
+        } finally {
+            H5Utils.closeH5S(fileDataspaceID);
+            H5Utils.closeH5S(memDataspaceID);
+        }
+    }
+}
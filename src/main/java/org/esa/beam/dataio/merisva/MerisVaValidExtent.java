@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The extent of valid data of a MERIS-VA band, i.e. the first and last column holding a sample
+ * different from the dataset's fill value, per block of rows.
+ * <p/>
+ * <p>The extent of a row block becomes known once all of its rows have been observed at full
+ * width. Reads of a band can then be clipped to the extent of the rows they cover and the
+ * remaining samples filled with the fill value without reading them. Rows are observed as a
+ * side effect of full-width reads, or by scanning row blocks explicitly. The class is not
+ * thread-safe; it is used under the lock of its band.
+ */
+class MerisVaValidExtent {
+
+    private final int width;
+    private final int height;
+    private final int blockHeight;
+    private final Object fillValue;
+    private final int[] blockMinX;
+    private final int[] blockMaxX;
+    private final int[] blockRowCounts;
+    private final BitSet observedRows;
+
+    /**
+     * Constructs an unknown extent.
+     *
+     * @param width       the raster width
+     * @param height      the raster height
+     * @param blockHeight the number of rows per block
+     * @param fillValue   the fill value as a one-element array of the band's sample array type
+     */
+    MerisVaValidExtent(int width, int height, int blockHeight, Object fillValue) {
+        this.width = width;
+        this.height = height;
+        this.blockHeight = blockHeight;
+        this.fillValue = fillValue;
+        final int blockCount = (height + blockHeight - 1) / blockHeight;
+        blockMinX = new int[blockCount];
+        blockMaxX = new int[blockCount];
+        Arrays.fill(blockMinX, Integer.MAX_VALUE);
+        Arrays.fill(blockMaxX, -1);
+        blockRowCounts = new int[blockCount];
+        observedRows = new BitSet(height);
+    }
+
+    /**
+     * Creates the fill value array of a band from the raw fill value of its dataset.
+     *
+     * @param rawFillValue the fill value as returned by hdf5, in native byte order
+     * @param sampleArray  an array of the band's sample array type
+     *
+     * @return the one-element fill value array, or <code>null</code> if the type is not supported
+     */
+    static Object createFillValue(byte[] rawFillValue, Object sampleArray) {
+        final ByteBuffer buffer = ByteBuffer.wrap(rawFillValue).order(ByteOrder.nativeOrder());
+        if (sampleArray instanceof byte[] && rawFillValue.length >= 1) {
+            return new byte[]{buffer.get()};
+        } else if (sampleArray instanceof short[] && rawFillValue.length >= 2) {
+            return new short[]{buffer.getShort()};
+        } else if (sampleArray instanceof int[] && rawFillValue.length >= 4) {
+            return new int[]{buffer.getInt()};
+        } else if (sampleArray instanceof float[] && rawFillValue.length >= 4) {
+            return new float[]{buffer.getFloat()};
+        } else if (sampleArray instanceof double[] && rawFillValue.length >= 8) {
+            return new double[]{buffer.getDouble()};
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of rows per block
+     */
+    int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * Checks whether the extent of the block containing a row is known.
+     *
+     * @param y the row
+     *
+     * @return <code>true</code> if all rows of the block have been observed
+     */
+    boolean isKnown(int y) {
+        final int block = y / blockHeight;
+        return blockRowCounts[block] == getBlockRowCount(block);
+    }
+
+    /**
+     * Retrieves the union of the valid extents of the blocks covering a range of rows.
+     *
+     * @param minY   the first row
+     * @param maxY   the last row
+     * @param extent receives the first and last valid column, the first being greater than the
+     *               last if all samples are fill values
+     *
+     * @return <code>false</code> if the extent of a block is unknown
+     */
+    boolean getExtent(int minY, int maxY, int[] extent) {
+        int minX = Integer.MAX_VALUE;
+        int maxX = -1;
+        for (int block = minY / blockHeight; block <= maxY / blockHeight; block++) {
+            if (blockRowCounts[block] != getBlockRowCount(block)) {
+                return false;
+            }
+            minX = Math.min(minX, blockMinX[block]);
+            maxX = Math.max(maxX, blockMaxX[block]);
+        }
+        extent[0] = minX;
+        extent[1] = maxX;
+        return true;
+    }
+
+    /**
+     * Records the valid columns of a row.
+     *
+     * @param y       the row
+     * @param samples an array holding all samples of the row
+     * @param offset  the position of the first sample of the row within the array
+     */
+    void observeRow(int y, Object samples, int offset) {
+        if (observedRows.get(y)) {
+            return;
+        }
+        observedRows.set(y);
+        final int block = y / blockHeight;
+        int minX = 0;
+        while (minX < width && isFill(samples, offset + minX)) {
+            minX++;
+        }
+        if (minX < width) {
+            int maxX = width - 1;
+            while (isFill(samples, offset + maxX)) {
+                maxX--;
+            }
+            blockMinX[block] = Math.min(blockMinX[block], minX);
+            blockMaxX[block] = Math.max(blockMaxX[block], maxX);
+        }
+        blockRowCounts[block]++;
+    }
+
+    /**
+     * Fills a range of an array with the fill value.
+     *
+     * @param samples the array
+     * @param from    the first position
+     * @param count   the number of elements
+     */
+    void fill(Object samples, int from, int count) {
+        final int to = from + count;
+        if (samples instanceof byte[]) {
+            Arrays.fill((byte[]) samples, from, to, ((byte[]) fillValue)[0]);
+        } else if (samples instanceof short[]) {
+            Arrays.fill((short[]) samples, from, to, ((short[]) fillValue)[0]);
+        } else if (samples instanceof int[]) {
+            Arrays.fill((int[]) samples, from, to, ((int[]) fillValue)[0]);
+        } else if (samples instanceof float[]) {
+            Arrays.fill((float[]) samples, from, to, ((float[]) fillValue)[0]);
+        } else if (samples instanceof double[]) {
+            Arrays.fill((double[]) samples, from, to, ((double[]) fillValue)[0]);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PACKAGE-ACCESS
+    ///////////////////////////////////////////////////////////////////////////
+
+    private int getBlockRowCount(int block) {
+        return Math.min(blockHeight, height - block * blockHeight);
+    }
+
+    /*
+     * Compares a sample with the fill value; floating point samples are compared bitwise, so
+     * that a NaN fill value is recognized.
+     */
+
+    private boolean isFill(Object samples, int pos) {
+        if (samples instanceof byte[]) {
+            return ((byte[]) samples)[pos] == ((byte[]) fillValue)[0];
+        } else if (samples instanceof short[]) {
+            return ((short[]) samples)[pos] == ((short[]) fillValue)[0];
+        } else if (samples instanceof int[]) {
+            return ((int[]) samples)[pos] == ((int[]) fillValue)[0];
+        } else if (samples instanceof float[]) {
+            return Float.floatToIntBits(((float[]) samples)[pos]) == Float.floatToIntBits(((float[]) fillValue)[0]);
+        } else if (samples instanceof double[]) {
+            return Double.doubleToLongBits(((double[]) samples)[pos])
+                   == Double.doubleToLongBits(((double[]) fillValue)[0]);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import ncsa.hdf.hdf5lib.exceptions.HDF5LibraryException;
+import org.esa.beam.framework.dataio.ProductIOException;
+import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.esa.beam.util.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes a copy of a MERIS-VA product block of lines by block of lines at a given pace, as a
+ * near-real-time processor would, so that {@link MerisVaGrowingFile} can be tried out and tested
+ * without such a processor.
+ * <p/>
+ * <p>The root attributes and tie point grids are written first, with <code>SceneLineCount</code>
+ * set to 0. The scene datasets are created chunked with an extent of 0 lines and a maximum extent
+ * of the scene height. For each block the datasets are extended and written and the file is
+ * flushed; only then <code>SceneLineCount</code> is updated and the file flushed again, so that a
+ * reader never sees a line count covering lines which have not been written.
+ */
+public class MerisVaWriterSimulator {
+
+    private int blockHeight;
+    private long intervalMillis;
+
+    /**
+     * Constructs a simulator writing blocks of 16 lines every 100 milliseconds.
+     */
+    public MerisVaWriterSimulator() {
+        blockHeight = 16;
+        intervalMillis = 100;
+    }
+
+    public int getBlockHeight() {
+        return blockHeight;
+    }
+
+    /**
+     * Sets the number of lines written at once. This is also the chunk height of the datasets.
+     *
+     * @param blockHeight the number of lines
+     */
+    public void setBlockHeight(int blockHeight) {
+        if (blockHeight <= 0) {
+            throw new IllegalArgumentException("Invalid block height: " + blockHeight);
+        }
+        this.blockHeight = blockHeight;
+    }
+
+    public long getInterval() {
+        return intervalMillis;
+    }
+
+    /**
+     * Sets the pause after each block.
+     *
+     * @param intervalMillis the pause in milliseconds
+     */
+    public void setInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid interval: " + intervalMillis);
+        }
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Writes the copy of a product. The target file is kept if the writing fails, as a writer
+     * crashing would leave it.
+     *
+     * @param sourceFile the MERIS-VA product
+     * @param targetFile the file to be written, replaced if it exists
+     *
+     * @throws IOException          if the product could not be read or written
+     * @throws InterruptedException if the writing has been interrupted
+     */
+    public void write(File sourceFile, File targetFile) throws IOException, InterruptedException {
+        H5Utils.assureLibInitialized();
+
+        final MerisVaReader reader = (MerisVaReader) new MerisVaReaderPlugIn().createReaderInstance();
+        final Product product = reader.readProductNodes(sourceFile, null);
+        final Band[] bands = product.getBands();
+        final int[] datasetIDs = new int[bands.length];
+        Arrays.fill(datasetIDs, -1);
+        final int[] hdfDataTypes = new int[bands.length];
+        final ProductData[] buffers = new ProductData[bands.length];
+        int fileId = -1;
+        int sceneGrpID = -1;
+        try {
+            fileId = H5.H5Fcreate(targetFile.getPath(), HDF5Constants.H5F_ACC_TRUNC, HDF5Constants.H5P_DEFAULT,
+                                  HDF5Constants.H5P_DEFAULT);
+            final H5AttributeMap rootAttributes = new H5AttributeMap();
+            for (String name : reader.getRootAttributes().getNames()) {
+                rootAttributes.put(name, reader.getRootAttributes().get(name));
+            }
+            rootAttributes.put(MerisVaConstants.SCENE_HEIGHT_ATT_NAME, new int[]{0});
+            MerisVaTranscoder.writeRootAttributes(fileId, rootAttributes);
+            MerisVaTranscoder.writeTiePointGrids(fileId, product);
+
+            final int width = product.getSceneRasterWidth();
+            final int height = product.getSceneRasterHeight();
+            sceneGrpID = H5.H5Gcreate(fileId, MerisVaConstants.SCENE_GROUP_NAME, 0);
+            for (int i = 0; i < bands.length; i++) {
+                hdfDataTypes[i] = H5Utils.convertProductToHdfDataType(bands[i].getDataType());
+                if (hdfDataTypes[i] < 0) {
+                    throw new ProductIOException("Unsupported band data type: " + bands[i].getName());
+                }
+                datasetIDs[i] = createGrowingDataset(sceneGrpID, bands[i].getName(), hdfDataTypes[i], width, height,
+                                                     reader.getBandAttributes(bands[i].getName()));
+                buffers[i] = MerisVaBufferPool.getInstance().acquire(bands[i].getDataType(), width * blockHeight);
+            }
+            H5.H5Fflush(fileId, HDF5Constants.H5F_SCOPE_GLOBAL);
+
+            for (int y = 0; y < height; y += blockHeight) {
+                final int lineCount = Math.min(blockHeight, height - y);
+                for (int i = 0; i < bands.length; i++) {
+                    reader.readBandLines(bands[i].getName(), y, lineCount, buffers[i]);
+                    writeLines(datasetIDs[i], hdfDataTypes[i], width, y, lineCount, buffers[i]);
+                }
+                H5.H5Fflush(fileId, HDF5Constants.H5F_SCOPE_GLOBAL);
+                writeLineCount(fileId, y + lineCount);
+                H5.H5Fflush(fileId, HDF5Constants.H5F_SCOPE_GLOBAL);
+                if (intervalMillis > 0) {
+                    Thread.sleep(intervalMillis);
+                }
+            }
+        } catch (HDF5Exception e) {
+            throw new ProductIOException("HDF library error: " + targetFile.getPath() + ": " + e.getMessage());
+        } finally {
+            for (int i = 0; i < bands.length; i++) {
+                if (buffers[i] != null) {
+                    MerisVaBufferPool.getInstance().release(buffers[i]);
+                }
+                if (datasetIDs[i] >= 0) {
+                    try {
+                        H5.H5Dclose(datasetIDs[i]);
+                    } catch (HDF5LibraryException e) {
+                        Debug.trace(e);
+                    }
+                }
+            }
+            H5Utils.closeH5G(sceneGrpID);
+            H5Utils.closeH5F(fileId);
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the copy of the product given as argument.
+     *
+     * @param args the options followed by the source and target file
+     */
+    public static void main(String[] args) throws Exception {
+        final MerisVaWriterSimulator simulator = new MerisVaWriterSimulator();
+        int argIndex = 0;
+        try {
+            while (argIndex < args.length - 2) {
+                final String option = args[argIndex++];
+                final String value = args[argIndex++];
+                if ("-lines".equals(option)) {
+                    simulator.setBlockHeight(Integer.parseInt(value));
+                } else if ("-interval".equals(option)) {
+                    simulator.setInterval(Long.parseLong(value));
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            argIndex = -1;
+        }
+        if (argIndex < 0 || args.length - argIndex != 2) {
+            System.out.println("Usage: MerisVaWriterSimulator [-lines <n>] [-interval <millis>] "
+                               + "<source-file> <target-file>");
+            System.exit(1);
+        }
+        simulator.write(new File(args[argIndex]), new File(args[argIndex + 1]));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // END OF PUBLIC
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Creates a scene dataset with an extent of 0 lines which can grow up to the scene height.
+     */
+
+    private int createGrowingDataset(int grpID, String name, int hdfDataType, int width, int height,
+                                     H5AttributeMap attributes) throws IOException, HDF5Exception {
+        final int plistID = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
+        int dataspaceID = -1;
+        try {
+            H5.H5Pset_chunk(plistID, 2, new long[]{Math.min(blockHeight, height), width});
+            dataspaceID = H5.H5Screate_simple(2, new long[]{0, width}, new long[]{height, width});
+            final int datasetID = H5.H5Dcreate(grpID, name, hdfDataType, dataspaceID, plistID);
+            if (attributes != null) {
+                H5Utils.writeAttributes(datasetID, attributes);
+            }
+            return datasetID;
+        } finally {
+            H5Utils.closeH5S(dataspaceID);
+            H5.H5Pclose(plistID);
+        }
+    }
+
+    /*
+     * Extends a scene dataset by a block of lines and writes them.
+     */
+
+    private static void writeLines(int datasetID, int hdfDataType, int width, int y, int lineCount,
+                                   ProductData data) throws HDF5Exception {
+        final long[] count = new long[]{lineCount, width};
+        int memDataspaceID = -1;
+        int fileDataspaceID = -1;
+        try {
+            H5.H5Dextend(datasetID, new long[]{y + lineCount, width});
+            memDataspaceID = H5.H5Screate_simple(2, new long[]{data.getNumElems() / width, width}, null);
+            H5.H5Sselect_hyperslab(memDataspaceID, HDF5Constants.H5S_SELECT_SET, new long[]{0, 0}, null, count,
+                                   null);
+            fileDataspaceID = H5.H5Dget_space(datasetID);
+            H5.H5Sselect_hyperslab(fileDataspaceID, HDF5Constants.H5S_SELECT_SET, new long[]{y, 0}, null, count,
+                                   null);
+            H5.H5Dwrite(datasetID, hdfDataType, memDataspaceID, fileDataspaceID, HDF5Constants.H5P_DEFAULT,
+                        data.getElems());
+        } finally {
+            H5Utils.closeH5S(fileDataspaceID);
+            H5Utils.closeH5S(memDataspaceID);
+        }
+    }
+
+    /*
+     * Updates the SceneLineCount root attribute, which has been written as integer.
+     */
+
+    private static void writeLineCount(int fileId, int lineCount) throws IOException, HDF5Exception {
+        final int rootGrpID = H5Utils.openH5G(fileId, MerisVaConstants.ROOT_GROUP_NAME);
+        int attributeId = -1;
+        try {
+            attributeId = H5.H5Aopen_name(rootGrpID, MerisVaConstants.SCENE_HEIGHT_ATT_NAME);
+            H5.H5Awrite(attributeId, HDF5Constants.H5T_NATIVE_INT, new int[]{lineCount});
+        } finally {
+            H5Utils.closeH5A(attributeId);
+            H5Utils.closeH5G(rootGrpID);
+        }
+    }
+}
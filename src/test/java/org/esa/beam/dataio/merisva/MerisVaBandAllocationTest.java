@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2002 by Brockmann Consult (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation. This program is distributed in the hope it will
+ * be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.esa.beam.dataio.merisva;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import org.esa.beam.framework.datamodel.ProductData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that line and region reads of contiguous and compressed datasets return the written
+ * samples, and that warm reads do not allocate on the Java heap. The bytes allocated by the
+ * reading thread are counted with the per-thread allocation counters of the JVM; the allocation
+ * tests are skipped on JVMs not providing them.
+ */
+public class MerisVaBandAllocationTest {
+
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 128;
+    private static final int CHUNK_WIDTH = 64;
+    private static final int CHUNK_HEIGHT = 16;
+    private static final int WARM_UP_READS = 2 * HEIGHT;
+    private static final int COUNTED_READS = 1000;
+    // tolerates allocations amortised over many reads, such as chunk read-ahead tasks
+    private static final double MAX_ALLOCATED_BYTES_PER_READ = 1.0;
+
+    private short[] samples;
+    private File file;
+    private int fileId;
+    private MerisVaBand band;
+
+    @Before
+    public void setUp() throws Exception {
+        fileId = -1;
+        file = File.createTempFile("merisva-test", ".h5");
+        writeTestFile();
+        fileId = H5.H5Fopen(file.getPath(), HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (band != null) {
+            band.close();
+        }
+        if (fileId >= 0) {
+            H5.H5Fclose(fileId);
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testContiguousReadsReturnSamples() throws Exception {
+        openBand("contiguous");
+        assertReadsReturnSamples();
+    }
+
+    @Test
+    public void testCompressedReadsReturnSamples() throws Exception {
+        openBand("compressed");
+        assertReadsReturnSamples();
+    }
+
+    @Test
+    public void testContiguousLineReadsDoNotAllocate() throws Exception {
+        openBand("contiguous");
+        assertLineReadsDoNotAllocate();
+    }
+
+    @Test
+    public void testCompressedLineReadsDoNotAllocate() throws Exception {
+        openBand("compressed");
+        assertTrue(band.isCompressed());
+        assertLineReadsDoNotAllocate();
+    }
+
+    @Test
+    public void testContiguousRegionReadsDoNotAllocate() throws Exception {
+        openBand("contiguous");
+        assertRegionReadsDoNotAllocate();
+    }
+
+    @Test
+    public void testCompressedRegionReadsDoNotAllocate() throws Exception {
+        openBand("compressed");
+        assertRegionReadsDoNotAllocate();
+    }
+
+    private void assertReadsReturnSamples() throws IOException {
+        final ProductData line = ProductData.createInstance(ProductData.TYPE_INT16, WIDTH);
+        for (int y = 0; y < HEIGHT; y += 7) {
+            band.readRasterLine(0, WIDTH - 1, 1, y, line, 0);
+            assertRegion(line, 0, WIDTH - 1, 1, y, y, 1);
+        }
+        // strided lines, crossing chunk borders and ending within the last chunk
+        final ProductData stridedLine = ProductData.createInstance(ProductData.TYPE_INT16, WIDTH);
+        band.readRasterLine(5, WIDTH - 3, 3, HEIGHT - 1, stridedLine, 0);
+        assertRegion(stridedLine, 5, WIDTH - 3, 3, HEIGHT - 1, HEIGHT - 1, 1);
+
+        final ProductData region = ProductData.createInstance(ProductData.TYPE_INT16, WIDTH * HEIGHT);
+        band.readRasterRegion(0, WIDTH - 1, 1, 0, HEIGHT - 1, 1, region);
+        assertRegion(region, 0, WIDTH - 1, 1, 0, HEIGHT - 1, 1);
+        band.readRasterRegion(0, WIDTH - 2, 2, 8, 15, 1, region);
+        assertRegion(region, 0, WIDTH - 2, 2, 8, 15, 1);
+        band.readRasterRegion(3, WIDTH - 10, 5, 2, HEIGHT - 4, 3, region);
+        assertRegion(region, 3, WIDTH - 10, 5, 2, HEIGHT - 4, 3);
+    }
+
+    private void assertRegion(ProductData data, int minX, int maxX, int stepX, int minY, int maxY, int stepY) {
+        int index = 0;
+        for (int y = minY; y <= maxY; y += stepY) {
+            for (int x = minX; x <= maxX; x += stepX) {
+                assertEquals("sample " + x + "," + y, samples[y * WIDTH + x], data.getElemIntAt(index++));
+            }
+        }
+    }
+
+    private void assertLineReadsDoNotAllocate() throws IOException {
+        final ProductData data = ProductData.createInstance(ProductData.TYPE_INT16, WIDTH);
+        assertReadsDoNotAllocate(new Read() {
+            @Override
+            void read(int index) throws IOException {
+                band.readRasterLine(0, WIDTH - 1, 1, index % HEIGHT, data, 0);
+            }
+        });
+    }
+
+    private void assertRegionReadsDoNotAllocate() throws IOException {
+        final int regionHeight = 8;
+        final ProductData data = ProductData.createInstance(ProductData.TYPE_INT16, WIDTH / 2 * regionHeight);
+        assertReadsDoNotAllocate(new Read() {
+            @Override
+            void read(int index) throws IOException {
+                final int y = index % (HEIGHT / regionHeight) * regionHeight;
+                band.readRasterRegion(0, WIDTH - 2, 2, y, y + regionHeight - 1, 1, data);
+            }
+        });
+    }
+
+    private void assertReadsDoNotAllocate(Read read) throws IOException {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < WARM_UP_READS; i++) {
+            read.read(i);
+        }
+        final long threadId = Thread.currentThread().getId();
+        // the bytes allocated by querying the counter itself
+        final long overhead = -allocationBean.getThreadAllocatedBytes(threadId)
+                              + allocationBean.getThreadAllocatedBytes(threadId);
+        final long bytesBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < COUNTED_READS; i++) {
+            read.read(i);
+        }
+        final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - bytesBefore - overhead;
+        final double bytesPerRead = (double) Math.max(0, allocated) / COUNTED_READS;
+        assertTrue("allocated " + bytesPerRead + " bytes per read", bytesPerRead < MAX_ALLOCATED_BYTES_PER_READ);
+    }
+
+    private void openBand(String name) throws IOException, HDF5Exception {
+        final int datasetId = H5.H5Dopen(fileId, name);
+        band = new MerisVaBand();
+        band.init(datasetId, H5.H5Dget_space(datasetId), H5.H5Dget_type(datasetId),
+                  H5Utils.readAttributes(datasetId));
+    }
+
+    private void writeTestFile() throws HDF5Exception {
+        samples = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (i % 4093);
+        }
+        final int id = H5.H5Fcreate(file.getPath(), HDF5Constants.H5F_ACC_TRUNC, HDF5Constants.H5P_DEFAULT,
+                                    HDF5Constants.H5P_DEFAULT);
+        try {
+            writeDataset(id, "contiguous", samples, false);
+            writeDataset(id, "compressed", samples, true);
+        } finally {
+            H5.H5Fclose(id);
+        }
+    }
+
+    private static void writeDataset(int fileId, String name, short[] samples,
+                                     boolean compressed) throws HDF5Exception {
+        final int plistID = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
+        final int dataspaceID = H5.H5Screate_simple(2, new long[]{HEIGHT, WIDTH}, null);
+        try {
+            if (compressed) {
+                H5.H5Pset_chunk(plistID, 2, new long[]{CHUNK_HEIGHT, CHUNK_WIDTH});
+                H5.H5Pset_deflate(plistID, 6);
+            }
+            final int datasetID = H5.H5Dcreate(fileId, name, HDF5Constants.H5T_NATIVE_INT16, dataspaceID, plistID);
+            try {
+                H5.H5Dwrite(datasetID, HDF5Constants.H5T_NATIVE_INT16, HDF5Constants.H5S_ALL, HDF5Constants.H5S_ALL,
+                            HDF5Constants.H5P_DEFAULT, samples);
+            } finally {
+                H5.H5Dclose(datasetID);
+            }
+        } finally {
+            H5.H5Sclose(dataspaceID);
+            H5.H5Pclose(plistID);
+        }
+    }
+
+    private abstract static class Read {
+
+        abstract void read(int index) throws IOException;
+    }
+}